@@ -2,13 +2,11 @@ package me.DanL.E2EChat.CryptoUtils;
 
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -17,6 +15,7 @@ import javax.crypto.spec.SecretKeySpec;
  * Contains a series of utility methods for various AES constructs (specifically AES-CBC and AES-GCM)
  * 
  * AES-CBC is used for key encryption, AES-GCM is used for message encryption.
+ * The ciphers come from {@link CryptoEngines}, so only their keys and IVs are set up per call.
  * 
  * @author daniel
  */
@@ -34,13 +33,10 @@ public class AES {
 	public static byte[] encryptCBC(byte[] key, byte[] iv, byte[] data) throws InvalidKeyException {
 		SecretKeySpec sks = new SecretKeySpec(key, "AES");
 		try {
-			Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			Cipher c = CryptoEngines.aesCBC();
 			IvParameterSpec ivp = new IvParameterSpec(iv);
 			c.init(Cipher.ENCRYPT_MODE, sks, ivp);
 			return c.doFinal(data);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			//This is bad.
-			e.printStackTrace();
 		} catch (InvalidAlgorithmParameterException e) {
 			//???
 			e.printStackTrace();
@@ -68,13 +64,10 @@ public class AES {
 	public static byte[] decryptCBC(byte[] key, byte[] iv, byte[] data) throws InvalidKeyException {
 		SecretKeySpec sks = new SecretKeySpec(key, "AES");
 		try {
-			Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			Cipher c = CryptoEngines.aesCBC();
 			IvParameterSpec ivp = new IvParameterSpec(iv);
 			c.init(Cipher.DECRYPT_MODE, sks, ivp);
 			return c.doFinal(data);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			//This is bad.
-			e.printStackTrace();
 		} catch (InvalidAlgorithmParameterException e) {
 			//???
 			e.printStackTrace();
@@ -100,13 +93,10 @@ public class AES {
 	public static byte[] encryptGCM(byte[] key, byte[] iv, byte[] data) throws InvalidKeyException {
 		SecretKeySpec sks = new SecretKeySpec(key, "AES");
 		try {
-			Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+			Cipher c = CryptoEngines.aesGCM();
 			GCMParameterSpec ivp = new GCMParameterSpec(128, iv);
 			c.init(Cipher.ENCRYPT_MODE, sks, ivp);
 			return c.doFinal(data);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			//This is bad.
-			e.printStackTrace();
 		} catch (InvalidAlgorithmParameterException e) {
 			//???
 			e.printStackTrace();
@@ -137,13 +127,10 @@ public class AES {
 	public static byte[] decryptGCM(byte[] key, byte[] iv, byte[] data) throws InvalidKeyException, AEADBadTagException {
 		SecretKeySpec sks = new SecretKeySpec(key, "AES");
 		try {
-			Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+			Cipher c = CryptoEngines.aesGCM();
 			GCMParameterSpec ivp = new GCMParameterSpec(128, iv);
 			c.init(Cipher.DECRYPT_MODE, sks, ivp);
 			return c.doFinal(data);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			//This is bad.
-			e.printStackTrace();
 		} catch (InvalidAlgorithmParameterException e) {
 			//???
 			e.printStackTrace();
@@ -0,0 +1,85 @@
+package me.DanL.E2EChat.CryptoUtils;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Keeps one of each hash, MAC and cipher engine per thread, since looking them up from the providers every time
+ * costs more than actually using them on a small packet.
+ *
+ * Engines aren't thread safe, so never hand one to another thread, and be done with it before calling anything else that might
+ * want the same one. Ciphers and unkeyed Macs need initialising before each use, which is cheap compared to getInstance.
+ * @author daniel
+ *
+ */
+public class CryptoEngines {
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e); //Every JRE has to have these, so this is a bug.
+		}
+	});
+
+	private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> newHmacSHA256());
+
+	private static final ThreadLocal<Cipher> AES_CBC = ThreadLocal.withInitial(() -> newCipher("AES/CBC/PKCS5Padding"));
+
+	private static final ThreadLocal<Cipher> AES_GCM = ThreadLocal.withInitial(() -> newCipher("AES/GCM/NoPadding"));
+
+	private CryptoEngines() {
+	}
+
+	/**
+	 * @return - This thread's SHA-256, reset and ready to go.
+	 */
+	public static MessageDigest sha256() {
+		MessageDigest md = SHA256.get();
+		md.reset(); //In case the last user bailed out part way through.
+		return md;
+	}
+
+	/**
+	 * @return - This thread's HmacSHA256. Needs initialising with a key.
+	 */
+	public static Mac hmacSHA256() {
+		return HMAC_SHA256.get();
+	}
+
+	/**
+	 * @return - This thread's AES/CBC/PKCS5Padding cipher. Needs initialising.
+	 */
+	public static Cipher aesCBC() {
+		return AES_CBC.get();
+	}
+
+	/**
+	 * @return - This thread's AES/GCM/NoPadding cipher. Needs initialising, with a fresh IV every time.
+	 */
+	public static Cipher aesGCM() {
+		return AES_GCM.get();
+	}
+
+	/**
+	 * @return - A new HmacSHA256 of its own, e.g. to keep keyed for a long lived key. See {@link HMACUtils#keyedMac(byte[])}.
+	 */
+	static Mac newHmacSHA256() {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Cipher newCipher(String transformation) {
+		try {
+			return Cipher.getInstance(transformation);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
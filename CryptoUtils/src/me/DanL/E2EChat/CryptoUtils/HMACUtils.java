@@ -1,6 +1,5 @@
 package me.DanL.E2EChat.CryptoUtils;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -14,23 +13,45 @@ public class HMACUtils {
 	 */
 	public static byte[] hmac(byte[] data, byte[] key) {
 		try {
-			Mac hmacCalc = Mac.getInstance("HmacSHA256");
+			Mac hmacCalc = CryptoEngines.hmacSHA256();
 			SecretKeySpec macKey = new SecretKeySpec(key, "HmacSHA256");
 			hmacCalc.init(macKey);
 			hmacCalc.update(data);
 			return hmacCalc.doFinal();
-		} catch (NoSuchAlgorithmException e) {
-			//This is a bug if this happens, so fix it.
-			e.printStackTrace();
-			return null;
 		} catch (InvalidKeyException e) {
-			//Also a bug, so fix if this happens
+			//A bug, so fix if this happens
 			e.printStackTrace();
 			return null;
 		}
 		
 	}
 	
+	/**
+	 * Makes a Mac that stays keyed, for keys that get used over and over (e.g. a session key), so they aren't set up every time.
+	 * It isn't thread safe: only use it from one thread at a time.
+	 * @param key - The key.
+	 * @return - An HmacSHA256 keyed with it, for {@link HMACUtils#hmac(Mac, byte[])}.
+	 */
+	public static Mac keyedMac(byte[] key) {
+		Mac hmacCalc = CryptoEngines.newHmacSHA256();
+		try {
+			hmacCalc.init(new SecretKeySpec(key, "HmacSHA256"));
+		} catch (InvalidKeyException e) {
+			throw new IllegalArgumentException(e); //Only happens for an empty key.
+		}
+		return hmacCalc;
+	}
+	
+	/**
+	 * Like {@link HMACUtils#hmac(byte[], byte[])}, with a Mac from {@link HMACUtils#keyedMac(byte[])}.
+	 * @param keyed - The keyed Mac. It's ready to use again afterwards.
+	 * @param data - The data to MAC.
+	 * @return - A 32 byte MAC of the data.
+	 */
+	public static byte[] hmac(Mac keyed, byte[] data) {
+		return keyed.doFinal(data);
+	}
+	
 	/**
 	 * Calculates HMAC of some data. See {@link HMACUtils#hmac(byte[], byte[])}
 	 * @param data
@@ -54,7 +75,7 @@ public class HMACUtils {
 		}
 		int diffSum = 0;
 		for (int i = 0; i<a.length; i++) {
-			diffSum += a[i] ^ b[i]; //If a[i] == b[i], a[i] ^ b[i] = 0, otherwise it won't be.
+			diffSum |= a[i] ^ b[i]; //If a[i] == b[i], a[i] ^ b[i] = 0, otherwise it won't be. Or'd so differences can't cancel out.
 		}
 		return diffSum == 0;
 	}
@@ -77,6 +98,16 @@ public class HMACUtils {
 		}
 	}
 	
+	/**
+	 * Like {@link HMACUtils#verifyHmac(byte[], byte[], byte[])}, with a Mac from {@link HMACUtils#keyedMac(byte[])}.
+	 * @throws InvalidMACException - If the MAC does not authenticate the data we've been given.
+	 */
+	public static void verifyHmac(Mac keyed, byte[] data, byte[] mac) throws InvalidMACException {
+		if (!HMACUtils.slowCmp(hmac(keyed, data), mac)) {
+			throw new InvalidMACException();
+		}
+	}
+	
 	public static void verifyHexHmac(byte[] data, byte[] key, String mac) throws InvalidMACException {
 		verifyHmac(data, key, BinaryUtils.hexToBytes(mac));
 	}
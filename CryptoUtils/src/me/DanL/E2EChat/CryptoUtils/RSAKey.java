@@ -9,7 +9,6 @@ import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
 import java.security.SignatureException;
@@ -75,6 +74,20 @@ public class RSAKey {
 		loadKeysFromXML(xmlData, unsafe);
 	}
 	
+	/**
+	 * Makes a public key straight from its numbers, e.g. as stored by {@link #getModulus()} and {@link #getPublicExponent()}.
+	 * @param modulus - The modulus.
+	 * @param publicExp - The public exponent.
+	 * @throws MalformedKeyFileException - If they don't make a valid key.
+	 */
+	public RSAKey(BigInteger modulus, BigInteger publicExp) throws MalformedKeyFileException {
+		try {
+			pubKey = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, publicExp));
+		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+			throw new MalformedKeyFileException();
+		}
+	}
+	
 	private String getDataBetweenTags(String dataSet, String tagName) {
 		String[] splitRes = dataSet.split("<\\/?" + tagName + ">");
 		if (splitRes.length <= 1) {
@@ -381,19 +394,25 @@ public class RSAKey {
 		fos.close();
 	}
 	
+	/**
+	 * @return - The key's modulus.
+	 */
+	public BigInteger getModulus() {
+		return pubKey.getModulus();
+	}
+	
+	/**
+	 * @return - The key's public exponent.
+	 */
+	public BigInteger getPublicExponent() {
+		return pubKey.getPublicExponent();
+	}
+	
 	/**
 	 * Gets the SHA256 hash of the public modulus of this key.
 	 * @return
 	 */
 	public byte[] getKeyHash() {
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-			return md.digest(pubKey.getModulus().toByteArray());
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return null; //??
+		return CryptoEngines.sha256().digest(pubKey.getModulus().toByteArray());
 	}
 }
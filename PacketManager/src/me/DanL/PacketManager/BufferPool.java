@@ -0,0 +1,157 @@
+package me.DanL.PacketManager;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable byte buffers, sorted into power of two size classes, so the read and write paths don't have to
+ * allocate a fresh buffer for every packet.
+ *
+ * Every buffer from {@link #lease(int)} should be given back with {@link #release(ByteBuffer)} once nothing is using it.
+ * With debug mode on (-Dpacketmanager.bufferpool.debug=true, or {@link #setDebug(boolean)}) the pool remembers where each
+ * outstanding buffer was leased, so {@link #reportLeaks(PrintStream)} can point at whoever forgot.
+ * @author daniel
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * Direct buffers, for reading and writing socket channels without the JVM copying through its own temporary buffer.
+	 */
+	public static final BufferPool DIRECT = new BufferPool(true);
+
+	/**
+	 * Heap buffers, for the stream based paths that need a byte array.
+	 */
+	public static final BufferPool HEAP = new BufferPool(false);
+
+	private static final int SMALLEST_CLASS = 256;
+
+	private static final int CLASSES = 9; //256 bytes up to 64KiB.
+
+	/**
+	 * How many bytes of idle buffers each size class may hold onto. Anything released past this is left for the GC.
+	 */
+	private static final int BYTES_KEPT_PER_CLASS = 4 * 1024 * 1024;
+
+	private static volatile boolean debug = Boolean.getBoolean("packetmanager.bufferpool.debug");
+
+	private final boolean direct;
+
+	private final ArrayList<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+
+	private final AtomicInteger[] freeCounts = new AtomicInteger[CLASSES];
+
+	/**
+	 * Only filled in debug mode: every buffer currently leased, and a stack trace from where.
+	 */
+	private final Map<ByteBuffer, Throwable> leased = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+
+	private BufferPool(boolean useDirect) {
+		direct = useDirect;
+		for (int i = 0; i<CLASSES; i++) {
+			free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			freeCounts[i] = new AtomicInteger(0);
+		}
+	}
+
+	/**
+	 * Turns leak tracking on or off. Only buffers leased while it's on are tracked.
+	 * @param on - Whether to track leases.
+	 */
+	public static void setDebug(boolean on) {
+		debug = on;
+	}
+
+	/**
+	 * Gets a cleared buffer with at least size bytes of room. Its limit is set to size.
+	 * @param size - How many bytes are needed.
+	 * @return - The buffer.
+	 */
+	public ByteBuffer lease(int size) {
+		int sizeClass = classFor(size);
+		ByteBuffer buf = null;
+		if (sizeClass >= 0) {
+			buf = free.get(sizeClass).poll();
+			if (buf != null) {
+				freeCounts[sizeClass].decrementAndGet();
+			}
+			else {
+				buf = allocate(SMALLEST_CLASS << sizeClass);
+			}
+		}
+		else {
+			buf = ByteBuffer.allocate(size); //Too big to be worth pooling, and direct memory is slow to allocate.
+		}
+		buf.clear();
+		buf.limit(size);
+		if (debug) {
+			leased.put(buf, new Throwable("Leased here"));
+		}
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. It must not be touched again afterwards.
+	 * @param buf - A buffer from {@link #lease(int)}. Null is ignored.
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null) {
+			return;
+		}
+		if (debug && leased.remove(buf) == null) {
+			//Pooling it again would hand the same memory to two users, so leave it for the GC instead.
+			new Throwable("Buffer released twice, or leased before debug mode was on").printStackTrace();
+			return;
+		}
+		int sizeClass = classFor(buf.capacity());
+		if (sizeClass < 0 || buf.isDirect() != direct || (SMALLEST_CLASS << sizeClass) != buf.capacity()) {
+			return; //Not one of ours, so let the GC have it.
+		}
+		if (freeCounts[sizeClass].incrementAndGet() * (long) buf.capacity() > BYTES_KEPT_PER_CLASS) {
+			freeCounts[sizeClass].decrementAndGet();
+			return;
+		}
+		free.get(sizeClass).add(buf);
+	}
+
+	/**
+	 * Prints where every buffer that's still leased came from. Only knows about buffers leased in debug mode.
+	 * @param out - Where to print.
+	 * @return - How many buffers are still out.
+	 */
+	public int reportLeaks(PrintStream out) {
+		List<Throwable> traces;
+		synchronized (leased) {
+			traces = new ArrayList<Throwable>(leased.values());
+		}
+		for (Throwable t: traces) {
+			t.printStackTrace(out);
+		}
+		return traces.size();
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * @return - The size class that fits size, or -1 if it's too big for any of them.
+	 */
+	private static int classFor(int size) {
+		int sizeClass = 0;
+		int classSize = SMALLEST_CLASS;
+		while (classSize < size) {
+			classSize <<= 1;
+			sizeClass++;
+		}
+		return sizeClass < CLASSES ? sizeClass : -1;
+	}
+}
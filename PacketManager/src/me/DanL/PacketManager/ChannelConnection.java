@@ -0,0 +1,337 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link PacketConnection} over a non-blocking channel owned by a {@link Reactor}.
+ * Writes are attempted straight away on the sending thread, and anything the socket won't take yet is queued
+ * until the reactor sees the channel become writable again.
+ * Incoming packets are queued and handed to the receiver on the dispatch executor one at a time, so a connection's
+ * packets are always handled in the order they arrived while different connections run in parallel.
+ * Packets tagged with a stream ID are handed over with a {@link StreamConnection}, so replies go back on the same stream.
+ * @author daniel
+ *
+ */
+class ChannelConnection extends PacketConnection {
+
+	private final SocketChannel channel;
+
+	private final Reactor owner;
+
+	private SelectionKey key;
+
+	private final FrameDecoder decoder;
+
+	/**
+	 * Guarded by itself. Buffers waiting to be written, oldest first.
+	 */
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+	private boolean closeWhenFlushed = false;
+
+	/**
+	 * Guarded by outbound. Set when the connection needs closing but outbound is held, since closing calls back into the owner
+	 * (and from there the receiver), which mustn't happen with outbound held: the receiver may be waiting on locks of its own
+	 * that another thread holds while it's waiting on outbound to send something. Whoever holds outbound closes once it's let go.
+	 */
+	private boolean closePending = false;
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 * Once this many packets are waiting to be handled we stop reading from the socket until the backlog halves.
+	 */
+	private static final int MAX_QUEUED = 64;
+
+	/**
+	 * How many packets one run on the executor handles before giving its thread to another connection.
+	 */
+	private static final int BATCH = 16;
+
+	/**
+	 * Guarded by itself. Packets waiting for the receiver, oldest first.
+	 */
+	private final ArrayDeque<Packet> inbound = new ArrayDeque<Packet>();
+
+	private boolean draining = false;
+
+	private boolean readPaused = false;
+
+	ChannelConnection(SocketChannel sc, Reactor reactor, FrameDecoder frames) {
+		channel = sc;
+		owner = reactor;
+		decoder = frames;
+	}
+
+	FrameDecoder getDecoder() {
+		return decoder;
+	}
+
+	void setKey(SelectionKey k) {
+		key = k;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Queues a packet for the receiver. Only called on the reactor thread.
+	 * @param packet - The packet that just arrived.
+	 */
+	void deliver(Packet packet) {
+		boolean start;
+		synchronized (inbound) {
+			inbound.add(packet);
+			start = !draining;
+			draining = true;
+			if (inbound.size() >= MAX_QUEUED && !readPaused) {
+				readPaused = true;
+				owner.setReading(this, false);
+			}
+		}
+		if (start) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Hands the queued packets to the dispatch executor. Never runs them on this thread, whatever the executor's reject policy:
+	 * if it's full (or would make us run them ourselves) we stop reading from the socket and the reactor tries again shortly.
+	 * Called on the reactor thread, or from the end of {@link #drain()}.
+	 */
+	void schedule() {
+		Thread caller = Thread.currentThread();
+		AtomicBoolean handedOver = new AtomicBoolean(false);
+		try {
+			Connection.getDispatchExecutor().execute(() -> {
+				if (Thread.currentThread() == caller && !handedOver.get()) {
+					saturated(); //Being run by execute() itself, i.e. CALLER_RUNS. The reactor mustn't wait on a handler.
+					return;
+				}
+				drain();
+			});
+			handedOver.set(true);
+		}
+		catch (RejectedExecutionException e) {
+			saturated();
+		}
+	}
+
+	/**
+	 * The executor had no room for us, so stop reading until it does, and have the reactor try again shortly.
+	 */
+	private void saturated() {
+		boolean pause = false;
+		synchronized (inbound) {
+			if (!readPaused) {
+				readPaused = true;
+				pause = true;
+			}
+		}
+		if (pause) {
+			owner.setReading(this, false);
+		}
+		owner.retryLater(this);
+	}
+
+	/**
+	 * Hands queued packets to the receiver. Runs on the dispatch executor, and never on two threads at once.
+	 */
+	private void drain() {
+		for (int handled = 0; handled < BATCH; handled++) {
+			Packet packet;
+			boolean resume = false;
+			synchronized (inbound) {
+				packet = inbound.poll();
+				if (packet == null || closed.get()) {
+					inbound.clear();
+					draining = false;
+					return;
+				}
+				if (readPaused && inbound.size() <= MAX_QUEUED / 2) {
+					readPaused = false;
+					resume = true;
+				}
+			}
+			if (resume) {
+				owner.setReading(this, true);
+			}
+			try {
+				owner.getReceiver().getPacket(StreamConnection.of(this, packet.getStreamId()), packet);
+			}
+			catch (RuntimeException e) {
+				//A broken handler shouldn't take the thread down with it.
+				e.printStackTrace();
+				closeNow();
+			}
+		}
+		schedule(); //Still more to do, so go to the back of the queue.
+	}
+
+	@Override
+	public void send(String data, int streamId) throws IOException {
+		checkOpen();
+		queue(FrameDecoder.encode(data, streamId, BufferPool.DIRECT));
+	}
+
+	@Override
+	public void send(byte[] data, int streamId) throws IOException {
+		checkOpen();
+		queue(FrameDecoder.encode(data, streamId, BufferPool.DIRECT));
+	}
+
+	private void checkOpen() throws IOException {
+		if (!channel.isOpen()) {
+			throw new IOException("Connection closed.");
+		}
+	}
+
+	/**
+	 * Queues a frame to be written, and writes as much as it can straight away.
+	 * @param frame - Leased from {@link BufferPool#DIRECT}, and given back once it's written.
+	 */
+	private void queue(ByteBuffer frame) throws IOException {
+		boolean close;
+		synchronized (outbound) {
+			if (closeWhenFlushed) {
+				BufferPool.DIRECT.release(frame);
+				throw new IOException("Connection closing.");
+			}
+			outbound.add(frame);
+			if (!flushLocked()) {
+				owner.requestWrite(this);
+			}
+			close = takeClosePending();
+		}
+		if (close) {
+			closeNow();
+		}
+	}
+
+	/**
+	 * Writes as much of the outbound queue as the socket will currently take.
+	 * @return - True if the queue is now empty.
+	 */
+	boolean flush() {
+		boolean empty;
+		boolean close;
+		synchronized (outbound) {
+			empty = flushLocked();
+			close = takeClosePending();
+		}
+		if (close) {
+			closeNow();
+		}
+		return empty;
+	}
+
+	/**
+	 * Writes as much of the outbound queue as the socket will currently take. Outbound must be held; if the connection needs
+	 * closing afterwards it's left to the caller (see {@link #closePending}).
+	 * @return - True if the queue is now empty.
+	 */
+	private boolean flushLocked() {
+		try {
+			while (!outbound.isEmpty()) {
+				ByteBuffer head = outbound.peek();
+				channel.write(head);
+				if (head.hasRemaining()) {
+					return false; //Socket buffer is full, wait until the reactor says we can carry on.
+				}
+				BufferPool.DIRECT.release(outbound.poll());
+			}
+		}
+		catch (IOException e) {
+			//Other end has gone away, so nothing we've got queued is going anywhere.
+			releaseOutbound();
+			closePending = true;
+			return true;
+		}
+		if (closeWhenFlushed) {
+			closePending = true;
+		}
+		return true;
+	}
+
+	/**
+	 * @return - If the connection needs closing now that outbound's been let go. Outbound must be held.
+	 */
+	private boolean takeClosePending() {
+		boolean close = closePending;
+		closePending = false;
+		return close;
+	}
+
+	@Override
+	public void close() {
+		boolean close;
+		synchronized (outbound) {
+			closeWhenFlushed = true;
+			close = outbound.isEmpty();
+		}
+		if (close) {
+			closeNow();
+		}
+	}
+
+	/**
+	 * Closes the channel straight away, dropping anything not yet written. Never called with outbound held.
+	 */
+	void closeNow() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			channel.close(); //Also cancels the selection key.
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		synchronized (outbound) {
+			releaseOutbound();
+		}
+		owner.connectionClosed(this);
+	}
+
+	/**
+	 * Only called on the reactor thread once the connection is closed, so the decoder can't be in use.
+	 */
+	void releaseDecoder() {
+		decoder.release();
+	}
+
+	private void releaseOutbound() {
+		ByteBuffer buf;
+		while ((buf = outbound.poll()) != null) {
+			BufferPool.DIRECT.release(buf);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		synchronized (outbound) {
+			return channel.isOpen() && !closeWhenFlushed;
+		}
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		try {
+			return channel.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+}
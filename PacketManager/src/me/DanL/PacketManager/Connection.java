@@ -1,13 +1,49 @@
 package me.DanL.PacketManager;
 import java.io.Console;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import me.DanL.PacketManager.DispatchExecutors.RejectPolicy;
 
 public class Connection {
 	
+	/**
+	 * Where {@link DataReceiver} callbacks are run. Created on first use so programs that only send never start it.
+	 */
+	private static volatile ExecutorService dispatchExecutor = null;
+	
+	/**
+	 * Sets the executor that {@link DataReceiver} callbacks are run on, by both this class and every {@link PacketServer}.
+	 * See {@link DispatchExecutors} for some ready made ones.
+	 * @param executor - The executor to use from now on. The old one is left running for anything already queued on it.
+	 */
+	public static void setDispatchExecutor(ExecutorService executor) {
+		dispatchExecutor = executor;
+	}
+	
+	/**
+	 * @return - The executor callbacks are run on. Defaults to a pool of twice the core count, refusing callbacks once 1024 are waiting.
+	 */
+	public static ExecutorService getDispatchExecutor() {
+		ExecutorService ex = dispatchExecutor;
+		if (ex == null) {
+			synchronized (Connection.class) {
+				if (dispatchExecutor == null) {
+					dispatchExecutor = DispatchExecutors.platformPool(Runtime.getRuntime().availableProcessors() * 2, 1024, RejectPolicy.DROP);
+				}
+				ex = dispatchExecutor;
+			}
+		}
+		return ex;
+	}
+	
 	/**
 	 * Sends a packet. Does not listen for a response: it will close the socket as soon as the packet is sent.
 	 * @param ip - What IP you want to send the packet to.
@@ -24,17 +60,50 @@ public class Connection {
 	
 	/**
 	 * Sends a packet using the already connected socket. Will not close the socket.
+	 * The packet is framed with its length, so the other end gets it back in one piece from {@link #readDat(Socket, int)}.
 	 * @param dataTransfer
 	 * @param data
 	 * @throws IOException 
 	 */
 	public static void send(Socket dataTransfer, String data) throws IOException {
-		dataTransfer.getOutputStream().write(data.getBytes());
+		send(dataTransfer, data, Packet.NO_STREAM);
 	}
 	
 	/**
-	 * Waits until a connection is found, then calls the {@link DataReceiver#getData(Socket, String)} of the passed DataReceiver.
-	 * The method is called in a seperate thread, so exercise caution when handling objects etc.
+	 * Sends a packet tagged with a stream ID using the already connected socket. Will not close the socket.
+	 * @param dataTransfer - The socket to send down.
+	 * @param data - What data is in the packet.
+	 * @param streamId - The stream to tag it with, or {@link Packet#NO_STREAM}.
+	 * @throws IOException
+	 */
+	public static void send(Socket dataTransfer, String data, int streamId) throws IOException {
+		write(dataTransfer, FrameDecoder.encode(data, streamId, BufferPool.HEAP));
+	}
+	
+	/**
+	 * Sends a binary packet tagged with a stream ID using the already connected socket. Will not close the socket.
+	 * @param dataTransfer - The socket to send down.
+	 * @param data - The packet.
+	 * @param streamId - The stream to tag it with, or {@link Packet#NO_STREAM}.
+	 * @throws IOException
+	 */
+	public static void send(Socket dataTransfer, byte[] data, int streamId) throws IOException {
+		write(dataTransfer, FrameDecoder.encode(data, streamId, BufferPool.HEAP));
+	}
+	
+	private static void write(Socket dataTransfer, ByteBuffer frame) throws IOException {
+		try {
+			dataTransfer.getOutputStream().write(frame.array(), frame.arrayOffset(), frame.limit());
+		}
+		finally {
+			BufferPool.HEAP.release(frame);
+		}
+	}
+	
+	/**
+	 * Waits until a connection is found, then calls the {@link DataReceiver#getPacket(PacketConnection, Packet)} of the passed DataReceiver.
+	 * If thread is true the method is called on the dispatch executor (see {@link #setDispatchExecutor(ExecutorService)}), so exercise caution when handling objects etc.
+	 * This binds and closes the listening socket each time, so use a {@link PacketServer} for anything long lived.
 	 * @param listenPort - What port to listen on? Set above 1024 to avoid clashes.
 	 * @param maxDataLen - What's the maximum amount of data to read off the socket?
 	 * @param onPacketGet - The object we use to hold the method we call when we get a packet.
@@ -47,41 +116,84 @@ public class Connection {
 		if (thread) {
 			Runnable r = () -> {
 				try {
-					onPacketGet.getData(clientSock, new String(readDat(clientSock, maxDataLen)));
+					Packet p = readPacket(clientSock, maxDataLen);
+					onPacketGet.getPacket(StreamConnection.of(new SocketConnection(clientSock), p.getStreamId()), p);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			};
-			Thread t = new Thread(r);
-			t.run();
+			try {
+				getDispatchExecutor().execute(r);
+			}
+			catch (RejectedExecutionException e) {
+				clientSock.close(); //Too busy, so shed this client.
+			}
 		}
 		else {
-			onPacketGet.getData(clientSock, new String(readDat(clientSock, maxDataLen)));
+			Packet p = readPacket(clientSock, maxDataLen);
+			onPacketGet.getPacket(StreamConnection.of(new SocketConnection(clientSock), p.getStreamId()), p);
 		}
 		ss.close();
 	}
 	
 	/**
 	 * Since this is a faff and we do it multiple times, define a seperate method.
+	 * Reads exactly one packet sent with {@link #send(Socket, String)}, however many reads that takes.
 	 * @param s - The socket we're getting data from.
-	 * @param maxLen - The maximum length of the data to download.
+	 * @param maxLen - The maximum length of the data to download. Only the actual packet length is allocated.
 	 * @return - The raw data from the socket.
-	 * @throws IOException 
+	 * @throws IOException - If the socket closes part way through a packet, or the packet is longer than maxLen.
 	 */
 	public static byte[] readDat(Socket s, int maxLen) throws IOException {
-		InputStream bos = s.getInputStream();
-		byte[] rawData = new byte[maxLen];
-		int howMuch = bos.read(rawData);
-		byte[] truncated = new byte[howMuch];
-		for (int i = 0; i<howMuch; i++) {
-			truncated[i] = rawData[i]; //Trims the trailing null bytes off truncated.
+		return readPacket(s, maxLen).getData();
+	}
+	
+	/**
+	 * Like {@link #readDat(Socket, int)}, but also says which stream the packet was tagged with.
+	 * @param s - The socket we're getting data from.
+	 * @param maxLen - The maximum length of the data to download.
+	 * @return - The packet.
+	 * @throws IOException - If the socket closes part way through a packet, or the packet is longer than maxLen.
+	 */
+	public static Packet readPacket(Socket s, int maxLen) throws IOException {
+		InputStream in = s.getInputStream();
+		int lenField;
+		int stream = Packet.NO_STREAM;
+		//The header's read into a pooled buffer, and the body straight into the array the packet keeps, so nothing else is allocated.
+		ByteBuffer header = BufferPool.HEAP.lease(FrameDecoder.HEADER_LEN + FrameDecoder.STREAM_ID_LEN);
+		try {
+			readFully(in, header.array(), header.arrayOffset(), FrameDecoder.HEADER_LEN);
+			lenField = header.getInt(0);
+			if ((lenField & FrameDecoder.STREAM_FLAG) != 0) {
+				readFully(in, header.array(), header.arrayOffset() + FrameDecoder.HEADER_LEN, FrameDecoder.STREAM_ID_LEN);
+				stream = header.getInt(FrameDecoder.HEADER_LEN);
+			}
+		}
+		finally {
+			BufferPool.HEAP.release(header);
+		}
+		int len = lenField & ~FrameDecoder.STREAM_FLAG;
+		if (len > maxLen) {
+			throw new IOException("Packet of length " + len + " is outside the allowed range.");
+		}
+		byte[] packet = new byte[len];
+		readFully(in, packet, 0, len);
+		return new Packet(packet, stream);
+	}
+	
+	/**
+	 * Reads exactly len bytes.
+	 * @throws EOFException - If the stream ends first.
+	 */
+	private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		if (in.readNBytes(b, off, len) < len) {
+			throw new EOFException("Connection closed part way through a packet.");
 		}
-		return truncated;
 	}
 	
 	/**
 	 * Sends some data, and then calls a function on response.
-	 * Function is called in a seperate thread, so be careful!
+	 * Function is called on the dispatch executor, so be careful! The socket is closed once it returns.
 	 * @param ip - The IP to connect to.
 	 * @param port - The port to connect to.
 	 * @param maxDataLen - The maximum amount of data to receive.
@@ -94,10 +206,18 @@ public class Connection {
 		Socket commSoc = new Socket(ip, port);
 		send(commSoc, data);
 		String gotBack = new String(readDat(commSoc, maxDataLen));
-		Runnable r = () -> onReplyGet.getData(commSoc, gotBack);
-		Thread t = new Thread(r);
-		t.run();
-		commSoc.close();
+		SocketConnection replyConn = new SocketConnection(commSoc);
+		Runnable r = () -> {
+			onReplyGet.getData(replyConn, gotBack);
+			replyConn.close();
+		};
+		try {
+			getDispatchExecutor().execute(r);
+		}
+		catch (RejectedExecutionException e) {
+			commSoc.close();
+			throw new IOException("Too busy to handle the reply.", e);
+		}
 	}
 	
 	/**
@@ -108,7 +228,7 @@ public class Connection {
 	private static class TestRecv implements DataReceiver{
 
 		@Override
-		public void getData(Socket source, String data) {
+		public void getData(PacketConnection source, String data) {
 			System.out.println("Got data: " + data);
 		}
 		
@@ -1,12 +1,29 @@
 package me.DanL.PacketManager;
-import java.net.Socket;
 
 public interface DataReceiver {
 	/**
-	 * Run by {@link Connection#onRecv(int, int, DataReceiver)} when it gets a packet.
+	 * Run by {@link Connection#onRecv(int, int, DataReceiver, boolean)} or a {@link PacketServer} when it gets a packet.
 	 * Note that the method will block until we're done, so consider starting a thread and returning instantly from here.
-	 * @param source - The client socket that we got this data from. It is your responsibility to close this once you're done with it.
+	 * @param source - The connection that we got this data from. It is your responsibility to close this once you're done with it.
 	 * @param data - The string representation of the data we've received.
 	 */
-	abstract void getData(Socket source, String data);
+	abstract void getData(PacketConnection source, String data);
+
+	/**
+	 * Run instead of {@link #getData(PacketConnection, String)} when the packet's raw bytes are to hand, for receivers that
+	 * can read them without decoding the whole packet to a string first. By default it does just that and calls getData.
+	 * @param source - The connection that we got this data from.
+	 * @param packet - The packet. Its bytes aren't copied, so don't modify them.
+	 */
+	default void getPacket(PacketConnection source, Packet packet) {
+		getData(source, packet.toString());
+	}
+
+	/**
+	 * Run by a {@link PacketServer} once a connection it was watching has closed, whichever end closed it.
+	 * Use this to tidy up anything you've attached to the connection. Does nothing by default.
+	 * @param source - The connection that has just closed.
+	 */
+	default void connectionClosed(PacketConnection source) {
+	}
 }
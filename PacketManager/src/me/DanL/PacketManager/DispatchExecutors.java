@@ -0,0 +1,179 @@
+package me.DanL.PacketManager;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ready made executors for running {@link DataReceiver} callbacks. Pass one to {@link Connection#setDispatchExecutor(ExecutorService)}.
+ * Both kinds cap how much work can be waiting, and use a {@link RejectPolicy} to decide what happens past that.
+ * @author daniel
+ *
+ */
+public class DispatchExecutors {
+
+	/**
+	 * What to do with a packet when the executor is already full.
+	 */
+	public enum RejectPolicy {
+		/**
+		 * Run the callback on the thread that received the packet, slowing reading down to the speed of handling.
+		 * Only for blocking use ({@link Connection#onRecv(int, int, DataReceiver, boolean)}): a {@link PacketServer} never runs
+		 * callbacks on a reactor thread, and treats this the same as DROP.
+		 */
+		CALLER_RUNS,
+		/**
+		 * Refuse the packet. A blocking {@link Connection#onRecv(int, int, DataReceiver, boolean)} closes the connection it came
+		 * from; a {@link PacketServer} stops reading from that connection and hands the packet over again shortly.
+		 */
+		DROP
+	}
+
+	/**
+	 * Creates a fixed pool of platform threads.
+	 * @param threads - How many callbacks can run at once. Set a bit above the core count if callbacks touch the disk.
+	 * @param queueDepth - How many callbacks can be waiting for a thread before the reject policy kicks in.
+	 * @param policy - What happens once the queue is full.
+	 * @return - The pool. Its threads are daemons, so it won't keep the program alive on its own.
+	 */
+	public static ExecutorService platformPool(int threads, int queueDepth, RejectPolicy policy) {
+		RejectedExecutionHandler onFull = policy == RejectPolicy.CALLER_RUNS ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueDepth), namedDaemons("PacketManager-dispatch-"), onFull);
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread for every task, so a callback blocked on I/O costs almost nothing.
+	 * Virtual threads need Java 21, so on anything older this quietly falls back to a platform pool of twice the core count.
+	 * @param maxInFlight - How many callbacks can be running at once before the reject policy kicks in.
+	 * @param policy - What happens once that many are running.
+	 * @return - The executor.
+	 */
+	public static ExecutorService virtualThreads(int maxInFlight, RejectPolicy policy) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new Bounded((ExecutorService) factory.invoke(null), maxInFlight, policy);
+		}
+		catch (ReflectiveOperationException e) {
+			return platformPool(Runtime.getRuntime().availableProcessors() * 2, maxInFlight, policy);
+		}
+	}
+
+	/**
+	 * @return - If {@link #virtualThreads(int, RejectPolicy)} will really use virtual threads on this JVM.
+	 */
+	public static boolean virtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param executor - An executor from this class.
+	 * @return - How many callbacks it has running or waiting, or -1 if it isn't one of ours.
+	 */
+	public static int backlog(ExecutorService executor) {
+		if (executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			return pool.getActiveCount() + pool.getQueue().size();
+		}
+		if (executor instanceof Bounded) {
+			Bounded b = (Bounded) executor;
+			return b.maxInFlight - b.slots.availablePermits();
+		}
+		return -1;
+	}
+
+	private static ThreadFactory namedDaemons(String prefix) {
+		AtomicInteger count = new AtomicInteger(0);
+		return (r) -> {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Puts a cap on how many tasks an otherwise unbounded executor can have running.
+	 */
+	private static class Bounded extends AbstractExecutorService {
+
+		private final ExecutorService inner;
+
+		private final Semaphore slots;
+
+		private final RejectPolicy policy;
+
+		private final int maxInFlight;
+
+		private Bounded(ExecutorService wrapped, int maxInFlight, RejectPolicy onFull) {
+			inner = wrapped;
+			this.maxInFlight = maxInFlight;
+			slots = new Semaphore(maxInFlight);
+			policy = onFull;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			if (!slots.tryAcquire()) {
+				if (policy == RejectPolicy.CALLER_RUNS) {
+					command.run();
+					return;
+				}
+				throw new RejectedExecutionException("Too many callbacks already running.");
+			}
+			try {
+				inner.execute(() -> {
+					try {
+						command.run();
+					}
+					finally {
+						slots.release();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				slots.release();
+				throw e;
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			inner.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return inner.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return inner.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return inner.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return inner.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reassembles length prefixed frames (a 4 byte big-endian length followed by that many bytes of packet) out of
+ * whatever chunks the network happens to deliver. One of these is kept per connection, since a frame can be split
+ * over any number of reads and one read can hold any number of frames.
+ *
+ * If the top bit of the length is set ({@link #STREAM_FLAG}), a 4 byte stream ID follows the length, before the packet.
+ * Replies carry the ID of the request they answer, so several requests can share a connection and be answered in any order.
+ * @author daniel
+ *
+ */
+public class FrameDecoder {
+
+	/**
+	 * How many bytes the length header takes up.
+	 */
+	public static final int HEADER_LEN = 4;
+
+	/**
+	 * Set in the length header of frames that carry a stream ID.
+	 */
+	public static final int STREAM_FLAG = 0x80000000;
+
+	/**
+	 * How many bytes a stream ID takes up.
+	 */
+	public static final int STREAM_ID_LEN = 4;
+
+	/**
+	 * Encoders aren't thread safe but are costly to make, so keep one per thread.
+	 */
+	private static final ThreadLocal<CharsetEncoder> ENCODERS = ThreadLocal.withInitial(() -> Charset.defaultCharset().newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+	private final int maxFrameLen;
+
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_LEN + STREAM_ID_LEN);
+
+	/**
+	 * The body of the frame currently being reassembled, or null if we're still waiting on a header.
+	 * It wraps the array the finished packet will own, so a frame split over several reads is copied once, straight into place,
+	 * with no buffer in between.
+	 */
+	private ByteBuffer body = null;
+
+	private int bodyStream = Packet.NO_STREAM;
+
+	/**
+	 * @param maxFrameLen - The longest frame we'll accept. Anything longer is treated as a broken connection.
+	 */
+	public FrameDecoder(int maxFrameLen) {
+		this.maxFrameLen = maxFrameLen;
+	}
+
+	/**
+	 * Takes as much of in as is needed to finish the next frame.
+	 * Call repeatedly until it returns null, then wait for more data.
+	 * @param in - Freshly read data, in read mode. Anything not used yet is left in here.
+	 * @return - The next complete packet, along with its stream ID, or null if more data is needed.
+	 * @throws IOException - If the other end sent a frame longer than we're willing to accept.
+	 */
+	public Packet next(ByteBuffer in) throws IOException {
+		if (body == null) {
+			if (header.position() == 0 && in.remaining() >= HEADER_LEN) {
+				//Fast path: the whole frame may be sitting in the read buffer already.
+				int lenField = in.getInt(in.position());
+				int headerLen = headerLen(lenField);
+				int len = checkLen(lenField & ~STREAM_FLAG);
+				if (in.remaining() >= headerLen + len) {
+					int stream = headerLen == HEADER_LEN ? Packet.NO_STREAM : in.getInt(in.position() + HEADER_LEN);
+					in.position(in.position() + headerLen);
+					byte[] packet = new byte[len];
+					in.get(packet);
+					return new Packet(packet, stream);
+				}
+			}
+			if (!fillHeader(in, HEADER_LEN)) {
+				return null;
+			}
+			int lenField = header.getInt(0);
+			int headerLen = headerLen(lenField);
+			if (!fillHeader(in, headerLen)) {
+				return null;
+			}
+			int len = checkLen(lenField & ~STREAM_FLAG);
+			bodyStream = headerLen == HEADER_LEN ? Packet.NO_STREAM : header.getInt(HEADER_LEN);
+			header.clear();
+			body = ByteBuffer.wrap(new byte[len]);
+		}
+		int take = Math.min(body.remaining(), in.remaining());
+		int oldLimit = in.limit();
+		in.limit(in.position() + take);
+		body.put(in);
+		in.limit(oldLimit);
+		if (body.hasRemaining()) {
+			return null;
+		}
+		byte[] packet = body.array();
+		body = null;
+		return new Packet(packet, bodyStream);
+	}
+
+	/**
+	 * Copies header bytes out of in until we've got upTo of them.
+	 * @return - False if in ran out first.
+	 */
+	private boolean fillHeader(ByteBuffer in, int upTo) {
+		while (header.position() < upTo && in.hasRemaining()) {
+			header.put(in.get());
+		}
+		return header.position() >= upTo;
+	}
+
+	private static int headerLen(int lenField) {
+		return (lenField & STREAM_FLAG) != 0 ? HEADER_LEN + STREAM_ID_LEN : HEADER_LEN;
+	}
+
+	/**
+	 * Drops any half finished frame. Call once the connection is closed.
+	 */
+	public void release() {
+		body = null;
+		header.clear();
+	}
+
+	/**
+	 * @return - If we're part way through a frame.
+	 */
+	public boolean hasPartialFrame() {
+		return body != null || header.position() != 0;
+	}
+
+	private int checkLen(int len) throws IOException {
+		if (len < 0 || len > maxFrameLen) {
+			throw new IOException("Frame of length " + len + " is outside the allowed range.");
+		}
+		return len;
+	}
+
+	/**
+	 * Wraps a packet up as a frame ready to be written.
+	 * @param packet - The raw packet.
+	 * @return - The length header followed by the packet.
+	 */
+	public static byte[] encode(byte[] packet) {
+		byte[] frame = new byte[HEADER_LEN + packet.length];
+		ByteBuffer.wrap(frame).putInt(packet.length).put(packet);
+		return frame;
+	}
+
+	/**
+	 * Encodes a packet straight into a frame in a pooled buffer, without going through an intermediate byte array.
+	 * @param packet - The packet, which is encoded with the platform charset like {@link String#getBytes()}.
+	 * @param pool - Where to lease the buffer from. The caller must release it once it's been written.
+	 * @return - The frame, flipped ready for writing.
+	 */
+	public static ByteBuffer encode(String packet, BufferPool pool) {
+		return encode(packet, Packet.NO_STREAM, pool);
+	}
+
+	/**
+	 * Encodes a packet tagged with a stream ID straight into a frame in a pooled buffer.
+	 * @param packet - The packet, which is encoded with the platform charset like {@link String#getBytes()}.
+	 * @param streamId - The stream to tag it with. {@link Packet#NO_STREAM} leaves it untagged.
+	 * @param pool - Where to lease the buffer from. The caller must release it once it's been written.
+	 * @return - The frame, flipped ready for writing.
+	 */
+	public static ByteBuffer encode(String packet, int streamId, BufferPool pool) {
+		CharsetEncoder enc = ENCODERS.get();
+		enc.reset();
+		int headerLen = streamId == Packet.NO_STREAM ? HEADER_LEN : HEADER_LEN + STREAM_ID_LEN;
+		//Sized for one byte a character, which fits the ASCII and base64 most packets are, rather than the worst case (three
+		//times that for UTF-8), which would push anything over about 21KB past the biggest size class and out of the pool.
+		ByteBuffer frame = pool.lease(headerLen + packet.length());
+		frame.limit(frame.capacity()); //Size classes round up, so there's usually some room spare.
+		frame.position(headerLen);
+		CharBuffer in = CharBuffer.wrap(packet);
+		while (enc.encode(in, frame, true).isOverflow()) {
+			frame = grow(frame, pool);
+		}
+		while (enc.flush(frame).isOverflow()) {
+			frame = grow(frame, pool);
+		}
+		if (streamId == Packet.NO_STREAM) {
+			frame.putInt(0, frame.position() - headerLen);
+		}
+		else {
+			frame.putInt(0, (frame.position() - headerLen) | STREAM_FLAG);
+			frame.putInt(HEADER_LEN, streamId);
+		}
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Swaps a frame that's being encoded for one twice the size, with the same contents.
+	 * @return - The new frame. The old one's given back to the pool.
+	 */
+	private static ByteBuffer grow(ByteBuffer frame, BufferPool pool) {
+		ByteBuffer bigger = pool.lease(frame.capacity() * 2);
+		bigger.limit(bigger.capacity());
+		frame.flip();
+		bigger.put(frame);
+		pool.release(frame);
+		return bigger;
+	}
+
+	/**
+	 * Frames a binary packet, tagged with a stream ID, in a pooled buffer.
+	 * @param packet - The packet.
+	 * @param streamId - The stream to tag it with. {@link Packet#NO_STREAM} leaves it untagged.
+	 * @param pool - Where to lease the buffer from. The caller must release it once it's been written.
+	 * @return - The frame, flipped ready for writing.
+	 */
+	public static ByteBuffer encode(byte[] packet, int streamId, BufferPool pool) {
+		int headerLen = streamId == Packet.NO_STREAM ? HEADER_LEN : HEADER_LEN + STREAM_ID_LEN;
+		ByteBuffer frame = pool.lease(headerLen + packet.length);
+		if (streamId == Packet.NO_STREAM) {
+			frame.putInt(packet.length);
+		}
+		else {
+			frame.putInt(packet.length | STREAM_FLAG);
+			frame.putInt(streamId);
+		}
+		frame.put(packet);
+		frame.flip();
+		return frame;
+	}
+}
@@ -0,0 +1,58 @@
+package me.DanL.PacketManager;
+
+/**
+ * One packet received from the other end of a connection.
+ * @author daniel
+ *
+ */
+public class Packet {
+
+	/**
+	 * The stream ID of packets that weren't tagged with one.
+	 */
+	public static final int NO_STREAM = 0;
+
+	//Requests only ever use positive stream IDs. Negative ones are left for packets the other end sends without being asked.
+
+	private final byte[] data;
+
+	private final int streamId;
+
+	/**
+	 * @param raw - The packet's bytes, without any framing.
+	 */
+	public Packet(byte[] raw) {
+		this(raw, NO_STREAM);
+	}
+
+	/**
+	 * @param raw - The packet's bytes, without any framing.
+	 * @param streamId - The stream ID it was tagged with, or {@link #NO_STREAM}.
+	 */
+	public Packet(byte[] raw, int streamId) {
+		data = raw;
+		this.streamId = streamId;
+	}
+
+	/**
+	 * @return - The raw bytes of the packet. Not copied, so don't modify them.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return - The stream ID the packet was tagged with, which a reply should be tagged with too. {@link #NO_STREAM} if it wasn't tagged.
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * @return - The packet decoded as a string.
+	 */
+	@Override
+	public String toString() {
+		return new String(data);
+	}
+}
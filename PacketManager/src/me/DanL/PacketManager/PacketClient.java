@@ -0,0 +1,313 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A non-blocking request/response client over one connected socket. Each call to {@link #request(String, long)}
+ * returns with a future for the reply as soon as the request is written (or, if maxInFlight requests are already
+ * waiting, once one of them finishes), so several requests can be in flight down the same connection.
+ *
+ * The other end must answer every request with exactly one packet. Unless the client is multiplexed, replies must also come back
+ * in the order the requests were sent; a multiplexed client tags each request with a stream ID instead, so replies can come back in any order.
+ * A multiplexed client can also be sent packets the other end pushes unprompted, on negative stream IDs: see {@link #setPushHandler(Consumer)}.
+ * Futures are completed on this client's reader thread, so use the *Async methods of CompletableFuture for slow follow-on work.
+ * A request that times out or is cancelled gives its in-flight slot back straight away, and its reply is thrown away if it ever comes.
+ * @author daniel
+ *
+ */
+public class PacketClient {
+
+	private final Socket sock;
+
+	private final int maxPacketLen;
+
+	/**
+	 * Stands in for a request nobody's waiting on any more, in a client that isn't multiplexed, so the reply it's still owed
+	 * is matched up with it rather than with the request after it.
+	 */
+	private static final CompletableFuture<Packet> ABANDONED = new CompletableFuture<Packet>();
+
+	/**
+	 * One permit per request that can be waiting on a reply.
+	 */
+	private final Semaphore inFlight;
+
+	private final int maxInFlight;
+
+	private final boolean multiplexed;
+
+	/**
+	 * Guarded by itself. Requests that have been written but not answered, by stream ID, oldest first.
+	 */
+	private final LinkedHashMap<Integer, CompletableFuture<Packet>> awaiting = new LinkedHashMap<Integer, CompletableFuture<Packet>>();
+
+	/**
+	 * Guarded by awaiting. The stream ID last handed out.
+	 */
+	private int lastStream = Packet.NO_STREAM;
+
+	/**
+	 * Guarded by awaiting. How many entries in awaiting are {@link #ABANDONED}.
+	 */
+	private int abandoned = 0;
+
+	private volatile IOException failure = null;
+
+	private volatile Consumer<Packet> pushHandler = null;
+
+	/**
+	 * Takes over an already connected socket, expecting replies in order. Nothing else should read from or write to it afterwards.
+	 * @param connected - The socket.
+	 * @param maxPacketLen - The longest reply we'll accept.
+	 * @param maxInFlight - How many requests can be waiting on replies at once.
+	 */
+	public PacketClient(Socket connected, int maxPacketLen, int maxInFlight) {
+		this(connected, maxPacketLen, maxInFlight, false);
+	}
+
+	/**
+	 * Takes over an already connected socket. Nothing else should read from or write to it afterwards.
+	 * @param connected - The socket.
+	 * @param maxPacketLen - The longest reply we'll accept.
+	 * @param maxInFlight - How many requests can be waiting on replies at once.
+	 * @param multiplex - Whether to tag requests with stream IDs, so the other end can answer them out of order.
+	 */
+	public PacketClient(Socket connected, int maxPacketLen, int maxInFlight, boolean multiplex) {
+		sock = connected;
+		multiplexed = multiplex;
+		this.maxPacketLen = maxPacketLen;
+		this.maxInFlight = maxInFlight;
+		inFlight = new Semaphore(maxInFlight);
+		Thread reader = new Thread(this::readLoop, "PacketClient-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sends a request.
+	 * @param data - The packet to send.
+	 * @param timeoutMillis - How long to wait for the reply, including any wait for an in-flight slot.
+	 * @return - A future for the reply. Fails with a TimeoutException past the deadline, or an IOException if the connection dies.
+	 */
+	public CompletableFuture<Packet> request(String data, long timeoutMillis) {
+		return request(() -> data, timeoutMillis);
+	}
+
+	/**
+	 * Sends a request whose contents are only worked out once it's its turn to be written.
+	 * Requests are written in the order their builders run, which is handy when each packet has to carry an increasing counter.
+	 * @param builder - Makes the packet. Called at most once, with the write lock held, so keep it quick.
+	 * @param timeoutMillis - How long to wait for the reply, including any wait for an in-flight slot.
+	 * @return - A future for the reply. Cancelling it frees its in-flight slot, and the reply is thrown away if it arrives.
+	 */
+	public CompletableFuture<Packet> request(Supplier<String> builder, long timeoutMillis) {
+		return submit(stream -> Connection.send(sock, builder.get(), stream), timeoutMillis);
+	}
+
+	/**
+	 * Like {@link #request(Supplier, long)}, for a binary packet.
+	 * @param builder - Makes the packet. Called at most once, with the write lock held, so keep it quick.
+	 * @param timeoutMillis - How long to wait for the reply, including any wait for an in-flight slot.
+	 * @return - A future for the reply.
+	 */
+	public CompletableFuture<Packet> requestBytes(Supplier<byte[]> builder, long timeoutMillis) {
+		return submit(stream -> Connection.send(sock, builder.get(), stream), timeoutMillis);
+	}
+
+	private CompletableFuture<Packet> submit(FrameWriter writer, long timeoutMillis) {
+		CompletableFuture<Packet> reply = new CompletableFuture<Packet>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try {
+			if (!inFlight.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				reply.completeExceptionally(new TimeoutException("Too many requests already waiting on replies."));
+				return reply;
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reply.completeExceptionally(e);
+			return reply;
+		}
+		int stream;
+		try {
+			synchronized (awaiting) {
+				if (failure != null) {
+					throw failure;
+				}
+				stream = nextStream();
+				writer.write(multiplexed ? stream : Packet.NO_STREAM);
+				awaiting.put(stream, reply);
+			}
+		}
+		catch (IOException e) {
+			inFlight.release();
+			fail(e);
+			reply.completeExceptionally(e);
+			return reply;
+		}
+		reply.whenComplete((p, e) -> {
+			if (e != null) {
+				abandon(stream, reply); //Timed out or cancelled.
+			}
+		});
+		return reply.orTimeout(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops waiting on a request that timed out or was cancelled, and gives its in-flight slot back.
+	 * Does nothing if it's already been answered, or the connection's failed (either of which gives the slot back themselves).
+	 */
+	private void abandon(int stream, CompletableFuture<Packet> reply) {
+		boolean stalled = false;
+		synchronized (awaiting) {
+			if (multiplexed) {
+				if (!awaiting.remove(stream, reply)) {
+					return;
+				}
+			}
+			else {
+				//The reply's still coming, in its turn, so keep its place in the queue.
+				if (!awaiting.replace(stream, reply, ABANDONED)) {
+					return;
+				}
+				stalled = ++abandoned > maxInFlight;
+			}
+		}
+		inFlight.release();
+		if (stalled) {
+			//More requests have gone unanswered than could ever be in flight at once, so the other end has stopped answering.
+			fail(new IOException("Too many requests went unanswered."));
+		}
+	}
+
+	/**
+	 * Sets what's done with packets the other end sends on a negative stream ID, without a request to answer.
+	 * Without a handler they're thrown away. Only multiplexed clients can tell these apart from replies.
+	 * @param handler - Called on the reader thread with each pushed packet, so keep it quick. If it throws, that push is dropped.
+	 */
+	public void setPushHandler(Consumer<Packet> handler) {
+		pushHandler = handler;
+	}
+
+	/**
+	 * @return - If the connection is still usable.
+	 */
+	public boolean isOpen() {
+		return failure == null;
+	}
+
+	/**
+	 * Closes the connection. Anything still waiting on a reply fails with an IOException.
+	 */
+	public void close() {
+		fail(new IOException("Client closed."));
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				Packet reply = Connection.readPacket(sock, maxPacketLen);
+				if (multiplexed && reply.getStreamId() < 0) {
+					Consumer<Packet> handler = pushHandler;
+					if (handler != null) {
+						try {
+							handler.accept(reply);
+						}
+						catch (RuntimeException e) {
+							//A push the handler couldn't make sense of. Losing it is better than losing the connection.
+							e.printStackTrace();
+						}
+					}
+					continue;
+				}
+				CompletableFuture<Packet> waiting;
+				synchronized (awaiting) {
+					waiting = multiplexed ? awaiting.remove(reply.getStreamId()) : oldest();
+					if (waiting == ABANDONED) {
+						abandoned--;
+						continue; //Its request timed out, and its slot's already been given back.
+					}
+				}
+				if (waiting == null) {
+					if (multiplexed) {
+						continue; //Most likely the answer to a request that timed out and was forgotten.
+					}
+					throw new IOException("Got a reply to a request that was never sent.");
+				}
+				inFlight.release();
+				waiting.complete(reply);
+			}
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+		catch (Throwable t) {
+			//Nothing else is reading, so don't leave the connection looking healthy when it's not.
+			fail(new IOException("Reader thread died.", t));
+			throw t;
+		}
+	}
+
+	/**
+	 * @return - A stream ID that isn't in use. Only called with awaiting locked.
+	 */
+	private int nextStream() {
+		do {
+			lastStream = lastStream == Integer.MAX_VALUE ? 1 : lastStream + 1;
+		} while (awaiting.containsKey(lastStream));
+		return lastStream;
+	}
+
+	/**
+	 * Takes the oldest unanswered request. Only called with awaiting locked.
+	 */
+	private CompletableFuture<Packet> oldest() {
+		Iterator<CompletableFuture<Packet>> it = awaiting.values().iterator();
+		if (!it.hasNext()) {
+			return null;
+		}
+		CompletableFuture<Packet> first = it.next();
+		it.remove();
+		return first;
+	}
+
+	/**
+	 * Writes a request down the socket, tagged with the given stream.
+	 */
+	private interface FrameWriter {
+		void write(int streamId) throws IOException;
+	}
+
+	private void fail(IOException why) {
+		ArrayList<CompletableFuture<Packet>> orphans;
+		synchronized (awaiting) {
+			if (failure == null) {
+				failure = why;
+			}
+			orphans = new ArrayList<CompletableFuture<Packet>>(awaiting.values());
+			awaiting.clear();
+			abandoned = 0;
+		}
+		try {
+			sock.close();
+		} catch (IOException e) {
+			//Already closed.
+		}
+		for (CompletableFuture<Packet> f: orphans) {
+			if (f != ABANDONED) {
+				inFlight.release();
+				f.completeExceptionally(why);
+			}
+		}
+	}
+}
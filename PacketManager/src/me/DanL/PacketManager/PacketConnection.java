@@ -0,0 +1,90 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * A handle on one client connection, passed to a {@link DataReceiver} along with each packet from that client.
+ * Replies should be sent through here rather than by touching the underlying socket directly, since the socket
+ * may be shared with a {@link PacketServer} reactor thread.
+ * @author daniel
+ *
+ */
+public abstract class PacketConnection {
+
+	private volatile Object attachment = null;
+
+	/**
+	 * Sends a packet down this connection, tagged with {@link #getStreamId()}. Safe to call from any thread.
+	 * @param data - What data is in the packet.
+	 * @throws IOException - If the connection has failed.
+	 */
+	public void send(String data) throws IOException {
+		send(data, getStreamId());
+	}
+
+	/**
+	 * Sends a packet down this connection tagged with a particular stream ID. Safe to call from any thread.
+	 * @param data - What data is in the packet.
+	 * @param streamId - The stream to tag it with, or {@link Packet#NO_STREAM}.
+	 * @throws IOException - If the connection has failed.
+	 */
+	public abstract void send(String data, int streamId) throws IOException;
+
+	/**
+	 * Sends a binary packet down this connection, tagged with {@link #getStreamId()}. Safe to call from any thread.
+	 * @param data - The packet. Not copied until it's sent, so don't change it afterwards.
+	 * @throws IOException - If the connection has failed.
+	 */
+	public void send(byte[] data) throws IOException {
+		send(data, getStreamId());
+	}
+
+	/**
+	 * Sends a binary packet down this connection tagged with a particular stream ID. Safe to call from any thread.
+	 * @param data - The packet.
+	 * @param streamId - The stream to tag it with, or {@link Packet#NO_STREAM}.
+	 * @throws IOException - If the connection has failed.
+	 */
+	public abstract void send(byte[] data, int streamId) throws IOException;
+
+	/**
+	 * The stream ID of the packet this was handed over with. If it isn't {@link Packet#NO_STREAM}, the other end is
+	 * matching replies up by ID, so the reply can be sent whenever it's ready (even from another thread, after later packets
+	 * have been answered).
+	 * @return - The stream ID replies through here are tagged with.
+	 */
+	public int getStreamId() {
+		return Packet.NO_STREAM;
+	}
+
+	/**
+	 * Closes the connection. Anything already passed to {@link #send(String)} is still delivered first.
+	 */
+	public abstract void close();
+
+	/**
+	 * @return - If the connection is still open.
+	 */
+	public abstract boolean isOpen();
+
+	/**
+	 * @return - The address of the other end of the connection, or null if it isn't known.
+	 */
+	public abstract SocketAddress getRemoteAddress();
+
+	/**
+	 * @return - Whatever was last attached to this connection with {@link #setAttachment(Object)}, or null.
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	/**
+	 * Attaches an object to this connection, so per-connection state can be kept between packets.
+	 * @param attachment - The object to attach.
+	 */
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+}
@@ -0,0 +1,139 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A long lived packet listener. Unlike {@link Connection#onRecv(int, int, DataReceiver, boolean)}, the listening
+ * socket stays bound for the life of the server, and accepted clients are spread over a set of reactor threads
+ * (one per core by default) which keep watching each connection for more packets until it is closed.
+ * The receiver is run on {@link Connection#getDispatchExecutor()}, one packet at a time per connection.
+ * @author daniel
+ *
+ */
+public class PacketServer {
+
+	private final int port;
+
+	private final DataReceiver receiver;
+
+	private final Reactor[] reactors;
+
+	private ServerSocketChannel listener;
+
+	private Selector acceptSelector;
+
+	private volatile boolean running = false;
+
+	private int nextReactor = 0;
+
+	/**
+	 * Creates a server with one reactor thread per available core.
+	 * @param listenPort - What port to listen on? Set above 1024 to avoid clashes.
+	 * @param maxDataLen - What's the longest packet we'll accept? Clients sending anything longer are disconnected.
+	 * @param onPacketGet - The object holding the method we call when we get a packet.
+	 * @throws IOException - If a selector couldn't be opened.
+	 */
+	public PacketServer(int listenPort, int maxDataLen, DataReceiver onPacketGet) throws IOException {
+		this(listenPort, maxDataLen, onPacketGet, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a server with a set number of reactor threads.
+	 * @param listenPort - What port to listen on? Set above 1024 to avoid clashes.
+	 * @param maxDataLen - What's the longest packet we'll accept? Clients sending anything longer are disconnected.
+	 * @param onPacketGet - The object holding the method we call when we get a packet.
+	 * @param reactorThreads - How many threads to spread the connections over. Must be at least 1.
+	 * @throws IOException - If a selector couldn't be opened.
+	 */
+	public PacketServer(int listenPort, int maxDataLen, DataReceiver onPacketGet, int reactorThreads) throws IOException {
+		if (reactorThreads < 1) {
+			throw new IllegalArgumentException("Need at least one reactor thread.");
+		}
+		port = listenPort;
+		receiver = onPacketGet;
+		reactors = new Reactor[reactorThreads];
+		for (int i = 0; i<reactorThreads; i++) {
+			reactors[i] = new Reactor(this, maxDataLen);
+		}
+	}
+
+	/**
+	 * Binds the listening socket and starts the acceptor and reactor threads. Returns straight away.
+	 * @throws IOException - If the port couldn't be bound.
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port), 1024); //Big backlog so bursts of clients queue rather than get refused.
+		listener.configureBlocking(false);
+		acceptSelector = Selector.open();
+		listener.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		running = true;
+		for (int i = 0; i<reactors.length; i++) {
+			Thread t = new Thread(reactors[i], "PacketServer-reactor-" + i);
+			t.start();
+		}
+		Thread acceptor = new Thread(this::acceptLoop, "PacketServer-acceptor");
+		acceptor.start();
+	}
+
+	/**
+	 * Stops listening and closes every open connection.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		acceptSelector.wakeup();
+		for (Reactor r: reactors) {
+			r.shutdown();
+		}
+	}
+
+	/**
+	 * @return - If the server is currently accepting connections.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	DataReceiver getReceiver() {
+		return receiver;
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				SocketChannel client;
+				while ((client = listener.accept()) != null) {
+					client.configureBlocking(false);
+					client.socket().setTcpNoDelay(true); //Packets are small and latency matters more than throughput here.
+					client.socket().setKeepAlive(true); //Connections can sit idle for ages, so notice when the other end has vanished.
+					reactors[nextReactor].register(client);
+					nextReactor = (nextReactor + 1) % reactors.length;
+				}
+			}
+			catch (IOException e) {
+				//One bad accept (e.g. out of file descriptors) shouldn't stop the server.
+				e.printStackTrace();
+			}
+		}
+		try {
+			acceptSelector.close();
+			listener.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of a {@link PacketServer}. Owns a set of client channels, reads packets off them and queues
+ * them for the server's {@link DataReceiver}, which is run on the dispatch executor rather than this thread.
+ * @author daniel
+ *
+ */
+class Reactor implements Runnable {
+
+	private final Selector selector;
+
+	private final PacketServer server;
+
+	/**
+	 * Jobs that have to happen on the reactor thread (registering channels, changing interest sets).
+	 */
+	private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Only touched by the reactor thread, so one is enough for every connection it owns.
+	 * Frames longer than this are reassembled by the connection's {@link FrameDecoder}.
+	 */
+	private final ByteBuffer readBuffer = BufferPool.DIRECT.lease(16384);
+
+	private final int maxFrameLen;
+
+	private volatile boolean running = true;
+
+	private volatile Thread reactorThread = null;
+
+	/**
+	 * Connections the dispatch executor was too busy to take, to hand over again shortly. Only touched by the reactor thread.
+	 */
+	private final ArrayDeque<ChannelConnection> retry = new ArrayDeque<ChannelConnection>();
+
+	private static final long RETRY_MILLIS = 10;
+
+	Reactor(PacketServer owner, int maxDataLen) throws IOException {
+		server = owner;
+		selector = Selector.open();
+		maxFrameLen = maxDataLen;
+	}
+
+	/**
+	 * Hands a freshly accepted channel to this reactor. Can be called from any thread.
+	 * @param sc - The channel. Must already be non-blocking.
+	 */
+	void register(SocketChannel sc) {
+		pending.add(() -> {
+			ChannelConnection conn = new ChannelConnection(sc, this, new FrameDecoder(maxFrameLen));
+			try {
+				conn.setKey(sc.register(selector, SelectionKey.OP_READ, conn));
+			} catch (ClosedChannelException e) {
+				//Client gave up before we got to it.
+			}
+		});
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the reactor to tell us when the connection can take more data.
+	 * @param conn - The connection with a backed up write queue.
+	 */
+	void requestWrite(ChannelConnection conn) {
+		changeInterest(conn, SelectionKey.OP_WRITE, true);
+	}
+
+	/**
+	 * Stops or restarts reading from a connection, used when it has too many packets waiting to be handled.
+	 * @param conn - The connection.
+	 * @param reading - Whether we should be reading from it.
+	 */
+	void setReading(ChannelConnection conn, boolean reading) {
+		changeInterest(conn, SelectionKey.OP_READ, reading);
+	}
+
+	private void changeInterest(ChannelConnection conn, int op, boolean on) {
+		Runnable change = () -> {
+			SelectionKey k = conn.getKey();
+			if (k != null && k.isValid()) {
+				k.interestOps(on ? k.interestOps() | op : k.interestOps() & ~op);
+			}
+		};
+		if (Thread.currentThread() == reactorThread) {
+			change.run();
+			return;
+		}
+		pending.add(change);
+		selector.wakeup();
+	}
+
+	/**
+	 * Hands a connection's packets to the dispatch executor again in RETRY_MILLIS or so, since it was too busy just now.
+	 * Can be called from any thread.
+	 * @param conn - The connection, with its reading paused.
+	 */
+	void retryLater(ChannelConnection conn) {
+		if (Thread.currentThread() == reactorThread) {
+			retry.add(conn);
+			return;
+		}
+		pending.add(() -> retry.add(conn));
+		selector.wakeup();
+	}
+
+	DataReceiver getReceiver() {
+		return server.getReceiver();
+	}
+
+	/**
+	 * Tells the receiver a connection has gone, so it can drop any state it was keeping for it.
+	 * @param conn - The connection that just closed.
+	 */
+	void connectionClosed(ChannelConnection conn) {
+		//The decoder may be mid-frame on this thread, so only give its buffer back from the reactor thread.
+		if (Thread.currentThread() == reactorThread) {
+			conn.releaseDecoder();
+		}
+		else {
+			pending.add(conn::releaseDecoder);
+			selector.wakeup();
+		}
+		try {
+			server.getReceiver().connectionClosed(conn);
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		reactorThread = Thread.currentThread();
+		while (running) {
+			try {
+				if (retry.isEmpty()) {
+					selector.select();
+				}
+				else {
+					selector.select(RETRY_MILLIS);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			Runnable job;
+			while ((job = pending.poll()) != null) {
+				job.run();
+			}
+			for (int i = retry.size(); i > 0; i--) {
+				ChannelConnection conn = retry.poll();
+				if (conn.getChannel().isOpen()) {
+					conn.schedule(); //Puts it back on the list if the executor's still full.
+				}
+			}
+			Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+			while (ready.hasNext()) {
+				SelectionKey k = ready.next();
+				ready.remove();
+				ChannelConnection conn = (ChannelConnection) k.attachment();
+				try {
+					if (k.isValid() && k.isWritable() && conn.flush() && k.isValid()) {
+						k.interestOps(k.interestOps() & ~SelectionKey.OP_WRITE);
+					}
+					if (k.isValid() && k.isReadable()) {
+						handleRead(conn);
+					}
+				}
+				catch (CancelledKeyException e) {
+					//Connection was closed by a handler while we were looking at it.
+				}
+			}
+		}
+		for (SelectionKey k: selector.keys()) {
+			((ChannelConnection) k.attachment()).closeNow();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		BufferPool.DIRECT.release(readBuffer);
+	}
+
+	private void handleRead(ChannelConnection conn) {
+		readBuffer.clear();
+		int howMuch;
+		try {
+			howMuch = conn.getChannel().read(readBuffer);
+		}
+		catch (IOException e) {
+			howMuch = -1;
+		}
+		if (howMuch < 0) {
+			conn.closeNow();
+			return;
+		}
+		readBuffer.flip();
+		try {
+			Packet packet;
+			while ((packet = conn.getDecoder().next(readBuffer)) != null) {
+				conn.deliver(packet);
+			}
+		}
+		catch (IOException e) {
+			//Garbage length header, so there's no way to find the next packet boundary.
+			conn.closeNow();
+		}
+	}
+
+}
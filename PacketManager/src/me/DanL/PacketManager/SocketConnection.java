@@ -0,0 +1,52 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * A {@link PacketConnection} over a plain blocking socket, used by {@link Connection#onRecv(int, int, DataReceiver, boolean)}
+ * and {@link Connection#sendRecv(String, int, int, String, DataReceiver)}.
+ * @author daniel
+ *
+ */
+class SocketConnection extends PacketConnection {
+
+	private Socket sock;
+
+	SocketConnection(Socket s) {
+		sock = s;
+	}
+
+	@Override
+	public synchronized void send(String data, int streamId) throws IOException {
+		Connection.send(sock, data, streamId);
+	}
+
+	@Override
+	public synchronized void send(byte[] data, int streamId) throws IOException {
+		Connection.send(sock, data, streamId);
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (!sock.isClosed()) {
+				sock.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !sock.isClosed();
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return sock.getRemoteSocketAddress();
+	}
+
+}
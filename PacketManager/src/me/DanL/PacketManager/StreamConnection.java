@@ -0,0 +1,71 @@
+package me.DanL.PacketManager;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * A view of a connection for one tagged packet: replies sent through it carry the packet's stream ID.
+ * Everything else (closing, attachments) goes straight through to the real connection.
+ * @author daniel
+ *
+ */
+class StreamConnection extends PacketConnection {
+
+	private final PacketConnection conn;
+
+	private final int streamId;
+
+	private StreamConnection(PacketConnection conn, int streamId) {
+		this.conn = conn;
+		this.streamId = streamId;
+	}
+
+	/**
+	 * @param conn - The connection the packet came in on.
+	 * @param streamId - The packet's stream ID.
+	 * @return - conn itself if the packet wasn't tagged, otherwise a view that replies on its stream.
+	 */
+	static PacketConnection of(PacketConnection conn, int streamId) {
+		return streamId == Packet.NO_STREAM ? conn : new StreamConnection(conn, streamId);
+	}
+
+	@Override
+	public void send(String data, int streamId) throws IOException {
+		conn.send(data, streamId);
+	}
+
+	@Override
+	public void send(byte[] data, int streamId) throws IOException {
+		conn.send(data, streamId);
+	}
+
+	@Override
+	public int getStreamId() {
+		return streamId;
+	}
+
+	@Override
+	public void close() {
+		conn.close();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return conn.isOpen();
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return conn.getRemoteAddress();
+	}
+
+	@Override
+	public Object getAttachment() {
+		return conn.getAttachment();
+	}
+
+	@Override
+	public void setAttachment(Object attachment) {
+		conn.setAttachment(attachment);
+	}
+}
@@ -0,0 +1,112 @@
+package me.DanL.PacketManager;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Helpers for packets with binary fields rather than text: varint numbers and lengths, and UUIDs as 16 raw bytes.
+ *
+ * Varints are unsigned LEB128: 7 bits at a time, lowest first, with the top bit set on every byte but the last.
+ * Work out how big a packet will be with the *Len methods, allocate a buffer that size, then put the fields in.
+ * The get methods throw IllegalArgumentException (or BufferUnderflowException) if the packet is malformed.
+ * @author daniel
+ *
+ */
+public class WireFormat {
+
+	public static final int UUID_LEN = 16;
+
+	/**
+	 * The most bytes a varint for an int can take up.
+	 */
+	private static final int MAX_VARINT_LEN = 5;
+
+	private WireFormat() {
+	}
+
+	/**
+	 * @param v - A non-negative number.
+	 * @return - How many bytes it takes as a varint.
+	 */
+	public static int varintLen(int v) {
+		int len = 1;
+		while ((v >>>= 7) != 0) {
+			len++;
+		}
+		return len;
+	}
+
+	/**
+	 * @param b - Where to put it.
+	 * @param v - The number. Must not be negative.
+	 */
+	public static void putVarint(ByteBuffer b, int v) {
+		if (v < 0) {
+			throw new IllegalArgumentException("Varints can't be negative: " + v);
+		}
+		while ((v & ~0x7F) != 0) {
+			b.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		b.put((byte) v);
+	}
+
+	/**
+	 * @param b - Where to read it from.
+	 * @return - The number, which is never negative.
+	 */
+	public static int getVarint(ByteBuffer b) {
+		int v = 0;
+		for (int i = 0; i < MAX_VARINT_LEN; i++) {
+			byte next = b.get();
+			v |= (next & 0x7F) << (7 * i);
+			if (next >= 0) {
+				if (v < 0) {
+					throw new IllegalArgumentException("Varint too big.");
+				}
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("Varint too long.");
+	}
+
+	public static void putUUID(ByteBuffer b, UUID u) {
+		b.putLong(u.getMostSignificantBits()).putLong(u.getLeastSignificantBits());
+	}
+
+	public static UUID getUUID(ByteBuffer b) {
+		return new UUID(b.getLong(), b.getLong());
+	}
+
+	/**
+	 * @param data - Some bytes.
+	 * @return - How many bytes they take with their length in front.
+	 */
+	public static int bytesLen(byte[] data) {
+		return varintLen(data.length) + data.length;
+	}
+
+	/**
+	 * Puts some bytes, with their length in front.
+	 */
+	public static void putBytes(ByteBuffer b, byte[] data) {
+		putVarint(b, data.length);
+		b.put(data);
+	}
+
+	/**
+	 * Reads bytes written by {@link #putBytes(ByteBuffer, byte[])}.
+	 * @param b - Where to read them from.
+	 * @return - The bytes.
+	 */
+	public static byte[] getBytes(ByteBuffer b) {
+		int len = getVarint(b);
+		if (len > b.remaining()) {
+			throw new BufferUnderflowException(); //Checked first so a bad length can't make us allocate loads.
+		}
+		byte[] data = new byte[len];
+		b.get(data);
+		return data;
+	}
+}
@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import me.DanL.E2EChat.CryptoUtils.AES;
 import me.DanL.E2EChat.CryptoUtils.BinaryUtils;
@@ -120,8 +121,12 @@ public class ChatClient {
 		//Add now, since we overwrite this later
 		secretStore.put(who, masterSecret);
 		byte[] hmacSalt = BinaryUtils.getSalt(16); //Used as key-deriv salt and IV for secret storage.
-		//Now, download their public key from the server.
-		RSAKey userKey = networkHandle.getUserKey(who);
+		//Now, download their public key from the server, and their name alongside it.
+		ChatNetClient.Batch lookup = networkHandle.newBatch(); //Name and key in one go.
+		CompletableFuture<String> nameReq = getUsernameAsync(who, lookup);
+		CompletableFuture<RSAKey> keyReq = lookup.getUserKey(who);
+		lookup.submit();
+		RSAKey userKey = ChatNetClient.await(keyReq);
 		masterSecret = userKey.encrypt(masterSecret); //Deliberately overwrite masterSecret in memory.
 		byte[] proofOfId = networkHandle.getClientKey().signData(networkHandle.getClientUid().toString().getBytes());
 		Encoder b64enc = Base64.getEncoder();
@@ -130,7 +135,7 @@ public class ChatClient {
 		networkHandle.sendClientMessage(initPacket.getBytes(), who);
 		//Now finally, add the user to our data storage and save our data storage.
 		pubkeyHash.put(who, userKey.getKeyHash());
-		nameLookup.put(who, getUsername(who));
+		nameLookup.put(who, nameReq.join());
 		hmacSalts.put(who, hmacSalt);
 		saveData();
 	}
@@ -149,7 +154,11 @@ public class ChatClient {
 		Decoder b64dec = Base64.getDecoder();
 		byte[] encUid = b64dec.decode(parts[1]);
 		byte[] encSecret = b64dec.decode(parts[3]);
-		RSAKey senderKey = networkHandle.getUserKey(sender);
+		ChatNetClient.Batch lookup = networkHandle.newBatch();
+		CompletableFuture<String> nameReq = getUsernameAsync(sender, lookup);
+		CompletableFuture<RSAKey> keyReq = lookup.getUserKey(sender);
+		lookup.submit();
+		RSAKey senderKey = ChatNetClient.await(keyReq);
 		try {
 			senderKey.verifyData(sender.toString().getBytes(), encUid);
 		} catch (InvalidSignatureException e) {
@@ -158,7 +167,7 @@ public class ChatClient {
 		}
 		secretStore.put(sender, networkHandle.getClientKey().decrypt(encSecret)); //Decrypts the master secret and saves it.
 		//Now the cryptography is out of the way, do the other stuff.
-		nameLookup.put(sender, getUsername(sender));
+		nameLookup.put(sender, nameReq.join());
 		byte[] hmacSalt = BinaryUtils.getSalt(16);
 		hmacSalts.put(sender, hmacSalt);
 		pubkeyHash.put(sender, senderKey.getKeyHash());
@@ -215,6 +224,18 @@ public class ChatClient {
 		return secretStore.containsKey(other);
 	}
 	
+	/**
+	 * Looks up a name without waiting on the server, so it can overlap with other requests.
+	 * Unlike {@link #getUsername(UUID)} this doesn't cache: the caller should do that on its own thread.
+	 * @param who - Who to look up.
+	 * @param batch - The batch to add the lookup to, if it has to go to the server.
+	 * @return - Their name, straight from the cache if we have it.
+	 */
+	private CompletableFuture<String> getUsernameAsync(UUID who, ChatNetClient.Batch batch) {
+		String known = nameLookup.get(who);
+		return known != null ? CompletableFuture.completedFuture(known) : batch.getUsername(who);
+	}
+	
 	public String getUsername(UUID who) {
 		if (nameLookup.containsKey(who)) {
 			return nameLookup.get(who);
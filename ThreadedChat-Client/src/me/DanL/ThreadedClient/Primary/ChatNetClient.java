@@ -7,20 +7,32 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import javax.crypto.Mac;
 
 import me.DanL.E2EChat.CryptoUtils.AES;
 import me.DanL.E2EChat.CryptoUtils.BinaryUtils;
+import me.DanL.E2EChat.CryptoUtils.CryptoEngines;
 import me.DanL.E2EChat.CryptoUtils.HMACUtils;
 import me.DanL.E2EChat.CryptoUtils.RSAKey;
 import me.DanL.E2EChat.CryptoUtils.RSAKey.MalformedKeyFileException;
 import me.DanL.PacketManager.Connection;
+import me.DanL.PacketManager.Packet;
+import me.DanL.PacketManager.PacketClient;
+import me.DanL.PacketManager.WireFormat;
 
 public class ChatNetClient {
 	
@@ -28,12 +40,81 @@ public class ChatNetClient {
 	
 	private RSAKey clientKey;
 	
-	private byte[] serverAuthMasterSecret;
-	
 	private String srvIp = "";
 	private int srvPort;
 	
-	private int packetNumber = 0;
+	private String clientName;
+	
+	/**
+	 * The one connection to the server that every request goes down. Guarded by this.
+	 */
+	private Session session = null;
+	
+	/**
+	 * The newest protocol version we speak, which we ask the server for in our HELLO. See the server's desc.md.
+	 */
+	private static final int PROTOCOL_VERSION = 2;
+	
+	/**
+	 * The most operations the server takes in one BATCH.
+	 */
+	private static final int MAX_BATCH_OPS = 64;
+	
+	/**
+	 * Roughly the most payload bytes we put in one BATCH, leaving room under the server's 64KB packet limit.
+	 */
+	private static final int MAX_BATCH_BYTES = 48 * 1024;
+	
+	/**
+	 * How many requests can be waiting on the server at once.
+	 */
+	private static final int MAX_IN_FLIGHT = 16;
+	
+	/**
+	 * 16MB cap on any reply (a batch of messages being the big one): only what's actually sent gets allocated.
+	 */
+	private static final int MAX_REPLY_LEN = 16776960;
+	
+	/**
+	 * How long to wait on the server before giving up on a request, in milliseconds.
+	 */
+	private long requestTimeout = Long.getLong("threadedchat.client.timeout", 10000);
+	
+	/**
+	 * Whether to have the server push messages to us (SUBSCRIBE). Turned off if the server won't, in which case we long-poll with WAIT.
+	 */
+	private volatile boolean usePush = true;
+	
+	/**
+	 * How many SUBSCRIBEs in a row the server has hung up on. Only touched by {@link #retLoop()}.
+	 */
+	private int subscribeDrops = 0;
+	
+	/**
+	 * How many times in a row the server can hang up on a SUBSCRIBE before we decide it doesn't know the packet (that's what a
+	 * server does with a packet type it doesn't know) rather than the network being flaky.
+	 */
+	private static final int MAX_SUBSCRIBE_DROPS = 3;
+	
+	/**
+	 * How long a WAIT asks the server to hold on to its reply, in seconds.
+	 */
+	private static final int LONG_POLL_SECONDS = 30;
+	
+	/**
+	 * How often to check the connection's still there while waiting on pushed messages, in milliseconds.
+	 */
+	private static final long PUSH_CHECK_MILLIS = 5000;
+	
+	/**
+	 * How many messages to ask for per FETCH.
+	 */
+	private static final int FETCH_PAGE_SIZE = 200;
+	
+	/**
+	 * Where we're up to in our mailbox, from the last FETCH reply. Sending it back tells the server it can drop everything before it.
+	 */
+	private volatile String fetchCursor = "0";
 	
 	/**
 	 * Not just literal messages, also control messages.
@@ -112,79 +193,360 @@ public class ChatNetClient {
 	 */
 	public void init(String ip, int port, UUID usUid, String name) throws UnknownHostException, IOException {
 		clientUid = usUid;
-		//Manually create the socket so we have a persistent connection.
 		srvPort = port;
 		srvIp = ip;
-		Socket s = new Socket(ip, port);
-		Connection.send(s, "HELLO " + usUid.toString());
+		clientName = name;
+		connect();
+	}
+	
+	/**
+	 * Opens the connection to the server and does the HELLO/CHALLENGE handshake on it, registering if needed.
+	 * The connection is then kept for every later request.
+	 * @throws IOException - If the server couldn't be reached.
+	 */
+	private synchronized void connect() throws IOException {
+		disconnect();
+		//Manually create the socket so we have a persistent connection.
+		Socket s = new Socket(srvIp, srvPort);
+		s.setTcpNoDelay(true);
+		Connection.send(s, "HELLO " + clientUid.toString() + " " + PROTOCOL_VERSION); //Older servers ignore the version.
 		String[] resp = new String(Connection.readDat(s, 65535)).split(" "); //Could be a challenge, so receive a lot of data.
 		if (resp[0].contentEquals("NEW")) {
 			//We need to register.
-			Connection.send(s, "PERSON " + name);
+			Connection.send(s, "PERSON " + clientName);
 			Connection.send(s, "CRYPT " + clientKey.savePublicToString());
 			resp = new String(Connection.readDat(s, 65535)).split(" "); //Should be a challenge.
 		}
-		if (resp[0].contentEquals("CHALLENGE")) {
-			byte[] c = Base64.getDecoder().decode(resp[1]);
-			serverAuthMasterSecret = clientKey.decrypt(c); //Decrypts the challenge bytes.
+		if (!resp[0].contentEquals("CHALLENGE")) {
+			s.close();
+			throw new IOException("Server didn't send a challenge.");
 		}
-		packetNumber = 1; //Packet number is zero by default, so a start number of zero will be rejected.
-		s.close();
+		byte[] c = Base64.getDecoder().decode(resp[1]);
+		int version = 1; //The server says if it'll speak something newer, otherwise it's version 1.
+		if (resp.length > 2) {
+			try {
+				version = Math.min(Integer.parseInt(resp[2].trim()), PROTOCOL_VERSION);
+			}
+			catch (NumberFormatException e) {
+				//Stick with version 1.
+			}
+		}
+		session = new Session(new PacketClient(s, MAX_REPLY_LEN, MAX_IN_FLIGHT, true), clientKey.decrypt(c), version); //Decrypts the challenge bytes.
 	}
 	
 	/**
-	 * Signs a packet.
-	 * @param payload - The payload to sign.
-	 * @return - The base64 encoded signature of the packet.
+	 * Closes the connection to the server, if there is one. Anything still waiting on a reply fails.
+	 */
+	public synchronized void disconnect() {
+		if (session != null) {
+			session.conn.close();
+			session = null;
+		}
+	}
+	
+	/**
+	 * Sets how long requests wait on the server before failing.
+	 * @param millis - The timeout, in milliseconds.
+	 */
+	public void setRequestTimeout(long millis) {
+		requestTimeout = millis;
+	}
+	
+	/**
+	 * @param dead - A session that just failed on us, or null.
+	 * @return - A live session, reconnecting if the current one is missing or is the dead one.
 	 */
-	private String signPayload(String payload) {
-		byte[] toSign = new byte[36]; //4 bytes for the packet number + 32 for the hash.
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.putInt(packetNumber);
-		byte[] packetNumAsBytes = bb.array();
-		for (byte i = 0;i<4;i++) {
-			toSign[i] = packetNumAsBytes[i];
+	private synchronized Session liveSession(Session dead) throws IOException {
+		if (session == null || session == dead || !session.conn.isOpen()) {
+			connect();
 		}
+		return session;
+	}
+	
+	/**
+	 * Signs an authenticated packet and sends it down the server connection, without waiting for the reply.
+	 * If the connection has dropped, reconnects (which starts a new session) and tries once more, but only for requests that are
+	 * safe to repeat (see {@link #isRepeatable(String)}): anything else might have reached the server before the connection went.
+	 * @param type - The packet type, e.g. KEY.
+	 * @param payload - Makes the signed part of the packet for a given protocol version: the text payload for version 1
+	 * (empty if there isn't one) or the binary one for version 2.
+	 * @return - The server's reply. Fails with an IOException if the server couldn't be reached even after reconnecting.
+	 */
+	private CompletableFuture<Reply> authedRequestAsync(String type, IntFunction<byte[]> payload) {
+		return authedRequestAsync(type, payload, requestTimeout);
+	}
+	
+	/**
+	 * Like {@link #authedRequestAsync(String, IntFunction)}, with a different timeout.
+	 * @param timeout - How long to wait on the reply, in milliseconds.
+	 */
+	private CompletableFuture<Reply> authedRequestAsync(String type, IntFunction<byte[]> payload, long timeout) {
+		return authedRequestAsync(type, payload, timeout, isRepeatable(type));
+	}
+	
+	/**
+	 * Like {@link #authedRequestAsync(String, IntFunction)}, with a different timeout.
+	 * @param timeout - How long to wait on the reply, in milliseconds.
+	 * @param retry - If it can be sent again on a new connection when the first one fails.
+	 */
+	private CompletableFuture<Reply> authedRequestAsync(String type, IntFunction<byte[]> payload, long timeout, boolean retry) {
+		Session first;
 		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			byte[] sha = md.digest(payload.getBytes());
-			for (byte i = 0;i<32;i++) {
-				toSign[i+4] = sha[i];
+			first = liveSession(null);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return sendSigned(first, type, payload, timeout).exceptionallyCompose(e -> {
+			if (!(unwrap(e) instanceof IOException) || unwrap(e) instanceof ServerBusyException) {
+				return CompletableFuture.failedFuture(e); //Timeouts and the like aren't fixed by reconnecting.
 			}
-		} catch (NoSuchAlgorithmException e) {
-			//?????
-			e.printStackTrace();
+			if (!retry) {
+				return CompletableFuture.failedFuture(e); //It may have got there and only the reply was lost, so the caller decides.
+			}
+			try {
+				return sendSigned(liveSession(first), type, payload, timeout);
+			} catch (IOException e1) {
+				return CompletableFuture.failedFuture(e1);
+			}
+		});
+	}
+	
+	/**
+	 * @return - If a request of this type can be sent twice without anything happening twice, i.e. it only reads.
+	 * SEND, GSEND and GROUP can't: if the first one got through, the message would be delivered (or the group made) twice.
+	 */
+	private static boolean isRepeatable(String type) {
+		switch (type) {
+		case "KEY":
+		case "GET":
+		case "GETID":
+		case "FETCH":
+			return true;
+		default:
+			return false;
 		}
-		packetNumber++; //Very important, otherwise our packets will get rejected repeatedly.
-		return Base64.getEncoder().encodeToString(HMACUtils.hmac(toSign, serverAuthMasterSecret));
 	}
 	
 	/**
-	 * Takes the data we've been given and crafts it into a valid SEND packet.
-	 * @param rawData - The raw, base64 encoded data of the packet.
-	 * @param sendto - Who we send the data to.
-	 * @return
+	 * Blocking version of {@link #authedRequestAsync(String, IntFunction)}.
+	 */
+	private Reply authedRequest(String type, IntFunction<byte[]> payload) throws IOException {
+		return await(authedRequestAsync(type, payload));
+	}
+	
+	private CompletableFuture<Reply> sendSigned(Session ses, String type, IntFunction<byte[]> payload, long timeout) {
+		byte[] p = payload.apply(ses.version);
+		//Signed before it's queued, off the connection's write lock. The server keeps a window of packet numbers rather than
+		//just the last one, so threads can sign in parallel and go out in whatever order they get to the socket.
+		int num = ses.packetNumber.getAndIncrement();
+		byte[] token = signPayload(ses, num, p);
+		if (ses.version >= 2) {
+			//Format is <type byte> <packet number varint> <raw token> <our UUID, 16 bytes> <payload>
+			ByteBuffer b = ByteBuffer.allocate(1 + WireFormat.varintLen(num) + token.length + WireFormat.UUID_LEN + p.length);
+			b.put(typeCode(type));
+			WireFormat.putVarint(b, num);
+			b.put(token);
+			WireFormat.putUUID(b, clientUid);
+			b.put(p);
+			byte[] packet = b.array();
+			return ses.conn.requestBytes(() -> packet, timeout).thenApply(reply -> checkBusy(new Reply(2, reply)));
+		}
+		//Format is <type> [payload] <packet number> <token> <our UUID>
+		String packet = type + (p.length == 0 ? "" : " " + new String(p)) + " " + num + " " + Base64.getEncoder().encodeToString(token) + " " + clientUid.toString();
+		return ses.conn.request(packet, timeout).thenApply(reply -> checkBusy(new Reply(1, reply)));
+	}
+	
+	/**
+	 * @return - The reply, unless it's the server saying we're sending too much.
+	 * @throws CompletionException - Wrapping a {@link ServerBusyException} if it is.
+	 */
+	private static Reply checkBusy(Reply reply) {
+		byte[] data = reply.packet.getData();
+		boolean busy = reply.version >= 2 ? data.length == 1 && data[0] == 0 : reply.text().trim().equals("BUSY");
+		if (busy) {
+			throw new CompletionException(new ServerBusyException());
+		}
+		return reply;
+	}
+	
+	/**
+	 * Thrown when the server turns a request away because we're over its rate limit. Nothing was done, so it's safe to try again
+	 * after a moment.
+	 */
+	public static class ServerBusyException extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ServerBusyException() {
+			super("Server is busy, slow down.");
+		}
+	}
+	
+	/**
+	 * @return - A packet type's type byte in version 2.
+	 */
+	private static byte typeCode(String type) {
+		switch (type) {
+		case "GET":
+			return 1;
+		case "GETID":
+			return 2;
+		case "KEY":
+			return 3;
+		case "MESSAGES":
+			return 4;
+		case "FETCH":
+			return 5;
+		case "SEND":
+			return 6;
+		case "SUBSCRIBE":
+			return 7;
+		case "WAIT":
+			return 8;
+		case "BATCH":
+			return 9;
+		case "GROUP":
+			return 10;
+		case "GSEND":
+			return 11;
+		default:
+			throw new IllegalArgumentException("No such packet type " + type);
+		}
+	}
+	
+	/**
+	 * @return - A payload that's just a user's UUID.
+	 */
+	private static IntFunction<byte[]> uuidPayload(UUID who) {
+		return version -> {
+			if (version < 2) {
+				return who.toString().getBytes();
+			}
+			ByteBuffer b = ByteBuffer.allocate(WireFormat.UUID_LEN);
+			WireFormat.putUUID(b, who);
+			return b.array();
+		};
+	}
+	
+	/**
+	 * Waits on a request, turning however it failed into an IOException.
+	 * @param request - The request.
+	 * @return - What it completed with.
+	 * @throws IOException - If it failed, timed out or was cancelled.
+	 */
+	static <T> T await(CompletableFuture<T> request) throws IOException {
+		try {
+			return request.join();
+		}
+		catch (CompletionException | CancellationException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof TimeoutException) {
+				throw new IOException("Server took too long to reply.", cause);
+			}
+			throw new IOException(cause);
+		}
+	}
+	
+	private static Throwable unwrap(Throwable t) {
+		while (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+	
+	/**
+	 * Signs a packet.
+	 * @param ses - The session to sign for.
+	 * @param num - The packet's number, which must not have been used before in this session.
+	 * @param payload - The payload to sign.
+	 * @return - The signature of the packet.
 	 */
-	private String createPacket(String rawData, UUID sendTo) {
-		//Format is SEND <data> <their UUID> <packet number> <token> <our UUID>
-		return "SEND " + rawData + " " + sendTo.toString() + " " + packetNumber + " " + signPayload(rawData + " " + sendTo.toString()) + " " + clientUid.toString(); 
+	private byte[] signPayload(Session ses, int num, byte[] payload) {
+		byte[] sha = CryptoEngines.sha256().digest(payload);
+		byte[] toSign = ByteBuffer.allocate(36).putInt(num).put(sha).array(); //4 bytes for the packet number + 32 for the hash.
+		synchronized (ses.mac) {
+			return HMACUtils.hmac(ses.mac, toSign);
+		}
 	}
 	
 	/**
 	 * Send a message to the client we want to communicate with.
 	 * @param data - The data to send.
 	 * @param to - Whom we are sending that data to.
+	 * @throws IOException - If something fails when sending. If the connection dropped it isn't sent again, since it may already have got there.
+	 */
+	public void sendClientMessage(byte[] data, UUID to) throws IOException {
+		authedRequest("SEND", sendPayload(data, to)); //Reply is just SENT, once the server has queued it.
+	}
+	
+	private static IntFunction<byte[]> sendPayload(byte[] data, UUID to) {
+		return version -> {
+			if (version < 2) {
+				return (Base64.getEncoder().encodeToString(data) + " " + to.toString()).getBytes();
+			}
+			ByteBuffer b = ByteBuffer.allocate(WireFormat.UUID_LEN + data.length);
+			WireFormat.putUUID(b, to);
+			return b.put(data).array(); //Raw, no base64 needed.
+		};
+	}
+	
+	/**
+	 * Makes a group conversation on the server, with us in it along with everyone given. Who's in it can't be changed later.
+	 * @param members - Everyone else in the group. Can't be empty.
+	 * @return - The group's UUID, to send to with {@link #sendGroupMessage(byte[], UUID)}, or null if the server wouldn't make it.
 	 * @throws IOException - If something fails when sending.
 	 */
-	public synchronized void sendClientMessage(byte[] data, UUID to) throws IOException { //Synchronized because trying to send two messages at once may lead to them both having invalid signatures.
-		String encoded = Base64.getEncoder().encodeToString(data);
-		String packet = createPacket(encoded, to);
-		try {
-			Connection.send(srvIp, srvPort, packet);
-		} catch (UnknownHostException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} 
+	public UUID createGroup(List<UUID> members) throws IOException {
+		if (members.isEmpty()) {
+			throw new IllegalArgumentException("A group needs someone else in it.");
+		}
+		return await(authedRequestAsync("GROUP", version -> {
+			if (version < 2) {
+				StringBuilder sb = new StringBuilder();
+				for (UUID m: members) {
+					sb.append(sb.length() == 0 ? "" : ",").append(m);
+				}
+				return sb.toString().getBytes();
+			}
+			ByteBuffer b = ByteBuffer.allocate(WireFormat.varintLen(members.size()) + members.size() * WireFormat.UUID_LEN);
+			WireFormat.putVarint(b, members.size());
+			for (UUID m: members) {
+				WireFormat.putUUID(b, m);
+			}
+			return b.array();
+		}).thenApply(reply -> {
+			if (reply.version >= 2) {
+				ByteBuffer body = reply.body();
+				return body.get() == 0 ? null : WireFormat.getUUID(body);
+			}
+			String id = reply.text().split(" ")[1];
+			return id.equals("null") ? null : UUID.fromString(id);
+		}));
+	}
+	
+	/**
+	 * Sends one copy of a message to the server for every other member of a group. The server hands it to each of them, so
+	 * the data had better be something they can all read (e.g. encrypted with a key shared with the group).
+	 * @param data - The data to send.
+	 * @param group - The group, from {@link #createGroup(List)}.
+	 * @return - If it was sent: it isn't if there's no such group, or we aren't in it.
+	 * @throws IOException - If something fails when sending.
+	 */
+	public boolean sendGroupMessage(byte[] data, UUID group) throws IOException {
+		return await(authedRequestAsync("GSEND", sendPayload(data, group)).thenApply(ChatNetClient::readGroupSent));
+	}
+	
+	/**
+	 * @return - If a GSEND reply says it was sent.
+	 */
+	private static boolean readGroupSent(Reply reply) {
+		if (reply.version >= 2) {
+			return reply.body().get() != 0;
+		}
+		return reply.text().trim().equals("SENT");
 	}
 	
 	/**
@@ -201,24 +563,38 @@ public class ChatNetClient {
 	 * @throws IOException - The connection to the server fails.
 	 */
 	public RSAKey getUserKey(UUID who) throws IOException {
-		String payload = who.toString();
-		String packet = "KEY " + payload + " " + packetNumber + " " + signPayload(payload) + " " + clientUid.toString();
-		Socket s = new Socket(srvIp, srvPort);
-		Connection.send(s, packet);
-		byte[] dat = Connection.readDat(s, 65535);
-		String[] respParts = new String(dat).split(" ");
-		if (respParts[0].contentEquals("PKEY")) {
-			try {
-				return new RSAKey(respParts[1], false);
-			} catch (MalformedKeyFileException e) {
-				return null;
-			}
+		return await(getUserKeyAsync(who));
+	}
+	
+	/**
+	 * Starts downloading a user's RSA key from the server, without waiting for it.
+	 * @param who - The user who's key we're downloading.
+	 * @return - The user's RSA key, or null if they don't have one. Fails if the connection to the server fails.
+	 */
+	public CompletableFuture<RSAKey> getUserKeyAsync(UUID who) {
+		return authedRequestAsync("KEY", uuidPayload(who)).thenApply(ChatNetClient::readKey);
+	}
+	
+	/**
+	 * @return - The key in a KEY reply, or null if there isn't one.
+	 */
+	private static RSAKey readKey(Reply reply) {
+		String key;
+		if (reply.version >= 2) {
+			key = readOptional(reply.body());
 		}
 		else {
+			String[] respParts = reply.text().split(" ");
+			key = respParts[0].contentEquals("PKEY") ? respParts[1] : null;
+		}
+		if (key == null) {
+			return null;
+		}
+		try {
+			return new RSAKey(key, false);
+		} catch (MalformedKeyFileException e) {
 			return null;
 		}
-		
-		
 	}
 
 	public RSAKey getClientKey() {
@@ -230,10 +606,16 @@ public class ChatNetClient {
 	 * @throws IOException 
 	 */
 	public void getUnreadMessages() throws IOException {
-		String packet = "MESSAGES " + packetNumber + " " + signPayload("") + " " + clientUid.toString();
-		int bufferLen = 16776960; //16MB recv. buffer
-		Socket s = new Socket(srvIp, srvPort);
-		Connection.send(s, packet);
+		await(getUnreadMessagesAsync());
+	}
+	
+	/**
+	 * Starts fetching any messages we haven't yet seen, without waiting for them. They go into the messages buffer once they arrive.
+	 * They're fetched a page at a time, and the server only drops each page once the next request says we got it,
+	 * so nothing's lost if we die part way through.
+	 * @return - Completes once the messages are in the buffer, and the server's been told we have them.
+	 */
+	public CompletableFuture<Void> getUnreadMessagesAsync() {
 		/*String len = new String(Connection.readDat(s, 1024)); //This message says how long the second message is.
 		int bufferLen = 0;
 		System.out.println(len); //Our problem was really quite simple: part of the message packet was getting rammed onto this packet.
@@ -255,7 +637,171 @@ public class ChatNetClient {
 		else {
 			messageList = new String(Connection.readDat(s, bufferLen));
 		}*/
-		String messageList = new String(Connection.readDat(s, bufferLen));
+		String cursor = fetchCursor;
+		return authedRequestAsync("FETCH", version -> {
+			if (version < 2) {
+				return (cursor + "," + FETCH_PAGE_SIZE).getBytes();
+			}
+			byte[] c = cursor.getBytes();
+			ByteBuffer b = ByteBuffer.allocate(WireFormat.bytesLen(c) + WireFormat.varintLen(FETCH_PAGE_SIZE));
+			WireFormat.putBytes(b, c);
+			WireFormat.putVarint(b, FETCH_PAGE_SIZE);
+			return b.array();
+		}).thenCompose(reply -> {
+			if (reply.version >= 2) {
+				ByteBuffer body = reply.body();
+				fetchCursor = new String(WireFormat.getBytes(body));
+				WireFormat.getVarint(body); //How many are left, which we find out anyway.
+				return addMessages(readMessages(body)) ? getUnreadMessagesAsync() : CompletableFuture.completedFuture(null);
+			}
+			//PAGE <cursor> <messages left>, then the messages on the next line.
+			String[] parts = reply.text().split("\n", 2);
+			String[] header = parts[0].split(" ");
+			if (!header[0].contentEquals("PAGE") || header.length < 3) {
+				return CompletableFuture.failedFuture(new IOException("Server sent a bad page: " + parts[0]));
+			}
+			fetchCursor = header[1];
+			if (parts.length < 2 || parts[1].isEmpty()) {
+				return CompletableFuture.completedFuture(null); //Empty, so everything we've had is acknowledged.
+			}
+			addMessages(parts[1]);
+			return getUnreadMessagesAsync(); //Acknowledges this page, and gets the next one if there is one.
+		});
+	}
+	
+	/**
+	 * Waits for messages to turn up, for up to the given time, and puts them in the messages buffer.
+	 * Unlike polling with {@link #getUnreadMessages()}, the server replies as soon as something arrives.
+	 * @param seconds - The longest to wait.
+	 * @throws IOException - If the server couldn't be reached.
+	 */
+	public void waitForMessages(int seconds) throws IOException {
+		addMessages(await(authedRequestAsync("WAIT", version -> {
+			if (version < 2) {
+				return Integer.toString(seconds).getBytes();
+			}
+			ByteBuffer b = ByteBuffer.allocate(WireFormat.varintLen(seconds));
+			WireFormat.putVarint(b, seconds);
+			return b.array();
+		}, requestTimeout + seconds * 1000L)));
+	}
+	
+	/**
+	 * Subscribes a session to pushed messages: the reply holds anything already waiting, and then the server sends
+	 * each new message as it arrives until the connection closes.
+	 * @param ses - The session to subscribe on.
+	 * @throws IOException - If the server didn't take the subscription. A {@link SubscribeRejectedException} if it answered with
+	 * something other than a SUBSCRIBE reply, i.e. it doesn't do pushes.
+	 */
+	private void subscribe(Session ses) throws IOException {
+		ses.conn.setPushHandler(pushed -> {
+			synchronized (messages) {
+				if (ses.subscribed) {
+					addMessages(new Reply(ses.version, pushed));
+				}
+				else {
+					ses.earlyPushes.add(pushed); //Beat us to it: these have to go in after the reply's messages.
+				}
+			}
+		});
+		Reply backlog = await(sendSigned(ses, "SUBSCRIBE", version -> new byte[0], requestTimeout));
+		if (!isMessageList(backlog, "SUBSCRIBE")) {
+			throw new SubscribeRejectedException();
+		}
+		synchronized (messages) {
+			addMessages(backlog);
+			for (Packet pushed: ses.earlyPushes) {
+				addMessages(new Reply(ses.version, pushed));
+			}
+			ses.earlyPushes.clear();
+			ses.subscribed = true;
+		}
+	}
+	
+	/**
+	 * @param type - The packet the reply answers: MESSAGES, SUBSCRIBE or WAIT.
+	 * @return - If the reply is a list of messages answering that packet, rather than something else entirely.
+	 */
+	private static boolean isMessageList(Reply reply, String type) {
+		if (reply.version >= 2) {
+			byte[] data = reply.packet.getData();
+			return data.length > 0 && data[0] == typeCode(type);
+		}
+		String text = reply.text();
+		return text.startsWith("LENGTH ") || text.startsWith("MSG ");
+	}
+	
+	/**
+	 * Thrown when the server answers a SUBSCRIBE with something that isn't a SUBSCRIBE reply, so it won't push messages to us.
+	 */
+	private static class SubscribeRejectedException extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		SubscribeRejectedException() {
+			super("Server won't push messages.");
+		}
+	}
+	
+	/**
+	 * Adds the messages from a MESSAGES, SUBSCRIBE or WAIT reply (or a pushed packet) to the messages buffer.
+	 * @param reply - The reply, in either protocol version.
+	 */
+	private void addMessages(Reply reply) {
+		if (reply.version >= 2) {
+			addMessages(readMessages(reply.body()));
+		}
+		else {
+			addMessages(reply.text());
+		}
+	}
+	
+	/**
+	 * Reads the list of messages in a version 2 reply.
+	 * @param body - The reply, positioned at the start of the list.
+	 * @return - The messages, base64 encoded like version 1 sends them, since that's what the messages buffer holds.
+	 */
+	private static List<String> readMessages(ByteBuffer body) {
+		int count = WireFormat.getVarint(body);
+		List<String> msgs = new ArrayList<String>(Math.min(count, body.remaining()));
+		for (int i = 0; i < count; i++) {
+			msgs.add(Base64.getEncoder().encodeToString(WireFormat.getBytes(body)));
+		}
+		return msgs;
+	}
+	
+	/**
+	 * Reads a flag byte and then, if it's set, a length prefixed string.
+	 * @return - The string, or null if the flag wasn't set.
+	 */
+	private static String readOptional(ByteBuffer body) {
+		if (body.get() == 0) {
+			return null;
+		}
+		return new String(WireFormat.getBytes(body), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Adds messages to the messages buffer, and wakes anyone waiting on them.
+	 * @param msgs - The messages, base64 encoded.
+	 * @return - If there were any.
+	 */
+	private boolean addMessages(List<String> msgs) {
+		if (msgs.isEmpty()) {
+			return false;
+		}
+		synchronized (messages) {
+			messages.addAll(msgs);
+			messages.notifyAll();
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds the messages from a version 1 MESSAGES style reply to the messages buffer, and wakes anyone waiting on them.
+	 * @param messageList - The reply.
+	 */
+	private void addMessages(String messageList) {
 		if (messageList.startsWith("LENGTH 0")) {
 			return; //Nothing here.
 		}
@@ -265,6 +811,7 @@ public class ChatNetClient {
 			for (String msg: msgs) {
 				messages.add(msg);
 			}
+			messages.notifyAll();
 		}
 	}
 	
@@ -274,15 +821,211 @@ public class ChatNetClient {
 	 * @return - The user's username, or an error if server connection fails.
 	 */
 	public String getUsername(UUID person) {
-		try {
-			Socket s = new Socket(srvIp, srvPort);
-			String packet = "GETID " + person.toString() + " " + packetNumber + " " + signPayload(person.toString()) + " " + clientUid.toString();
-			Connection.send(s, packet);
-			String[] resp = new String(Connection.readDat(s, 1024)).split(" ");
-			return resp[1];
-		} catch (IOException e) {
+		return getUsernameAsync(person).join();
+	}
+	
+	/**
+	 * Starts fetching a user's username from the server, without waiting for it. Doesn't cache either.
+	 * @param person - Who we're looking up
+	 * @return - The user's username, or an error if server connection fails. Never fails itself.
+	 */
+	public CompletableFuture<String> getUsernameAsync(UUID person) {
+		return authedRequestAsync("GETID", uuidPayload(person)).handle(ChatNetClient::readName);
+	}
+	
+	/**
+	 * @return - The name in a GETID reply, or "error." if the request failed.
+	 */
+	private static String readName(Reply reply, Throwable e) {
+		if (e != null) {
 			return "error.";
 		}
+		if (reply.version >= 2) {
+			String name = readOptional(reply.body());
+			return name == null ? "null" : name; //Same as version 1 says it.
+		}
+		return reply.text().split(" ")[1];
+	}
+	
+	/**
+	 * Starts a batch of requests, which go to the server as one packet (one round trip, one signature) once it's submitted.
+	 * @return - An empty batch.
+	 */
+	public Batch newBatch() {
+		return new Batch();
+	}
+	
+	/**
+	 * Requests that go to the server together in a BATCH. Add them, then {@link #submit()}: each request's future completes
+	 * once the batch's reply arrives. Servers that only speak version 1 don't know BATCH, so they just get each request on its own.
+	 */
+	public class Batch {
+		
+		private List<BatchOp> ops = new ArrayList<BatchOp>();
+		
+		private Batch() {
+		}
+		
+		/**
+		 * Batched version of {@link ChatNetClient#getUserKeyAsync(UUID)}.
+		 */
+		public CompletableFuture<RSAKey> getUserKey(UUID who) {
+			return add("KEY", uuidPayload(who)).thenApply(ChatNetClient::readKey);
+		}
+		
+		/**
+		 * Batched version of {@link ChatNetClient#getUsernameAsync(UUID)}.
+		 */
+		public CompletableFuture<String> getUsername(UUID person) {
+			return add("GETID", uuidPayload(person)).handle(ChatNetClient::readName);
+		}
+		
+		/**
+		 * Batched version of {@link ChatNetClient#sendClientMessage(byte[], UUID)}.
+		 * @return - Completes once the server's queued it.
+		 */
+		public CompletableFuture<Void> sendClientMessage(byte[] data, UUID to) {
+			return add("SEND", sendPayload(data, to)).thenApply(reply -> null);
+		}
+		
+		/**
+		 * Batched version of {@link ChatNetClient#sendGroupMessage(byte[], UUID)}.
+		 * @return - If it was sent.
+		 */
+		public CompletableFuture<Boolean> sendGroupMessage(byte[] data, UUID group) {
+			return add("GSEND", sendPayload(data, group)).thenApply(ChatNetClient::readGroupSent);
+		}
+		
+		private synchronized CompletableFuture<Reply> add(String type, IntFunction<byte[]> payload) {
+			BatchOp op = new BatchOp(type, payload);
+			ops.add(op);
+			return op.reply;
+		}
+		
+		/**
+		 * Sends everything added so far, in as few packets as the server's limits allow. The batch can be reused afterwards.
+		 * @return - Completes once every request has its reply. Fails if any of them did.
+		 */
+		public CompletableFuture<Void> submit() {
+			List<BatchOp> todo;
+			synchronized (this) {
+				todo = ops;
+				ops = new ArrayList<BatchOp>();
+			}
+			CompletableFuture<?>[] replies = new CompletableFuture<?>[todo.size()];
+			for (int i = 0; i < replies.length; i++) {
+				replies[i] = todo.get(i).reply;
+			}
+			int version;
+			try {
+				version = liveSession(null).version;
+			} catch (IOException e) {
+				for (BatchOp op: todo) {
+					op.reply.completeExceptionally(e);
+				}
+				return CompletableFuture.failedFuture(e);
+			}
+			if (version < 2) {
+				for (BatchOp op: todo) {
+					complete(op, authedRequestAsync(op.type, op.payload));
+				}
+				return CompletableFuture.allOf(replies);
+			}
+			List<BatchOp> chunk = new ArrayList<BatchOp>();
+			List<byte[]> payloads = new ArrayList<byte[]>();
+			int bytes = 0;
+			for (BatchOp op: todo) {
+				byte[] p = op.payload.apply(2);
+				if (!chunk.isEmpty() && (chunk.size() == MAX_BATCH_OPS || bytes + p.length > MAX_BATCH_BYTES)) {
+					sendBatch(chunk, payloads);
+					chunk = new ArrayList<BatchOp>();
+					payloads = new ArrayList<byte[]>();
+					bytes = 0;
+				}
+				chunk.add(op);
+				payloads.add(p);
+				bytes += p.length;
+			}
+			if (!chunk.isEmpty()) {
+				sendBatch(chunk, payloads);
+			}
+			return CompletableFuture.allOf(replies);
+		}
+	}
+	
+	/**
+	 * Sends one BATCH packet, and hands each request its part of the reply.
+	 * @param ops - The requests.
+	 * @param payloads - Their version 2 payloads.
+	 */
+	private void sendBatch(List<BatchOp> ops, List<byte[]> payloads) {
+		boolean repeatable = true;
+		for (BatchOp op: ops) {
+			repeatable &= isRepeatable(op.type);
+		}
+		authedRequestAsync("BATCH", version -> {
+			if (version < 2) {
+				throw new IllegalStateException("Server no longer speaks version 2."); //Only if it was downgraded while we reconnected.
+			}
+			int len = WireFormat.varintLen(ops.size());
+			for (byte[] p: payloads) {
+				len += 1 + WireFormat.bytesLen(p);
+			}
+			ByteBuffer b = ByteBuffer.allocate(len);
+			WireFormat.putVarint(b, ops.size());
+			for (int i = 0; i < ops.size(); i++) {
+				b.put(typeCode(ops.get(i).type));
+				WireFormat.putBytes(b, payloads.get(i));
+			}
+			return b.array();
+		}, requestTimeout, repeatable).whenComplete((reply, e) -> {
+			int done = 0;
+			if (e == null) {
+				try {
+					//<count> then each reply as bytes.
+					ByteBuffer body = reply.body();
+					int count = Math.min(WireFormat.getVarint(body), ops.size());
+					for (; done < count; done++) {
+						ops.get(done).reply.complete(new Reply(2, new Packet(WireFormat.getBytes(body))));
+					}
+				}
+				catch (RuntimeException e1) {
+					e = e1; //Malformed, so whatever's left fails.
+				}
+			}
+			Throwable failure = e != null ? e : new IOException("Server didn't answer everything in the batch.");
+			for (; done < ops.size(); done++) {
+				ops.get(done).reply.completeExceptionally(failure);
+			}
+		});
+	}
+	
+	private static void complete(BatchOp op, CompletableFuture<Reply> reply) {
+		reply.whenComplete((r, e) -> {
+			if (e != null) {
+				op.reply.completeExceptionally(e);
+			}
+			else {
+				op.reply.complete(r);
+			}
+		});
+	}
+	
+	/**
+	 * A request waiting in a {@link Batch}.
+	 */
+	private static class BatchOp {
+		
+		final String type;
+		
+		final IntFunction<byte[]> payload;
+		
+		final CompletableFuture<Reply> reply = new CompletableFuture<Reply>();
+		
+		BatchOp(String type, IntFunction<byte[]> payload) {
+			this.type = type;
+			this.payload = payload;
+		}
 	}
 	
 	/**
@@ -298,17 +1041,54 @@ public class ChatNetClient {
 		}
 	}
 	
+	/**
+	 * Waits for new messages to land in the messages buffer, for a few seconds at most.
+	 * Subscribes to pushed messages (again, after a reconnect) if needed, or long-polls if the server won't push.
+	 * Only gives up on pushes for good if the server turns SUBSCRIBE down. If the connection just went, the next call reconnects
+	 * and subscribes again.
+	 */
 	public void retLoop() {
 		try {
-			Thread.sleep(1000);
-			getUnreadMessages();
+			if (!usePush) {
+				waitForMessages(LONG_POLL_SECONDS);
+				return;
+			}
+			Session ses = liveSession(null);
+			if (!ses.subscribed) {
+				try {
+					subscribe(ses);
+					subscribeDrops = 0;
+				}
+				catch (SubscribeRejectedException e) {
+					usePush = false; //Fall back on long-polling.
+					throw e;
+				}
+				catch (IOException e) {
+					//Timeouts and BUSY leave the connection open and are just tried again. A connection that went is only the server
+					//turning SUBSCRIBE down if it keeps happening on fresh connections, otherwise it's the network.
+					if (!ses.conn.isOpen() && ++subscribeDrops >= MAX_SUBSCRIBE_DROPS) {
+						usePush = false;
+					}
+					throw e;
+				}
+			}
+			synchronized (messages) {
+				if (messages.isEmpty()) {
+					messages.wait(PUSH_CHECK_MILLIS);
+				}
+			}
 		} catch (InterruptedException e) {
 			//???
 			e.printStackTrace();
-		} //Checking every second.
+		}
 		catch (IOException e) {
-			//Probably bad.
+			//Probably bad, so don't hammer the server.
 			e.printStackTrace();
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e1) {
+				e1.printStackTrace();
+			}
 		}
 	}
 	
@@ -323,4 +1103,74 @@ public class ChatNetClient {
 		sendClientMessage(clientPacketStruct.getBytes(), to);
 	}
 	
+	/**
+	 * One authenticated connection to the server, along with the secret and packet counter that go with it.
+	 */
+	private static class Session {
+		
+		final PacketClient conn;
+		
+		/**
+		 * Keyed with the session's secret. Guarded by itself.
+		 */
+		final Mac mac;
+		
+		/**
+		 * The next packet number to use. Starts at 1, since the server rejects 0.
+		 */
+		final AtomicInteger packetNumber = new AtomicInteger(1);
+		
+		/**
+		 * Whether messages are being pushed to us on this session. Only changed with messages locked.
+		 */
+		volatile boolean subscribed = false;
+		
+		/**
+		 * Messages pushed before the reply to our SUBSCRIBE was dealt with. Guarded by messages.
+		 */
+		final ArrayList<Packet> earlyPushes = new ArrayList<Packet>();
+		
+		/**
+		 * The protocol version agreed with the server.
+		 */
+		final int version;
+		
+		Session(PacketClient conn, byte[] masterSecret, int version) {
+			this.conn = conn;
+			this.mac = HMACUtils.keyedMac(masterSecret);
+			this.version = version;
+		}
+	}
+	
+	/**
+	 * A reply from the server, along with the protocol version it's in.
+	 */
+	private static class Reply {
+		
+		final int version;
+		
+		final Packet packet;
+		
+		Reply(int version, Packet packet) {
+			this.version = version;
+			this.packet = packet;
+		}
+		
+		/**
+		 * @return - A version 1 reply.
+		 */
+		String text() {
+			return packet.toString();
+		}
+		
+		/**
+		 * @return - A version 2 reply, after the type byte.
+		 */
+		ByteBuffer body() {
+			ByteBuffer b = ByteBuffer.wrap(packet.getData());
+			b.get();
+			return b;
+		}
+	}
+	
 }
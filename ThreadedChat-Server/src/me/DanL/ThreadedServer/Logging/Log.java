@@ -0,0 +1,346 @@
+package me.DanL.ThreadedServer.Logging;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The server's log. Logging never waits: whoever logs drops the line into a ring buffer, and a thread of its own formats it and
+ * writes it to stdout, so a slow terminal (or a lot of logging) can't hold up the threads handling packets.
+ *
+ * Each line has a level, a message, and optionally some fields as name/value pairs (e.g. "type", PacketType.SEND), written out
+ * as name=value after the message so the log can be searched and parsed. Nothing below the current level (threadedchat.log.level,
+ * INFO by default) is kept, and a message can be given as a Supplier so it's not even built unless it'll be written.
+ * Messages from suppliers and fields are turned into text on the log's thread, so they should only be things that won't change
+ * afterwards.
+ *
+ * If the ring (threadedchat.log.buffer lines, default 8192) fills up, new lines are dropped rather than waited for, and the log
+ * says how many were lost once it's caught up.
+ * @author daniel
+ *
+ */
+public class Log {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	/**
+	 * One line, as it was logged.
+	 */
+	private static class Event {
+
+		final long time;
+
+		final Level level;
+
+		final String thread;
+
+		/**
+		 * A String or a Supplier of one.
+		 */
+		final Object msg;
+
+		final Object[] fields;
+
+		final Throwable error;
+
+		Event(Level level, Object msg, Throwable error, Object[] fields) {
+			this.time = System.currentTimeMillis();
+			this.level = level;
+			this.thread = Thread.currentThread().getName();
+			this.msg = msg;
+			this.fields = fields;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * How many lines the ring holds. Always a power of 2.
+	 */
+	private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("threadedchat.log.buffer", 8192)));
+
+	private static final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<Event>(CAPACITY);
+
+	/**
+	 * How many slots have been claimed by loggers, ever. Slot n is ring[n % CAPACITY].
+	 */
+	private static final AtomicLong tail = new AtomicLong(0);
+
+	/**
+	 * How many lines have been taken out to write. Only the writer changes it, and a slot's emptied before head moves past it.
+	 */
+	private static volatile long head = 0;
+
+	/**
+	 * How many lines have been written out and flushed.
+	 */
+	private static volatile long flushed = 0;
+
+	private static final LongAdder dropped = new LongAdder();
+
+	private static volatile Level level = parseLevel(System.getProperty("threadedchat.log.level"), Level.INFO);
+
+	/**
+	 * Set while the writer's waiting for something to write, so loggers know to wake it up.
+	 */
+	private static volatile boolean sleeping = false;
+
+	private static final Thread writer = new Thread(Log::writeOut, "Log writer");
+
+	static {
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "Log flush"));
+	}
+
+	/**
+	 * @param l - The least important level to keep from now on, or OFF for nothing.
+	 */
+	public static void setLevel(Level l) {
+		level = l;
+	}
+
+	/**
+	 * @return - If a line at this level would be kept, so working out its fields is worth the effort.
+	 */
+	public static boolean isEnabled(Level l) {
+		return l != Level.OFF && l.compareTo(level) >= 0;
+	}
+
+	/**
+	 * Logs a detail only worth seeing while debugging.
+	 * @param msg - What happened.
+	 * @param fields - Name, value, name, value...
+	 */
+	public static void debug(String msg, Object... fields) {
+		log(Level.DEBUG, msg, null, fields);
+	}
+
+	/**
+	 * Logs a detail only worth seeing while debugging, building the message only if it's kept.
+	 * @param msg - Builds what happened, on the log's thread.
+	 */
+	public static void debug(Supplier<String> msg) {
+		log(Level.DEBUG, msg, null);
+	}
+
+	/**
+	 * Logs something that's normal, but worth knowing about.
+	 * @param msg - What happened.
+	 * @param fields - Name, value, name, value...
+	 */
+	public static void info(String msg, Object... fields) {
+		log(Level.INFO, msg, null, fields);
+	}
+
+	/**
+	 * Logs something that's normal, but worth knowing about, building the message only if it's kept.
+	 * @param msg - Builds what happened, on the log's thread.
+	 */
+	public static void info(Supplier<String> msg) {
+		log(Level.INFO, msg, null);
+	}
+
+	/**
+	 * Logs something that went wrong, but was dealt with.
+	 * @param msg - What happened.
+	 * @param fields - Name, value, name, value...
+	 */
+	public static void warn(String msg, Object... fields) {
+		log(Level.WARN, msg, null, fields);
+	}
+
+	/**
+	 * Logs something that went wrong and couldn't be dealt with.
+	 * @param msg - What happened.
+	 * @param error - What was thrown, if anything, for its stack trace.
+	 * @param fields - Name, value, name, value...
+	 */
+	public static void error(String msg, Throwable error, Object... fields) {
+		log(Level.ERROR, msg, error, fields);
+	}
+
+	/**
+	 * Logs a line, if it's at or above the current level. Never waits: if the ring's full, the line's dropped.
+	 * @param l - How important it is.
+	 * @param msg - What happened, as a String or a Supplier of one.
+	 * @param error - What was thrown, or null.
+	 * @param fields - Name, value, name, value...
+	 */
+	private static void log(Level l, Object msg, Throwable error, Object... fields) {
+		if (!isEnabled(l)) {
+			return;
+		}
+		Event e = new Event(l, msg, error, fields);
+		long t;
+		do {
+			t = tail.get();
+			if (t - head >= CAPACITY) {
+				dropped.increment(); //The writer's behind, and waiting for it could hold up a packet.
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		ring.set(slot(t), e);
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private static int slot(long n) {
+		return (int) n & (CAPACITY - 1);
+	}
+
+	/**
+	 * @return - How many lines have been dropped because the ring was full.
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Waits (for up to a second) until everything logged so far has been written out, e.g. before the program exits.
+	 */
+	public static void flush() {
+		long until = tail.get();
+		long deadline = System.nanoTime() + 1000000000L;
+		while (flushed < until && System.nanoTime() < deadline) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(1000000);
+		}
+	}
+
+	/**
+	 * The writer thread: takes lines out of the ring in order and writes them, flushing whenever it's caught up.
+	 */
+	private static void writeOut() {
+		Writer out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+		StringBuilder sb = new StringBuilder(256);
+		long reportedDrops = 0;
+		while (true) {
+			long h = head;
+			Event e = ring.get(slot(h));
+			if (e == null) {
+				if (tail.get() != h) {
+					Thread.onSpinWait(); //Claimed, but not put in yet.
+					continue;
+				}
+				long drops = dropped.sum();
+				if (drops != reportedDrops) {
+					sb.setLength(0);
+					format(new Event(Level.WARN, "Dropped " + (drops - reportedDrops) + " log lines, the log couldn't keep up.", null, null), sb);
+					write(out, sb);
+					reportedDrops = drops;
+				}
+				try {
+					out.flush();
+				}
+				catch (IOException ex) {
+					//Nowhere to say so.
+				}
+				flushed = h;
+				sleeping = true;
+				if (tail.get() == head) {
+					LockSupport.parkNanos(100000000L); //Woken when something's logged; the timeout's just in case.
+				}
+				sleeping = false;
+				continue;
+			}
+			ring.set(slot(h), null);
+			head = h + 1;
+			sb.setLength(0);
+			format(e, sb);
+			write(out, sb);
+		}
+	}
+
+	private static void write(Writer out, StringBuilder sb) {
+		try {
+			out.append(sb);
+		}
+		catch (IOException ex) {
+			//Nowhere to say so.
+		}
+	}
+
+	/**
+	 * Formats a line as "time LEVEL [thread] message name=value...", plus the stack trace if there is one.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void format(Event e, StringBuilder sb) {
+		sb.append(Instant.ofEpochMilli(e.time)).append(' ');
+		sb.append(e.level.name());
+		for (int i = e.level.name().length(); i < 5; i++) {
+			sb.append(' ');
+		}
+		sb.append(" [").append(e.thread).append("] ");
+		try {
+			sb.append(e.msg instanceof Supplier ? ((Supplier<String>) e.msg).get() : e.msg);
+			if (e.fields != null) {
+				for (int i = 0; i + 1 < e.fields.length; i += 2) {
+					sb.append(' ').append(e.fields[i]).append('=');
+					value(String.valueOf(e.fields[i + 1]), sb);
+				}
+			}
+		}
+		catch (RuntimeException ex) {
+			sb.append("(couldn't build this line: ").append(ex).append(')');
+		}
+		sb.append('\n');
+		if (e.error != null) {
+			StringWriter trace = new StringWriter();
+			e.error.printStackTrace(new PrintWriter(trace));
+			sb.append(trace);
+		}
+	}
+
+	/**
+	 * Appends a field's value, quoted if it's got spaces, quotes or equals signs in so it can still be told apart from the next.
+	 */
+	private static void value(String v, StringBuilder sb) {
+		boolean quote = v.isEmpty();
+		for (int i = 0; i < v.length() && !quote; i++) {
+			char c = v.charAt(i);
+			quote = c == ' ' || c == '"' || c == '=' || c < ' ';
+		}
+		if (!quote) {
+			sb.append(v);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < v.length(); i++) {
+			char c = v.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c < ' ' ? ' ' : c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * @return - The level called this (in any case), or def if it's not set or isn't one.
+	 */
+	private static Level parseLevel(String name, Level def) {
+		if (name != null) {
+			try {
+				return Level.valueOf(name.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				//Falls through to the default.
+			}
+		}
+		return def;
+	}
+}
@@ -0,0 +1,114 @@
+package me.DanL.ThreadedServer.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long things took, in nanoseconds, precisely enough to read off percentiles to within about 3%.
+ *
+ * Same idea as an HDR histogram: buckets double in width with each power of 2, and each power of 2 is split into 32 equal
+ * sub-buckets, so every bucket's width is at most 1/32 of the values in it. That covers everything from 1ns to centuries in under
+ * 2000 counters, and recording is a couple of shifts and an atomic increment, so it's cheap enough to do for every packet.
+ * @author daniel
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB = 1 << SUB_BITS;
+
+	/**
+	 * Enough buckets for any positive long.
+	 */
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Records one thing taking this long.
+	 * @param nanos - How long. Anything below 0 (e.g. from a clock going backwards) counts as 0.
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		max.accumulateAndGet(nanos, Math::max);
+	}
+
+	private static int bucket(long v) {
+		if (v < SUB) {
+			return (int) v;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+		return (exp - SUB_BITS + 1) * SUB + sub;
+	}
+
+	/**
+	 * @return - The middle of a bucket's range.
+	 */
+	private static long valueOf(int bucket) {
+		if (bucket < SUB) {
+			return bucket;
+		}
+		int exp = bucket / SUB + SUB_BITS - 1;
+		long width = 1L << (exp - SUB_BITS);
+		return ((SUB | (bucket & (SUB - 1))) * width) + (width - 1) / 2;
+	}
+
+	/**
+	 * @return - How many things have been recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return - How long they took in total, in nanoseconds.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return - The longest anything took, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Reads off a percentile. Things recorded while this runs may or may not be counted.
+	 * @param q - Which, as a fraction, e.g. 0.99 for the 99th percentile.
+	 * @return - About how long that fraction of things took at most, in nanoseconds, or 0 if nothing's been recorded.
+	 */
+	public long getPercentile(double q) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(valueOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,251 @@
+package me.DanL.ThreadedServer.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+import me.DanL.ThreadedServer.Logging.Log;
+
+/**
+ * Everything the server counts about itself, in one place so it can be read out through JMX or scraped as plain text.
+ *
+ * Each part of the server registers its own metrics when it starts up, as something to call for the current value (so there's
+ * nothing to keep in sync) or a {@link LatencyHistogram}. Metrics with the same name and different labels (e.g. one per packet
+ * type) are grouped together. Registering the same name and labels again replaces the old one.
+ *
+ * {@link #start()} puts them in JMX as me.DanL.ThreadedServer:type=Metrics, and serves them in Prometheus' text format at
+ * http://127.0.0.1:9404/metrics. The port and address are set with threadedchat.metrics.port (0 for no endpoint) and
+ * threadedchat.metrics.host. It's plain HTTP with no login, so only put it somewhere private.
+ * @author daniel
+ *
+ */
+public class Metrics {
+
+	private enum Kind {
+		COUNTER, GAUGE, SUMMARY
+	}
+
+	/**
+	 * Every metric with one name.
+	 */
+	private static class Family {
+
+		final String help;
+
+		final Kind kind;
+
+		/**
+		 * Labels (e.g. type="SEND", or "" for none) to a LongSupplier or LatencyHistogram.
+		 */
+		final Map<String, Object> series = new LinkedHashMap<String, Object>();
+
+		Family(String help, Kind kind) {
+			this.help = help;
+			this.kind = kind;
+		}
+	}
+
+	/**
+	 * The percentiles given for every histogram.
+	 */
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	/**
+	 * What each percentile's called in JMX.
+	 */
+	private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+	private static final String PREFIX = "threadedchat_";
+
+	/**
+	 * Guarded by itself.
+	 */
+	private static final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+	private static HttpServer endpoint = null;
+
+	/**
+	 * Registers something that only ever goes up, e.g. how many packets have been handled.
+	 * @param name - What it's called, without the threadedchat_ on the front. Should end in _total.
+	 * @param labels - What sets it apart from others with the same name, e.g. type="SEND", or "" if nothing.
+	 * @param help - What it is, in a few words.
+	 * @param value - Gets the current value.
+	 */
+	public static void counter(String name, String labels, String help, LongSupplier value) {
+		register(name, labels, help, Kind.COUNTER, value);
+	}
+
+	/**
+	 * Registers something that goes up and down, e.g. how many messages are waiting.
+	 * @param name - What it's called, without the threadedchat_ on the front.
+	 * @param labels - What sets it apart from others with the same name, or "".
+	 * @param help - What it is, in a few words.
+	 * @param value - Gets the current value.
+	 */
+	public static void gauge(String name, String labels, String help, LongSupplier value) {
+		register(name, labels, help, Kind.GAUGE, value);
+	}
+
+	/**
+	 * Registers a histogram of how long something takes. It's given in seconds, as percentiles along with the total count and time.
+	 * @param name - What it's called, without the threadedchat_ on the front. Should end in _seconds.
+	 * @param labels - What sets it apart from others with the same name, or "".
+	 * @param help - What it is, in a few words.
+	 * @param h - The histogram.
+	 */
+	public static void latency(String name, String labels, String help, LatencyHistogram h) {
+		register(name, labels, help, Kind.SUMMARY, h);
+	}
+
+	private static void register(String name, String labels, String help, Kind kind, Object source) {
+		synchronized (families) {
+			Family f = families.computeIfAbsent(PREFIX + name, k -> new Family(help, kind));
+			if (f.kind != kind) {
+				throw new IllegalArgumentException(name + " is already a " + f.kind);
+			}
+			f.series.put(labels, source);
+		}
+	}
+
+	/**
+	 * @return - Every metric, in Prometheus' text format.
+	 */
+	public static String scrape() {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, Family> e: snapshot()) {
+			String name = e.getKey();
+			Family f = e.getValue();
+			sb.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(f.kind.name().toLowerCase()).append('\n');
+			for (Entry<String, Object> s: series(f)) {
+				String labels = s.getKey();
+				if (f.kind != Kind.SUMMARY) {
+					line(sb, name, labels, Long.toString(((LongSupplier) s.getValue()).getAsLong()));
+					continue;
+				}
+				LatencyHistogram h = (LatencyHistogram) s.getValue();
+				for (double q: QUANTILES) {
+					String quantile = "quantile=\"" + q + "\"";
+					line(sb, name, labels.isEmpty() ? quantile : labels + "," + quantile, seconds(h.getPercentile(q)));
+				}
+				line(sb, name + "_sum", labels, seconds(h.getSum()));
+				line(sb, name + "_count", labels, Long.toString(h.getCount()));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void line(StringBuilder sb, String name, String labels, String value) {
+		sb.append(name);
+		if (!labels.isEmpty()) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	/**
+	 * @return - Every metric as a flat name and value, for JMX: labels are folded into the name (e.g. packets_total.SEND) and
+	 * histograms become a _count, a _sum_nanos, a _max_nanos and a _p50_nanos and so on for each percentile.
+	 */
+	static Map<String, Long> flatten() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (Entry<String, Family> e: snapshot()) {
+			for (Entry<String, Object> s: series(e.getValue())) {
+				String name = e.getKey().substring(PREFIX.length()) + labelSuffix(s.getKey());
+				if (s.getValue() instanceof LongSupplier) {
+					values.put(name, ((LongSupplier) s.getValue()).getAsLong());
+					continue;
+				}
+				LatencyHistogram h = (LatencyHistogram) s.getValue();
+				values.put(name + "_count", h.getCount());
+				values.put(name + "_sum_nanos", h.getSum());
+				values.put(name + "_max_nanos", h.getMax());
+				for (int i = 0; i < QUANTILES.length; i++) {
+					values.put(name + "_" + QUANTILE_NAMES[i] + "_nanos", h.getPercentile(QUANTILES[i]));
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return - type="SEND",reason="x" as .SEND.x
+	 */
+	private static String labelSuffix(String labels) {
+		StringBuilder sb = new StringBuilder();
+		for (String label: labels.split(",")) {
+			int quote = label.indexOf('"');
+			if (quote >= 0) {
+				sb.append('.').append(label, quote + 1, label.length() - 1);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static List<Entry<String, Family>> snapshot() {
+		synchronized (families) {
+			return new ArrayList<Entry<String, Family>>(families.entrySet());
+		}
+	}
+
+	private static List<Entry<String, Object>> series(Family f) {
+		synchronized (families) {
+			return new ArrayList<Entry<String, Object>>(f.series.entrySet());
+		}
+	}
+
+	/**
+	 * Makes the metrics readable from outside: registers the MBean, and starts the scrape endpoint unless it's been turned off.
+	 * Neither is fatal if it doesn't work, since the server runs fine without them.
+	 */
+	public static synchronized void start() {
+		try {
+			ObjectName name = new ObjectName("me.DanL.ThreadedServer:type=Metrics");
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), name);
+			}
+		}
+		catch (JMException e) {
+			Log.warn("Couldn't register the metrics MBean", "error", e);
+		}
+		int port = Integer.getInteger("threadedchat.metrics.port", 9404);
+		if (port <= 0 || endpoint != null) {
+			return;
+		}
+		String host = System.getProperty("threadedchat.metrics.host", "127.0.0.1");
+		try {
+			HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+			http.createContext("/metrics", exchange -> {
+				byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			http.start();
+			endpoint = http;
+			Log.info("Serving metrics", "url", "http://" + host + ":" + port + "/metrics");
+		}
+		catch (IOException e) {
+			Log.warn("Couldn't start the metrics endpoint", "host", host, "port", port, "error", e);
+		}
+	}
+}
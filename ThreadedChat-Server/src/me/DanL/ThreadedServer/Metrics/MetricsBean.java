@@ -0,0 +1,69 @@
+package me.DanL.ThreadedServer.Metrics;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Shows every registered metric as a read-only JMX attribute. The attributes are worked out each time they're asked for, so
+ * metrics registered after this is don't need it told about them.
+ * @author daniel
+ *
+ */
+class MetricsBean implements DynamicMBean {
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = Metrics.flatten().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Long> values = Metrics.flatten();
+		AttributeList list = new AttributeList();
+		for (String name: attributes) {
+			if (values.containsKey(name)) {
+				list.add(new Attribute(name, values.get(name)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList(); //None of them can be set.
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Long> values = Metrics.flatten();
+		MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (Entry<String, Long> e: values.entrySet()) {
+			attrs[i++] = new MBeanAttributeInfo(e.getKey(), "long", e.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "ThreadedChat server metrics", attrs, null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,63 @@
+package me.DanL.ThreadedServer.PacketManage;
+
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.DanL.PacketManager.Packet;
+import me.DanL.PacketManager.PacketConnection;
+
+/**
+ * Stands in for the connection while a BATCH's operations are handled, collecting their replies so they can go back as one packet.
+ * Anything other than sending goes straight through to the real connection.
+ * @author daniel
+ *
+ */
+class BatchReplies extends PacketConnection {
+
+	private final PacketConnection conn;
+
+	private final List<byte[]> replies = new ArrayList<byte[]>();
+
+	BatchReplies(PacketConnection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * @return - Every reply so far, in the order they were sent.
+	 */
+	List<byte[]> getReplies() {
+		return replies;
+	}
+
+	@Override
+	public void send(String data, int streamId) {
+		replies.add(data.getBytes(StandardCharsets.UTF_8)); //Batches are version 2 only, so this shouldn't happen.
+	}
+
+	@Override
+	public void send(byte[] data, int streamId) {
+		replies.add(data);
+	}
+
+	@Override
+	public int getStreamId() {
+		return Packet.NO_STREAM; //Nothing in a batch can hold its reply back.
+	}
+
+	@Override
+	public void close() {
+		conn.close();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return conn.isOpen();
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return conn.getRemoteAddress();
+	}
+}
@@ -0,0 +1,81 @@
+package me.DanL.ThreadedServer.PacketManage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.DanL.PacketManager.PacketConnection;
+import me.DanL.ThreadedServer.PacketManage.PacketParser.PacketType;
+import me.DanL.ThreadedServer.Primary.MessageListener;
+import me.DanL.ThreadedServer.Primary.Server;
+
+/**
+ * A WAIT: answered as soon as there are messages for the user, or with an empty reply once the time's up.
+ * For clients that can't take pushed packets.
+ * @author daniel
+ *
+ */
+class LongPoll implements MessageListener {
+
+	private final UUID who;
+
+	private final PacketConnection conn;
+
+	private final int version;
+
+	private final AtomicBoolean answered = new AtomicBoolean(false);
+
+	/**
+	 * @param who - Whose messages we're waiting on.
+	 * @param waitRequest - The connection the WAIT came in on, tagged with its stream.
+	 * @param version - The protocol version the connection's using.
+	 */
+	LongPoll(UUID who, PacketConnection waitRequest, int version) {
+		this.who = who;
+		conn = waitRequest;
+		this.version = version;
+	}
+
+	/**
+	 * Starts waiting. Returns straight away.
+	 * @param seconds - How long to wait before giving up and replying with nothing.
+	 */
+	void start(int seconds) {
+		Server.subscribe(who, this);
+		if (!answered.get()) {
+			CompletableFuture.delayedExecutor(seconds, TimeUnit.SECONDS).execute(this::expire);
+		}
+	}
+
+	@Override
+	public boolean offer(List<String> msgs) {
+		if (msgs.isEmpty()) {
+			return !answered.get(); //Nothing yet, so keep waiting.
+		}
+		if (!conn.isOpen() || !answered.compareAndSet(false, true)) {
+			return false; //Already answered, so these are for the next WAIT.
+		}
+		try {
+			Replies.messages(conn, version, PacketType.WAIT, msgs, conn.getStreamId());
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void expire() {
+		if (!answered.compareAndSet(false, true)) {
+			return;
+		}
+		Server.unsubscribe(who, this);
+		try {
+			Replies.messages(conn, version, PacketType.WAIT, List.of(), conn.getStreamId());
+		} catch (IOException e) {
+			//Client's gone, which is fine since there was nothing to tell them.
+		}
+	}
+}
@@ -1,38 +1,237 @@
 package me.DanL.ThreadedServer.PacketManage;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 import me.DanL.E2EChat.CryptoUtils.RSAKey;
 import me.DanL.E2EChat.CryptoUtils.RSAKey.MalformedKeyFileException;
 import me.DanL.PacketManager.Connection;
 import me.DanL.PacketManager.DataReceiver;
+import me.DanL.PacketManager.Packet;
+import me.DanL.PacketManager.PacketConnection;
+import me.DanL.ThreadedServer.Logging.Log;
+import me.DanL.ThreadedServer.Logging.Log.Level;
+import me.DanL.ThreadedServer.Metrics.LatencyHistogram;
+import me.DanL.ThreadedServer.Metrics.Metrics;
 import me.DanL.ThreadedServer.PacketManage.PacketParser.PacketType;
+import me.DanL.ThreadedServer.Primary.MessagePage;
 import me.DanL.ThreadedServer.Primary.Server;
+import me.DanL.ThreadedServer.UserManagement.ClientSession;
 
 public class MasterPacketHandler implements DataReceiver {
+	
+	/**
+	 * The longest a WAIT can hold on to its reply.
+	 */
+	private static final int MAX_WAIT_SECONDS = 60;
+	
+	/**
+	 * The most messages a FETCH can ask for in one page.
+	 */
+	private static final int MAX_PAGE_MSGS = 1000;
+	
+	/**
+	 * Roughly the most bytes of messages in one FETCH page, so a page never needs much memory however big the mailbox gets.
+	 */
+	private static final int MAX_PAGE_BYTES = 1024 * 1024;
 
-	@Override
-	public void getData(Socket source, String data) {
-		//Server.debugOutput("Got packet: " + data);
-		PacketParser parsedPacket = new PacketParser(data);
-		if (parsedPacket.getType() != PacketType.MESSAGES) {
-			Server.debugOutput("Packet parse result:");
-			Server.debugOutput(parsedPacket.toString());
+	/**
+	 * Authenticated packets per user, a token each (a BATCH takes one per operation). Set with threadedchat.rate.user.
+	 */
+	private final RateLimiter<UUID> userLimit = RateLimiter.fromProperty("threadedchat.rate.user", "100,1000");
+
+	/**
+	 * Handshake packets (HELLO, PERSON and CRYPT) per source address, since there's no user to go on yet.
+	 * Set with threadedchat.rate.address.
+	 */
+	private final RateLimiter<InetAddress> addressLimit = RateLimiter.fromProperty("threadedchat.rate.address", "5,20");
+
+	/**
+	 * Packets of each type from everyone put together, each set with threadedchat.rate.type.&lt;TYPE&gt;.
+	 * Only HELLO is limited by default, since every one costs an RSA encryption.
+	 */
+	private final EnumMap<PacketType, RateLimiter<PacketType>> typeLimits = new EnumMap<PacketType, RateLimiter<PacketType>>(PacketType.class);
+
+	/**
+	 * How long each type of packet takes, from arriving to being dealt with (including any wait for a thread).
+	 */
+	private final EnumMap<PacketType, LatencyHistogram> latency = new EnumMap<PacketType, LatencyHistogram>(PacketType.class);
+
+	private final LongAdder invalid = new LongAdder();
+
+	private final LongAdder unauthenticated = new LongAdder();
+
+	private final LongAdder wrongSender = new LongAdder();
+
+	public MasterPacketHandler() {
+		for (PacketType t: PacketType.values()) {
+			RateLimiter<PacketType> limit = RateLimiter.fromProperty("threadedchat.rate.type." + t, t == PacketType.HELLO ? "200,500" : "off");
+			if (limit != null) {
+				typeLimits.put(t, limit);
+			}
+			LatencyHistogram h = new LatencyHistogram();
+			latency.put(t, h);
+			Metrics.latency("packet_seconds", "type=\"" + t + "\"", "Time from a packet arriving to it being handled.", h);
 		}
+		String rejected = "Packets turned away without being handled.";
+		Metrics.counter("packets_rejected_total", "reason=\"invalid\"", rejected, invalid::sum);
+		Metrics.counter("packets_rejected_total", "reason=\"unauthenticated\"", rejected, unauthenticated::sum);
+		Metrics.counter("packets_rejected_total", "reason=\"wrong_sender\"", rejected, wrongSender::sum);
+		Metrics.counter("packets_rejected_total", "reason=\"rate_user\"", rejected, this::getUserRejections);
+		Metrics.counter("packets_rejected_total", "reason=\"rate_address\"", rejected, this::getAddressRejections);
+		Metrics.counter("packets_rejected_total", "reason=\"rate_type\"", rejected, () -> {
+			long total = 0;
+			for (PacketType t: PacketType.values()) {
+				total += getTypeRejections(t);
+			}
+			return total;
+		});
+	}
+
+	@Override
+	public void getData(PacketConnection source, String data) {
+		getPacket(source, new Packet(data.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	@Override
+	public void getPacket(PacketConnection source, Packet packet) {
+		long start = System.nanoTime();
+		ClientSession session = getSession(source);
+		//Parsed straight from the bytes, no string needed, in whichever protocol version was agreed at the HELLO.
+		process(source, session, new PacketParser(packet.getData(), session.getProtocolVersion()), start);
+	}
+	
+	private void process(PacketConnection source, ClientSession session, PacketParser parsedPacket, long start) {
 		if (!parsedPacket.isAuthenticated()) { //Authenticated packets are implicitly valid.
 			//The packet isn't valid, so reject it silently.
-			Server.debugOutput("Unauthenticated packet, rejecting...");
+			(parsedPacket.isValid() ? unauthenticated : invalid).increment();
+			if (Log.isEnabled(Level.DEBUG)) {
+				Log.debug("Rejected a packet", "reason", parsedPacket.isValid() ? "unauthenticated" : "invalid", "type", parsedPacket.getType(), "from", source.getRemoteAddress());
+			}
 			terminateSock(source);
 			return;
 		}
+		if (parsedPacket.getSender() != null && !session.mayActAs(parsedPacket.getSender())) {
+			//Someone else's packet on this user's connection, which no honest client would ever send.
+			wrongSender.increment();
+			Log.warn("Rejected a packet from someone other than the connection's owner", "type", parsedPacket.getType(), "sender", parsedPacket.getSender(), "from", source.getRemoteAddress());
+			terminateSock(source);
+			return;
+		}
+		if (!withinLimits(source, parsedPacket)) {
+			if (Log.isEnabled(Level.DEBUG)) {
+				Log.debug("Over a rate limit", "type", parsedPacket.getType(), "sender", parsedPacket.getSender(), "from", source.getRemoteAddress());
+			}
+			if (!PacketParser.requiresAuth(parsedPacket.getType())) {
+				terminateSock(source); //Nothing's been started yet, so a handshake can just be dropped.
+				return;
+			}
+			try {
+				Replies.busy(source, parsedPacket.getVersion());
+			}
+			catch (IOException e) {
+				terminateSock(source);
+			}
+			return;
+		}
+		//Packets are parsed (and so authenticated) in the order they arrive, which keeps each client's SENDs in order.
+		//Lookups on a tagged stream can be answered out of order though, so a slow key file read doesn't hold up the packets behind it.
+		if (source.getStreamId() != Packet.NO_STREAM && isLookup(parsedPacket.getType())) {
+			try {
+				Connection.getDispatchExecutor().execute(() -> handle(source, session, parsedPacket, start));
+				return;
+			}
+			catch (RejectedExecutionException e) {
+				//Too busy to fork it off, so just answer it here.
+			}
+		}
+		handle(source, session, parsedPacket, start);
+	}
+	
+	/**
+	 * Takes a packet's tokens from every limit it comes under. Only called on valid packets, and authenticated ones are only
+	 * counted against their sender once they're known to be from them, so nobody can use up someone else's tokens.
+	 * @return - If it's allowed through.
+	 */
+	private boolean withinLimits(PacketConnection source, PacketParser packet) {
+		PacketType type = packet.getType();
+		if (!PacketParser.requiresAuth(type)) {
+			SocketAddress addr = source.getRemoteAddress();
+			if (addressLimit != null && addr instanceof InetSocketAddress && !addressLimit.tryTake(((InetSocketAddress) addr).getAddress(), 1)) {
+				return false;
+			}
+			return withinTypeLimit(type);
+		}
+		if (type == PacketType.BATCH) {
+			List<PacketParser> ops = packet.batchOps();
+			if (userLimit != null && !userLimit.tryTake(packet.getSender(), Math.max(1, ops.size()))) {
+				return false;
+			}
+			for (PacketParser op: ops) {
+				if (!withinTypeLimit(op.getType())) {
+					return false; //Batching mustn't get round a type's limit.
+				}
+			}
+			return true;
+		}
+		return (userLimit == null || userLimit.tryTake(packet.getSender(), 1)) && withinTypeLimit(type);
+	}
+	
+	private boolean withinTypeLimit(PacketType type) {
+		RateLimiter<PacketType> limit = typeLimits.get(type);
+		return limit == null || limit.tryTake(type, 1);
+	}
+	
+	/**
+	 * @return - How many packets have been turned away for their sender being over threadedchat.rate.user.
+	 */
+	public long getUserRejections() {
+		return userLimit == null ? 0 : userLimit.getRejected();
+	}
+	
+	/**
+	 * @return - How many handshakes have been turned away for their address being over threadedchat.rate.address.
+	 */
+	public long getAddressRejections() {
+		return addressLimit == null ? 0 : addressLimit.getRejected();
+	}
+	
+	/**
+	 * @return - How many packets of a type have been turned away for everyone together being over its limit.
+	 */
+	public long getTypeRejections(PacketType type) {
+		RateLimiter<PacketType> limit = typeLimits.get(type);
+		return limit == null ? 0 : limit.getRejected();
+	}
+	
+	/**
+	 * @return - If a packet of this type only reads state, so it doesn't matter what order it's answered in.
+	 */
+	private static boolean isLookup(PacketType type) {
+		return type == PacketType.KEY || type == PacketType.GET || type == PacketType.GETID;
+	}
+	
+	/**
+	 * @param start - When the packet arrived, from System.nanoTime().
+	 */
+	private void handle(PacketConnection source, ClientSession session, PacketParser parsedPacket, long start) {
+		boolean keepOpen = true;
 		try {
 			switch (parsedPacket.getType()) {
-			case CRYPT: //Packet should never be received without explanation.
-				Server.debugOutput("CRYPT packet received unexpectedly, exiting...");
+			case CRYPT:
+				keepOpen = handleCRYPT(session, parsedPacket);
 				break;
 			case GET:
 				handleGET(source, parsedPacket);
@@ -41,7 +240,7 @@ public class MasterPacketHandler implements DataReceiver {
 				handleGETID(source, parsedPacket);
 				break;
 			case HELLO:
-				handleHELLO(source, parsedPacket);
+				handleHELLO(session, parsedPacket);
 				break;
 			case KEY:
 				handleKEY(source, parsedPacket);
@@ -49,142 +248,348 @@ public class MasterPacketHandler implements DataReceiver {
 			case MESSAGES:
 				handleMESSAGES(source, parsedPacket);
 				break;
-			case PERSON: //Packet should never be received without explanation.
-				Server.debugOutput("PERSON packet received unexpectedly, exiting...");
+			case FETCH:
+				handleFETCH(source, parsedPacket);
+				break;
+			case PERSON:
+				keepOpen = handlePERSON(session, parsedPacket);
 				break;
 			case SEND:
 				handleSEND(source, parsedPacket);
 				break;
+			case GROUP:
+				handleGROUP(source, parsedPacket);
+				break;
+			case GSEND:
+				handleGSEND(source, parsedPacket);
+				break;
+			case SUBSCRIBE:
+				handleSUBSCRIBE(session, source, parsedPacket);
+				break;
+			case WAIT:
+				handleWAIT(session, source, parsedPacket);
+				break;
+			case BATCH:
+				handleBATCH(source, parsedPacket);
+				break;
 			default:
 				break;
 			}
 		}
 		catch (IOException e){
-			Server.debugOutput("ERROR!");
-			e.printStackTrace(); //This is a problem.
+			Log.error("Couldn't handle a packet", e, "type", parsedPacket.getType(), "sender", parsedPacket.getSender()); //This is a problem.
+			keepOpen = false;
 		}
 		
-		
-		//Leave this at the end: bear in mind we can block this function up as much as we damn well please:
-		//all new connections are shoved into new threads.
-		terminateSock(source);
-		
+		//The connection is kept for the client's next packet unless something went wrong with this one.
+		if (!keepOpen) {
+			terminateSock(source);
+		}
+		long took = System.nanoTime() - start;
+		latency.get(parsedPacket.getType()).record(took);
+		if (Log.isEnabled(Level.DEBUG)) {
+			Log.debug("Handled a packet", "type", parsedPacket.getType(), "sender", parsedPacket.getSender(), "micros", took / 1000, "kept", keepOpen);
+		}
 	}
 	
-	private void terminateSock(Socket s) {
-		try {
-			if (!s.isClosed()) {
-				s.close();
+	@Override
+	public void connectionClosed(PacketConnection source) {
+		Object state = source.getAttachment();
+		if (state instanceof ClientSession) {
+			ClientSession ses = (ClientSession) state;
+			Server.getAuthProvider().unbindSession(ses);
+			if (ses.getUser() != null && ses.getListener() != null) {
+				Server.unsubscribe(ses.getUser(), ses.getListener());
 			}
 		}
-		catch (IOException e) {
-			e.printStackTrace();
+	}
+	
+	/**
+	 * Gets the session attached to a connection, creating it if this is the first packet on the connection.
+	 */
+	private ClientSession getSession(PacketConnection s) {
+		Object state = s.getAttachment();
+		if (state instanceof ClientSession) {
+			return (ClientSession) state;
 		}
+		ClientSession session = new ClientSession(s);
+		s.setAttachment(session);
+		return session;
 	}
 	
-	private void handleHELLO(Socket s, PacketParser triggerPacket) throws IOException {
+	private void terminateSock(PacketConnection s) {
+		s.close();
+	}
+	
+	private void handleHELLO(ClientSession ses, PacketParser triggerPacket) throws IOException {
 		//We've received a HELLO from the server.
 		UUID personUUID = triggerPacket.getSender();
 		RSAKey userKey = Server.getAuthProvider().getUserPubKey(personUUID);
 		if (userKey == null) {
 			//New user (or sent a malformed public key last time).
-			Server.debugOutput("New user with ID: " + triggerPacket.getSender().toString());
-			Connection.send(s, "NEW");
-			//Now, await their response: if they vanish then it doesn't matter that much.
-			String person = new String(Connection.readDat(s, 1024));
-			PacketParser personPack = new PacketParser(person);
-			String publicKey = new String(Connection.readDat(s, 65535)); //Massive read size since RSA keys are huge in comparison to names.
-			PacketParser keyPack = new PacketParser(publicKey);
-			if (personPack.isAuthenticated() && personPack.getType() == PacketType.PERSON) {
-				if (keyPack.isAuthenticated() && keyPack.getType() == PacketType.CRYPT) {
-					try {
-						userKey = new RSAKey(keyPack.payload(), false);
-					} catch (MalformedKeyFileException e) {
-						// Silently drop connection here.
-						return;
-					}
-					Server.debugOutput("Adding user...");
-					Server.getAuthProvider().addUser(personUUID, userKey, personPack.payload());
-				}
-			}
+			Log.debug("Starting a registration", "user", personUUID);
+			//Now, await their PERSON and CRYPT packets: if they vanish then it doesn't matter that much.
+			ses.beginRegistration(personUUID);
+			ses.setRequestedVersion(triggerPacket.getRequestedVersion());
+			ses.getConnection().send("NEW");
+			return;
 		}
+		ses.setRequestedVersion(triggerPacket.getRequestedVersion());
+		sendChallenge(ses, personUUID, userKey);
+	}
+	
+	/**
+	 * Handles the PERSON part of a registration.
+	 * @return - False if the packet wasn't expected and the connection should be dropped.
+	 */
+	private boolean handlePERSON(ClientSession ses, PacketParser trigger) {
+		if (ses.getRegistering() == null || ses.getRegisteringName() != null) {
+			Log.debug("PERSON packet received unexpectedly, dropping the connection", "from", ses.getConnection().getRemoteAddress());
+			return false;
+		}
+		ses.setRegisteringName(trigger.payload());
+		return true;
+	}
+	
+	/**
+	 * Handles the CRYPT part of a registration, which finishes it off.
+	 * @return - False if the packet wasn't expected or the key was broken, and the connection should be dropped.
+	 */
+	private boolean handleCRYPT(ClientSession ses, PacketParser trigger) throws IOException {
+		UUID who = ses.getRegistering();
+		String name = ses.getRegisteringName();
+		ses.endRegistration();
+		if (who == null || name == null) {
+			Log.debug("CRYPT packet received unexpectedly, dropping the connection", "from", ses.getConnection().getRemoteAddress());
+			return false;
+		}
+		RSAKey userKey;
+		try {
+			userKey = new RSAKey(trigger.payload(), false);
+		} catch (MalformedKeyFileException e) {
+			// Silently drop connection here.
+			return false;
+		}
+		Log.info("Registered a new user", "user", who, "name", name);
+		Server.getAuthProvider().addUser(who, userKey, name);
+		sendChallenge(ses, who, userKey);
+		return true;
+	}
+	
+	private void sendChallenge(ClientSession ses, UUID personUUID, RSAKey userKey) throws IOException {
 		//Now, we generate the user a session token and send it to them
 		byte[] userSes = Server.getAuthProvider().resetUserSessionKey(personUUID);
 		String encryptedPayload = Base64.getEncoder().encodeToString(userKey.encrypt(userSes));
-		Server.debugOutput("Sending user challenge...");
-		Connection.send(s, "CHALLENGE " + encryptedPayload);
+		Server.getAuthProvider().bindSession(personUUID, ses);
+		Log.debug("Sending a challenge", "user", personUUID);
+		//Everything after the challenge is in the newest version we both speak. Older clients don't ask, and get version 1.
+		int version = Math.min(ses.getRequestedVersion(), PacketParser.MAX_VERSION);
+		ses.setProtocolVersion(version);
+		ses.getConnection().send("CHALLENGE " + encryptedPayload + (version > 1 ? " " + version : ""));
 		//And done.
 	}
 	
-	private void handleKEY(Socket s, PacketParser trigger) throws IOException {
-		String strUid = trigger.payload();
+	private void handleKEY(PacketConnection s, PacketParser trigger) throws IOException {
 		UUID lookup = null;
 		try {
-			lookup = UUID.fromString(strUid);
+			lookup = trigger.payloadUUID();
 		}
 		catch (IllegalArgumentException e) {
-			Server.debugOutput("Bad UUID provided, sending null key...");
-			Connection.send(s, "PKEY null");
+			Log.debug("Bad UUID provided, sending a null key");
+			Replies.publicKey(s, trigger.getVersion(), null);
+			return;
 		}
-		RSAKey key = Server.getAuthProvider().getUserPubKey(lookup);
+		String key = Server.getAuthProvider().getUserPubKeyString(lookup);
 		if (key == null) {
-			Server.debugOutput("Bad user provided, sending null key...");
-			Connection.send(s, "PKEY null");
+			Log.debug("No such user, sending a null key", "user", lookup);
+			Replies.publicKey(s, trigger.getVersion(), null);
 		}
 		else {
-			Server.debugOutput("Sending public key...");
-			Connection.send(s, "PKEY " + key.savePublicToString().replace(" ", "").replace("\n", "")); //Sends the user's public RSA key.
+			Log.debug("Sending a public key", "user", lookup);
+			Replies.publicKey(s, trigger.getVersion(), key); //Sends the user's public RSA key, straight from the cache.
 		}
 	}
 	
-	private void handleGET(Socket s, PacketParser trigger) throws IOException {
+	private void handleGET(PacketConnection s, PacketParser trigger) throws IOException {
 		String nameToCheck = trigger.payload();
 		UUID result = Server.getAuthProvider().getUid(nameToCheck);
-		Connection.send(s, "USER " + result.toString());
+		Replies.user(s, trigger.getVersion(), result);
 	}
 	
-	private void handleGETID(Socket s, PacketParser trigger) throws IOException {
+	private void handleGETID(PacketConnection s, PacketParser trigger) throws IOException {
+		String result;
 		try {
-			UUID u = UUID.fromString(trigger.payload());
-			String result = Server.getAuthProvider().getName(u);
-			Connection.send(s, "USER " + result);
+			result = Server.getAuthProvider().getName(trigger.payloadUUID());
 		}
 		catch (IllegalArgumentException e) {
-			Connection.send(s, "USER null"); //Invalid UUID looked up.
+			result = null; //Invalid UUID looked up.
 		}
+		Replies.userName(s, trigger.getVersion(), result);
 	}
 	
-	private void handleSEND(Socket s, PacketParser trigger) {
-		String msgRaw = trigger.payload();
+	private void handleSEND(PacketConnection s, PacketParser trigger) throws IOException {
+		//Every packet on a kept-alive connection gets exactly one reply, so the client knows we're done with it.
+		whenSaved(s, send(trigger), () -> Replies.sent(s, trigger.getVersion()));
+	}
+
+	/**
+	 * Queues a SEND's message.
+	 * @return - Completed once it's saved.
+	 */
+	private CompletableFuture<Void> send(PacketParser trigger) {
 		try {
-			String[] sp = msgRaw.split(" ");
-			UUID target = UUID.fromString(sp[1]);
-			String sent = sp[0];
+			UUID target = trigger.sendTarget();
 			//System.out.println("RECV.> " + sent);
-			Server.addPendingMsg(target, sent);
+			return Server.addPendingMsg(target, trigger.sendMessage());
 		}
 		catch (IllegalArgumentException e) {
 			//Silently reject due to invalid ID.
+			return CompletableFuture.completedFuture(null);
 		}
-		
 	}
 	
-	private void handleMESSAGES(Socket s, PacketParser trigger) throws IOException {
+	private void handleGROUP(PacketConnection s, PacketParser trigger) throws IOException {
+		Replies.group(s, trigger.getVersion(), Server.createGroup(trigger.getSender(), trigger.groupMembers()));
+	}
+	
+	private void handleGSEND(PacketConnection s, PacketParser trigger) throws IOException {
+		CompletableFuture<Void> saved = groupSend(trigger);
+		if (saved == null) {
+			Replies.groupSent(s, trigger.getVersion(), false);
+			return;
+		}
+		whenSaved(s, saved, () -> Replies.groupSent(s, trigger.getVersion(), true));
+	}
+
+	/**
+	 * Queues a GSEND's message for the rest of the group.
+	 * @return - Completed once it's saved, or null if it wasn't sent.
+	 */
+	private CompletableFuture<Void> groupSend(PacketParser trigger) {
+		try {
+			return Server.addGroupMsg(trigger.getSender(), trigger.sendTarget(), trigger.sendMessage());
+		}
+		catch (IllegalArgumentException e) {
+			return null; //Invalid group ID.
+		}
+	}
+
+	/**
+	 * Something to send once a message is saved.
+	 */
+	private interface Reply {
+		void send() throws IOException;
+	}
+
+	/**
+	 * Sends a reply once a message is on disk, so SENT always means it'll survive a crash. On a tagged stream the reply's sent
+	 * by whoever saves it, leaving this thread free for the next packet. Untagged replies have to go in order, so that waits here.
+	 * @param s - Where the reply's going, closed if it can't be sent.
+	 * @param saved - Completed once the message is saved.
+	 * @param reply - Sends the reply.
+	 */
+	private void whenSaved(PacketConnection s, CompletableFuture<Void> saved, Reply reply) throws IOException {
+		if (saved.isDone() || s.getStreamId() == Packet.NO_STREAM) {
+			try {
+				saved.join();
+			}
+			catch (CompletionException e) {
+				throw new IOException("Couldn't save a message.", e.getCause());
+			}
+			reply.send();
+			return;
+		}
+		saved.whenComplete((v, e) -> {
+			try {
+				if (e != null) {
+					throw new IOException("Couldn't save a message.", e);
+				}
+				reply.send();
+			}
+			catch (IOException ex) {
+				Log.error("Couldn't reply once a message was saved", ex);
+				terminateSock(s);
+			}
+		});
+	}
+	
+	private void handleMESSAGES(PacketConnection s, PacketParser trigger) throws IOException {
 		List<String> pendingForClient = Server.getAndClearMsgs(trigger.getSender());
 		//System.out.println("Sending messages...");
-		if (pendingForClient == null) {
-			//Nothing to send to the client
-			//System.out.println("Nothing to send to " + trigger.getSender());
-			Connection.send(s, "LENGTH 0\n");
+		Replies.messages(s, trigger.getVersion(), trigger.getType(), pendingForClient == null ? List.of() : pendingForClient, s.getStreamId());
+	}
+	
+	private void handleFETCH(PacketConnection s, PacketParser trigger) throws IOException {
+		int max = Math.max(0, Math.min(trigger.fetchPageSize(), MAX_PAGE_MSGS));
+		MessagePage page = Server.fetchMsgs(trigger.getSender(), trigger.fetchCursor(), max, MAX_PAGE_BYTES);
+		Replies.page(s, trigger.getVersion(), page);
+	}
+	
+	/**
+	 * Handles each operation in a BATCH in order, then sends all their replies back together.
+	 */
+	private void handleBATCH(PacketConnection s, PacketParser trigger) throws IOException {
+		BatchReplies replies = new BatchReplies(s);
+		List<CompletableFuture<Void>> saves = new ArrayList<CompletableFuture<Void>>();
+		for (PacketParser op: trigger.batchOps()) {
+			switch (op.getType()) {
+			case GET:
+				handleGET(replies, op);
+				break;
+			case GETID:
+				handleGETID(replies, op);
+				break;
+			case KEY:
+				handleKEY(replies, op);
+				break;
+			case MESSAGES:
+				handleMESSAGES(replies, op);
+				break;
+			case FETCH:
+				handleFETCH(replies, op);
+				break;
+			case SEND:
+				saves.add(send(op));
+				Replies.sent(replies, op.getVersion()); //Only goes out with the rest, once everything's saved.
+				break;
+			case GROUP:
+				handleGROUP(replies, op);
+				break;
+			case GSEND:
+				CompletableFuture<Void> saved = groupSend(op);
+				if (saved != null) {
+					saves.add(saved);
+				}
+				Replies.groupSent(replies, op.getVersion(), saved != null);
+				break;
+			default:
+				throw new IOException("Can't batch a " + op.getType()); //The parser doesn't let anything else in.
+			}
+		}
+		whenSaved(s, CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[0])), () -> Replies.batch(s, replies.getReplies()));
+	}
+	
+	private void handleSUBSCRIBE(ClientSession ses, PacketConnection s, PacketParser trigger) throws IOException {
+		if (s.getStreamId() == Packet.NO_STREAM) {
+			//Pushes are told apart from replies by their stream, so an untagged client just gets what's waiting, same as MESSAGES.
+			handleMESSAGES(s, trigger);
 			return;
 		}
-		String sendStr = "";
-		for (String msg: pendingForClient) {
-			sendStr += "MSG " + msg + ";";
+		PushSubscription sub = new PushSubscription(s, trigger.getVersion());
+		ses.setListener(sub);
+		Server.subscribe(trigger.getSender(), sub); //Sends the reply with whatever's already waiting.
+	}
+	
+	private void handleWAIT(ClientSession ses, PacketConnection s, PacketParser trigger) throws IOException {
+		int seconds = Math.max(0, Math.min(trigger.waitSeconds(), MAX_WAIT_SECONDS));
+		if (s.getStreamId() == Packet.NO_STREAM || seconds == 0) {
+			//Holding an untagged reply back would hold up the replies to everything sent after it.
+			handleMESSAGES(s, trigger);
+			return;
 		}
-		//System.out.println("SEND> " + sendStr); //Messages are lost at some point between here... 
-		//Connection.send(s, "LENGTH " + sendStr.length() + "\n"); //Ditching length packet altogether.
-		Connection.send(s, sendStr);
+		LongPoll poll = new LongPoll(trigger.getSender(), s, trigger.getVersion());
+		ses.setListener(poll);
+		poll.start(seconds);
 	}
 
 }
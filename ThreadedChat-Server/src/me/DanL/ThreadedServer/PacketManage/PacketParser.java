@@ -1,36 +1,134 @@
 package me.DanL.ThreadedServer.PacketManage;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
 
+import me.DanL.PacketManager.WireFormat;
+import me.DanL.ThreadedServer.Logging.Log;
+import me.DanL.ThreadedServer.Logging.Log.Level;
 import me.DanL.ThreadedServer.Primary.Server;
 
 /**
  * A packet parser that parses all incoming packets into a usable object.
+ * Works straight off the packet's bytes: fields are found by position rather than split out into strings, the numbers and
+ * UUIDs in them are read in place, and the payload is only turned into a string if someone asks for it.
+ *
+ * Once a connection has agreed on version 2 of the protocol (see desc.md), its packets are binary instead:
+ * a type byte, the packet number as a varint, the raw 32 byte HMAC, the sender's UUID as 16 bytes, and then the payload.
+ * The payload is still what's signed, and the get methods for its parts work the same whichever version the packet was.
+ *
+ * A version 2 BATCH carries several operations under one packet number and HMAC: a varint count, then each operation as its
+ * type byte and its payload as length prefixed bytes. {@link #batchOps()} gives a parser for each, which counts as authenticated
+ * if the BATCH was.
+ *
+ * A GROUP makes a group conversation out of the sender and a list of members, and a GSEND sends a message to every other member
+ * of one. A GSEND looks just like a SEND, with the group where the recipient would be.
  * @author daniel
  *
  */
 public class PacketParser {
-	
+
 	public enum PacketType{
-		HELLO,
-		PERSON,
-		CRYPT,
-		GET,
-		GETID,
-		KEY,
-		MESSAGES,
-		SEND
-	}
-	
-	private String payload = "";
-	
+		HELLO(0),
+		PERSON(0),
+		CRYPT(0),
+		GET(1),
+		GETID(2),
+		KEY(3),
+		MESSAGES(4),
+		FETCH(5),
+		SEND(6),
+		SUBSCRIBE(7),
+		WAIT(8),
+		BATCH(9),
+		GROUP(10),
+		GSEND(11);
+
+		private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+		/**
+		 * The type byte of version 2 packets (and their replies), or 0 if it's only sent as text, before a version's been agreed.
+		 */
+		final int code;
+
+		PacketType(int code) {
+			this.code = code;
+		}
+	}
+
+	/**
+	 * The newest protocol version we can parse.
+	 */
+	public static final int MAX_VERSION = 2;
+
+	/**
+	 * The most operations one BATCH can carry.
+	 */
+	public static final int MAX_BATCH_OPS = 64;
+
+	/**
+	 * The length of a raw HMAC-SHA256 tag in a version 2 packet.
+	 */
+	private static final int MAC_LEN = 32;
+
+	/**
+	 * Packet types by their version 2 type byte.
+	 */
+	private static final PacketType[] TYPES_BY_CODE = new PacketType[16];
+
+	/**
+	 * Packet types by their first letter (A = 0), so a lookup only ever compares against a few names.
+	 */
+	private static final PacketType[][] TYPES_BY_LETTER = new PacketType[26][0];
+
+	static {
+		for (PacketType t: PacketType.values()) {
+			if (t.code != 0) {
+				TYPES_BY_CODE[t.code] = t;
+			}
+			int letter = t.name[0] - 'A';
+			PacketType[] old = TYPES_BY_LETTER[letter];
+			PacketType[] grown = new PacketType[old.length + 1];
+			System.arraycopy(old, 0, grown, 0, old.length);
+			grown[old.length] = t;
+			TYPES_BY_LETTER[letter] = grown;
+		}
+	}
+
+	/**
+	 * The most space separated fields any packet has (SEND and GSEND).
+	 */
+	private static final int MAX_FIELDS = 6;
+
+	private final byte[] raw;
+
+	/**
+	 * Where each field starts and ends in raw, as start, end, start, end...
+	 */
+	private final int[] fields = new int[MAX_FIELDS * 2];
+
+	private int fieldCount = 0;
+
+	private int payloadStart = 0;
+
+	private int payloadEnd = 0;
+
+	/**
+	 * Made from raw the first time it's asked for.
+	 */
+	private String payload = null;
+
 	private UUID sender = null;
-	
+
 	private int packetNum;
-	
+
 	private byte[] authToken;
-	
+
 	/**
 	 * If the packet has valid structure.
 	 */
@@ -39,9 +137,16 @@ public class PacketParser {
 	 * If the packet contains a valid authentication tag.
 	 */
 	private boolean authenticated = false;
-	
+
 	private PacketType typeOf;
-	
+
+	private final int version;
+
+	/**
+	 * The protocol version a HELLO asks for.
+	 */
+	private int requestedVersion = 1;
+
 	/**
 	 * Test if the given packet type needs a session token attached to it. See spec.
 	 * @param pt - What type to check.
@@ -59,68 +164,423 @@ public class PacketParser {
 			return true;
 		}
 	}
-	
+
 	public PacketParser(String packetData) {
-		String[] parts = packetData.trim().split(" ");
-		String type = parts[0];
-		try {
-			typeOf = PacketType.valueOf(type);
+		this(packetData.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param packetData - The packet's bytes, as text. Not copied, so they mustn't change while the parser's in use.
+	 */
+	public PacketParser(byte[] packetData) {
+		this(packetData, 1);
+	}
+
+	/**
+	 * @param packetData - The packet's bytes. Not copied, so they mustn't change while the parser's in use.
+	 * @param version - The protocol version the connection's using.
+	 */
+	public PacketParser(byte[] packetData, int version) {
+		raw = packetData;
+		this.version = version;
+		if (version >= 2) {
+			parseBinary();
+			return;
 		}
-		catch (IllegalArgumentException e) {
-			System.out.println("Invalid packet of type " + type + " sent!");
+		split();
+		if (fieldCount == 0) {
+			Log.debug("Empty packet sent");
+			return;
+		}
+		typeOf = lookupType(fields[0], fields[1]);
+		if (typeOf == null) {
+			if (Log.isEnabled(Level.DEBUG)) {
+				Log.debug("Invalid packet type sent", "type", fieldString(0));
+			}
 			return; //Invalid packet type.
 		}
 		try {
 			switch (typeOf) {
 			case CRYPT:
-				payload = parts[1];
+				setPayload(1, 1);
 				break;
 			case GET:
-				payload = parts[1];
-				packetNum = Integer.parseInt(parts[2]);
-				authToken = Base64.getDecoder().decode(parts[3]);
-				sender = UUID.fromString(parts[4]);
-				break;
 			case GETID:
-				payload = parts[1];
-				packetNum = Integer.parseInt(parts[2]);
-				authToken = Base64.getDecoder().decode(parts[3]);
-				sender = UUID.fromString(parts[4]);
+			case KEY:
+				setPayload(1, 1);
+				readAuth(2);
 				break;
 			case HELLO:
-				sender = UUID.fromString(parts[1]);
-				break;
-			case KEY:
-				payload = parts[1];
-				packetNum = Integer.parseInt(parts[2]);
-				authToken = Base64.getDecoder().decode(parts[3]);
-				sender = UUID.fromString(parts[4]);
+				sender = parseUUID(1);
+				if (fieldCount > 2) {
+					requestedVersion = parseInt(start(2), end(2)); //Newer clients say which version they'd like.
+				}
 				break;
 			case MESSAGES:
-				packetNum = Integer.parseInt(parts[1]);
-				authToken = Base64.getDecoder().decode(parts[2]);
-				sender = UUID.fromString(parts[3]);
+			case SUBSCRIBE:
+				setPayload(1, 0); //No payload.
+				readAuth(1);
+				break;
+			case FETCH:
+				setPayload(1, 1);
+				int comma = indexOf((byte) ',', payloadStart, payloadEnd);
+				if (comma < 0) {
+					throw new IllegalArgumentException("No page size"); //<cursor>,<page size>
+				}
+				parseInt(comma + 1, payloadEnd);
+				readAuth(2);
 				break;
 			case PERSON:
-				payload = parts[1];
+				setPayload(1, 1);
+				break;
+			case WAIT:
+				setPayload(1, 1);
+				parseInt(payloadStart, payloadEnd); //How many seconds to wait, so it had better be a number.
+				readAuth(2);
 				break;
 			case SEND:
-				payload = parts[1] + " " + parts[2];
-				packetNum = Integer.parseInt(parts[3]);
-				authToken = Base64.getDecoder().decode(parts[4]);
-				sender = UUID.fromString(parts[5]);
+			case GSEND:
+				setPayload(1, 2); //<message> <target>
+				readAuth(3);
+				break;
+			case GROUP:
+				setPayload(1, 1);
+				groupMembers(); //<member>,<member>... so they'd better all be UUIDs.
+				readAuth(2);
 				break;
+			case BATCH:
+				throw new IllegalArgumentException("BATCH needs version 2");
 			}
 		}
-		catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
-			//Failed to parse packet correctly, so just return.
-			e.printStackTrace();
+		catch (IllegalArgumentException e) {
+			//Failed to parse packet correctly, so just return. Covers bad numbers, UUIDs and base64, and missing fields.
+			Log.debug("Malformed packet", "type", typeOf, "error", e.getMessage());
 			return;
 		}
 		valid = true; //Packet has the required structure
-		authenticated = (!requiresAuth(typeOf)) || Server.getAuthProvider().packetAuthed(payload, sender, packetNum, authToken);
+		authenticated = (!requiresAuth(typeOf)) || Server.getAuthProvider().packetAuthed(raw, payloadStart, payloadEnd - payloadStart, sender, packetNum, authToken);
+	}
+
+	private void parseBinary() {
+		if (raw.length == 0 || (raw[0] & 0xFF) >= TYPES_BY_CODE.length || TYPES_BY_CODE[raw[0] & 0xFF] == null) {
+			Log.debug("Invalid binary packet type sent");
+			return;
+		}
+		typeOf = TYPES_BY_CODE[raw[0] & 0xFF];
+		try {
+			ByteBuffer b = ByteBuffer.wrap(raw, 1, raw.length - 1);
+			packetNum = WireFormat.getVarint(b);
+			authToken = new byte[MAC_LEN];
+			b.get(authToken);
+			sender = WireFormat.getUUID(b);
+			payloadStart = b.position();
+			payloadEnd = raw.length;
+			checkPayload(typeOf, b);
+		}
+		catch (BufferUnderflowException | IllegalArgumentException e) {
+			Log.debug("Malformed binary packet", "type", typeOf);
+			return;
+		}
+		valid = true;
+		authenticated = Server.getAuthProvider().packetAuthed(raw, payloadStart, payloadEnd - payloadStart, sender, packetNum, authToken);
+	}
+
+	/**
+	 * Checks a version 2 payload has the right structure for its type, so the get methods for its parts can't fail later.
+	 * @param b - The payload, and nothing after it.
+	 * @throws IllegalArgumentException - If it's malformed. Can also throw BufferUnderflowException.
+	 */
+	private static void checkPayload(PacketType type, ByteBuffer b) {
+		switch (type) {
+		case GETID:
+		case KEY:
+			if (b.remaining() != WireFormat.UUID_LEN) {
+				throw new IllegalArgumentException("Payload isn't a UUID");
+			}
+			break;
+		case MESSAGES:
+		case SUBSCRIBE:
+			if (b.hasRemaining()) {
+				throw new IllegalArgumentException("Unexpected payload");
+			}
+			break;
+		case FETCH:
+			WireFormat.getBytes(b); //<cursor>
+			WireFormat.getVarint(b); //<page size>
+			break;
+		case WAIT:
+			WireFormat.getVarint(b);
+			break;
+		case SEND:
+		case GSEND:
+			WireFormat.getUUID(b); //Then the message is the rest of the packet.
+			break;
+		case GROUP:
+			int members = WireFormat.getVarint(b);
+			if (members < 1 || members > Server.MAX_GROUP_MEMBERS || b.remaining() != members * WireFormat.UUID_LEN) {
+				throw new IllegalArgumentException("Bad member list");
+			}
+			break;
+		case BATCH:
+			int count = WireFormat.getVarint(b);
+			if (count > MAX_BATCH_OPS) {
+				throw new IllegalArgumentException("Too many operations in a BATCH");
+			}
+			for (int i = 0; i < count; i++) {
+				PacketType op = batchOpType(b.get());
+				int len = WireFormat.getVarint(b);
+				if (len > b.remaining()) {
+					throw new BufferUnderflowException();
+				}
+				checkPayload(op, b.slice(b.position(), len));
+				b.position(b.position() + len);
+			}
+			if (b.hasRemaining()) {
+				throw new IllegalArgumentException("Unexpected data after a BATCH");
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @return - The type of an operation in a BATCH, from its type byte.
+	 * @throws IllegalArgumentException - If it's not a type that can go in a BATCH: anything that holds its reply back
+	 * (SUBSCRIBE and WAIT) or another BATCH can't.
+	 */
+	private static PacketType batchOpType(byte code) {
+		PacketType op = (code & 0xFF) < TYPES_BY_CODE.length ? TYPES_BY_CODE[code & 0xFF] : null;
+		if (op == null || op == PacketType.SUBSCRIBE || op == PacketType.WAIT || op == PacketType.BATCH) {
+			throw new IllegalArgumentException("Can't batch type " + code);
+		}
+		return op;
+	}
+
+	/**
+	 * Makes the parser for one operation of a BATCH.
+	 */
+	private PacketParser(PacketParser batch, PacketType type, int payloadStart, int payloadEnd) {
+		raw = batch.raw;
+		version = batch.version;
+		typeOf = type;
+		sender = batch.sender;
+		packetNum = batch.packetNum;
+		this.payloadStart = payloadStart;
+		this.payloadEnd = payloadEnd;
+		valid = true; //Checked along with the BATCH.
+		authenticated = batch.authenticated;
+	}
+
+	/**
+	 * @return - The operations in a BATCH, in order.
+	 */
+	public List<PacketParser> batchOps() {
+		ByteBuffer b = payloadBuffer();
+		int count = WireFormat.getVarint(b);
+		List<PacketParser> ops = new ArrayList<PacketParser>(count);
+		for (int i = 0; i < count; i++) {
+			PacketType op = batchOpType(b.get());
+			int len = WireFormat.getVarint(b);
+			ops.add(new PacketParser(this, op, b.position(), b.position() + len));
+			b.position(b.position() + len);
+		}
+		return ops;
+	}
+
+	/**
+	 * Finds the fields, which are separated by single spaces, ignoring any whitespace either end of the packet.
+	 */
+	private void split() {
+		int start = 0;
+		int end = raw.length;
+		while (start < end && isWhitespace(raw[start])) {
+			start++;
+		}
+		while (end > start && isWhitespace(raw[end - 1])) {
+			end--;
+		}
+		if (start == end) {
+			return;
+		}
+		int fieldStart = start;
+		for (int i = start; i < end; i++) {
+			if (raw[i] == ' ') {
+				if (!addField(fieldStart, i)) {
+					return;
+				}
+				fieldStart = i + 1;
+			}
+		}
+		addField(fieldStart, end);
 	}
-	
+
+	/**
+	 * @return - False if there's no room for any more fields. No packet has that many, so the rest wouldn't be looked at anyway.
+	 */
+	private boolean addField(int start, int end) {
+		if (fieldCount == MAX_FIELDS) {
+			return false;
+		}
+		fields[fieldCount * 2] = start;
+		fields[fieldCount * 2 + 1] = end;
+		fieldCount++;
+		return true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private PacketType lookupType(int start, int end) {
+		int letter = raw[start] - 'A';
+		if (letter < 0 || letter >= TYPES_BY_LETTER.length) {
+			return null;
+		}
+		for (PacketType t: TYPES_BY_LETTER[letter]) {
+			if (t.name.length != end - start) {
+				continue;
+			}
+			int i = 1;
+			while (i < t.name.length && t.name[i] == raw[start + i]) {
+				i++;
+			}
+			if (i == t.name.length) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Marks some fields as the payload.
+	 * @param first - The first field of the payload.
+	 * @param count - How many fields it is, including the spaces between them. 0 for an empty payload.
+	 */
+	private void setPayload(int first, int count) {
+		if (count == 0) {
+			payloadStart = payloadEnd = 0;
+			return;
+		}
+		payloadStart = start(first);
+		payloadEnd = end(first + count - 1);
+	}
+
+	/**
+	 * Reads the packet number, token and sender, which always come in that order at the end of an authenticated packet.
+	 * @param first - The packet number's field.
+	 */
+	private void readAuth(int first) {
+		packetNum = parseInt(start(first), end(first));
+		authToken = decodeBase64(first + 1);
+		sender = parseUUID(first + 2);
+	}
+
+	private int start(int field) {
+		if (field >= fieldCount) {
+			throw new IllegalArgumentException("Missing field " + field);
+		}
+		return fields[field * 2];
+	}
+
+	private int end(int field) {
+		if (field >= fieldCount) {
+			throw new IllegalArgumentException("Missing field " + field);
+		}
+		return fields[field * 2 + 1];
+	}
+
+	private String fieldString(int field) {
+		return new String(raw, start(field), end(field) - start(field), StandardCharsets.UTF_8);
+	}
+
+	private int indexOf(byte b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (raw[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Same rules as Integer.parseInt, without having to make a string first.
+	 */
+	private int parseInt(int start, int end) {
+		if (start >= end) {
+			throw new NumberFormatException("Empty number");
+		}
+		boolean negative = raw[start] == '-';
+		int i = (negative || raw[start] == '+') ? start + 1 : start;
+		if (i == end) {
+			throw new NumberFormatException("No digits");
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = raw[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Bad digit");
+			}
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1) {
+				throw new NumberFormatException("Number too big");
+			}
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Number too big");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Reads a UUID in its usual 36 character form. Anything else goes through UUID.fromString, so the odd forms it allows still work.
+	 */
+	private UUID parseUUID(int field) {
+		int start = start(field);
+		int end = end(field);
+		if (end - start != 36) {
+			return UUID.fromString(fieldString(field));
+		}
+		long msb = 0;
+		long lsb = 0;
+		for (int i = 0; i < 36; i++) {
+			byte c = raw[start + i];
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-') {
+					throw new IllegalArgumentException("Bad UUID");
+				}
+				continue;
+			}
+			int nibble = hexDigit(c);
+			if (i < 18) {
+				msb = (msb << 4) | nibble;
+			}
+			else {
+				lsb = (lsb << 4) | nibble;
+			}
+		}
+		return new UUID(msb, lsb);
+	}
+
+	private static int hexDigit(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		throw new IllegalArgumentException("Bad UUID");
+	}
+
+	private byte[] decodeBase64(int field) {
+		ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(raw, start(field), end(field) - start(field)));
+		return decoded.array(); //Backed by an array of exactly the decoded length.
+	}
+
 	public UUID getSender() {
 		return sender;
 	}
@@ -144,7 +604,7 @@ public class PacketParser {
 		else {
 			desc += "\nNo declared sender.";
 		}
-		desc += "\nPacket payload: " + payload;
+		desc += "\nPacket payload: " + (version >= 2 ? (payloadEnd - payloadStart) + " bytes" : payload());
 		desc += "\n";
 		return desc;
 	}
@@ -162,12 +622,130 @@ public class PacketParser {
 	public boolean isAuthenticated() {
 		return authenticated;
 	}
-	
+
 	public PacketType getType() {
 		return typeOf;
 	}
-	
+
+	/**
+	 * @return - The protocol version the packet was sent in.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return - The protocol version a HELLO asked for: 1 if it didn't say.
+	 */
+	public int getRequestedVersion() {
+		return requestedVersion;
+	}
+
+	private ByteBuffer payloadBuffer() {
+		return ByteBuffer.wrap(raw, payloadStart, payloadEnd - payloadStart);
+	}
+
+	/**
+	 * @return - The user a KEY or GETID is looking up.
+	 * @throws IllegalArgumentException - If it isn't a valid UUID.
+	 */
+	public UUID payloadUUID() {
+		if (version >= 2) {
+			return WireFormat.getUUID(payloadBuffer());
+		}
+		return UUID.fromString(payload());
+	}
+
+	/**
+	 * @return - Who a SEND is for, or the group a GSEND's for.
+	 * @throws IllegalArgumentException - If it isn't a valid UUID.
+	 */
+	public UUID sendTarget() {
+		if (version >= 2) {
+			return WireFormat.getUUID(payloadBuffer());
+		}
+		int space = indexOf((byte) ' ', payloadStart, payloadEnd);
+		return UUID.fromString(new String(raw, space + 1, payloadEnd - space - 1, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return - The message in a SEND or GSEND, base64 encoded (which is how it's stored, whichever version it came in).
+	 */
+	public String sendMessage() {
+		if (version >= 2) {
+			int start = payloadStart + WireFormat.UUID_LEN;
+			return new String(Base64.getEncoder().encode(ByteBuffer.wrap(raw, start, payloadEnd - start)).array(), StandardCharsets.US_ASCII);
+		}
+		int space = indexOf((byte) ' ', payloadStart, payloadEnd);
+		return new String(raw, payloadStart, space - payloadStart, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return - Who a GROUP says should be in the group, besides the sender.
+	 * @throws IllegalArgumentException - If one isn't a valid UUID, or there are too many.
+	 */
+	public List<UUID> groupMembers() {
+		List<UUID> members = new ArrayList<UUID>();
+		if (version >= 2) {
+			ByteBuffer b = payloadBuffer();
+			for (int i = WireFormat.getVarint(b); i > 0; i--) {
+				members.add(WireFormat.getUUID(b));
+			}
+			return members;
+		}
+		int start = payloadStart;
+		while (start < payloadEnd) {
+			int comma = indexOf((byte) ',', start, payloadEnd);
+			int end = comma < 0 ? payloadEnd : comma;
+			members.add(UUID.fromString(new String(raw, start, end - start, StandardCharsets.US_ASCII)));
+			if (members.size() > Server.MAX_GROUP_MEMBERS) {
+				throw new IllegalArgumentException("Too many members");
+			}
+			start = end + 1;
+		}
+		return members;
+	}
+
+	/**
+	 * @return - The cursor a FETCH acknowledges.
+	 */
+	public String fetchCursor() {
+		if (version >= 2) {
+			return new String(WireFormat.getBytes(payloadBuffer()), StandardCharsets.US_ASCII);
+		}
+		int comma = indexOf((byte) ',', payloadStart, payloadEnd);
+		return new String(raw, payloadStart, comma - payloadStart, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return - How many messages a FETCH asked for.
+	 */
+	public int fetchPageSize() {
+		if (version >= 2) {
+			ByteBuffer b = payloadBuffer();
+			WireFormat.getBytes(b);
+			return WireFormat.getVarint(b);
+		}
+		return parseInt(indexOf((byte) ',', payloadStart, payloadEnd) + 1, payloadEnd);
+	}
+
+	/**
+	 * @return - How many seconds a WAIT will wait.
+	 */
+	public int waitSeconds() {
+		if (version >= 2) {
+			return WireFormat.getVarint(payloadBuffer());
+		}
+		return parseInt(payloadStart, payloadEnd);
+	}
+
+	/**
+	 * @return - The payload, made into a string the first time this is called.
+	 */
 	public String payload() {
+		if (payload == null) {
+			payload = new String(raw, payloadStart, payloadEnd - payloadStart, StandardCharsets.UTF_8);
+		}
 		return payload;
 	}
 }
@@ -0,0 +1,55 @@
+package me.DanL.ThreadedServer.PacketManage;
+
+import java.io.IOException;
+import java.util.List;
+
+import me.DanL.PacketManager.PacketConnection;
+import me.DanL.ThreadedServer.PacketManage.PacketParser.PacketType;
+import me.DanL.ThreadedServer.Primary.MessageListener;
+
+/**
+ * A SUBSCRIBE: the messages already waiting go back as the reply, and from then on each new message is pushed down the
+ * connection on {@link #PUSH_STREAM} as soon as it arrives, until the connection closes.
+ * @author daniel
+ *
+ */
+class PushSubscription implements MessageListener {
+
+	/**
+	 * The stream pushed messages are tagged with. Negative, so it can never clash with a request.
+	 */
+	static final int PUSH_STREAM = -1;
+
+	private final PacketConnection conn;
+
+	private final int version;
+
+	/**
+	 * Only touched from offer(), which the mailbox never calls from two threads at once.
+	 */
+	private boolean replied = false;
+
+	/**
+	 * @param subscribeRequest - The connection the SUBSCRIBE came in on, tagged with its stream.
+	 * @param version - The protocol version the connection's using.
+	 */
+	PushSubscription(PacketConnection subscribeRequest, int version) {
+		conn = subscribeRequest;
+		this.version = version;
+	}
+
+	@Override
+	public boolean offer(List<String> msgs) {
+		if (!conn.isOpen()) {
+			return false;
+		}
+		try {
+			Replies.messages(conn, version, PacketType.SUBSCRIBE, msgs, replied ? PUSH_STREAM : conn.getStreamId());
+			replied = true;
+			return true;
+		}
+		catch (IOException e) {
+			return false; //Connection's gone, so keep the messages for next time.
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package me.DanL.ThreadedServer.PacketManage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets, one per key (e.g. per user), all with the same rate and burst.
+ * Buckets are only made when a key's first seen, refill lazily when they're next used, and are dropped once they've been idle long
+ * enough to be full again (which is the same as not having one), so keys nobody's using don't cost anything.
+ * @author daniel
+ *
+ */
+class RateLimiter<K> {
+
+	/**
+	 * One bucket's worth of tokens.
+	 */
+	private static class TokenBucket {
+
+		private final double perNano;
+
+		private final double burst;
+
+		/**
+		 * Guarded by this.
+		 */
+		private double tokens;
+
+		/**
+		 * When tokens was last topped up. Guarded by this.
+		 */
+		private long last;
+
+		/**
+		 * @param perSecond - How many tokens it gets back a second.
+		 * @param burst - The most it can hold, which it starts with.
+		 */
+		TokenBucket(double perSecond, double burst) {
+			this.perNano = perSecond / 1e9;
+			this.burst = burst;
+			tokens = burst;
+			last = System.nanoTime();
+		}
+
+		/**
+		 * Takes some tokens, if there are enough.
+		 * @param n - How many. More than the bucket can hold just takes all of them, rather than never being allowed.
+		 * @return - If they were taken. If not, none are.
+		 */
+		synchronized boolean tryTake(int n) {
+			refill();
+			double want = Math.min(n, burst);
+			if (tokens < want) {
+				return false;
+			}
+			tokens -= want;
+			return true;
+		}
+
+		/**
+		 * @return - If it's full, so dropping it wouldn't change anything.
+		 */
+		synchronized boolean isFull() {
+			refill();
+			return tokens >= burst;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - last) * perNano);
+			last = now;
+		}
+	}
+
+	private final double perSecond;
+
+	private final double burst;
+
+	private final ConcurrentHashMap<K, TokenBucket> buckets = new ConcurrentHashMap<K, TokenBucket>();
+
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * How many buckets there can be before the full ones are swept out.
+	 */
+	private volatile int sweepAt = 1024;
+
+	RateLimiter(double perSecond, double burst) {
+		this.perSecond = perSecond;
+		this.burst = burst;
+	}
+
+	/**
+	 * Makes a limiter from a system property.
+	 * @param name - The property, which should be "&lt;per second&gt;,&lt;burst&gt;", or "off".
+	 * @param def - What to use if it isn't set.
+	 * @return - The limiter, or null if it's off (or the setting doesn't make sense).
+	 */
+	static <K> RateLimiter<K> fromProperty(String name, String def) {
+		double[] setting = parse(System.getProperty(name, def));
+		return setting == null ? null : new RateLimiter<K>(setting[0], setting[1]);
+	}
+
+	private static double[] parse(String setting) {
+		if (setting == null) {
+			return null;
+		}
+		String[] parts = setting.split(",");
+		try {
+			if (parts.length == 2) {
+				double perSecond = Double.parseDouble(parts[0].trim());
+				double burst = Double.parseDouble(parts[1].trim());
+				if (perSecond > 0 && burst >= 1) {
+					return new double[] {perSecond, burst};
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			//Falls through to off.
+		}
+		return null; //"off", or nonsense.
+	}
+
+	/**
+	 * Takes some tokens from a key's bucket, if there are enough.
+	 * @param key - Whose bucket.
+	 * @param n - How many tokens.
+	 * @return - If they were taken. If not, it's counted as a rejection.
+	 */
+	boolean tryTake(K key, int n) {
+		TokenBucket b = buckets.get(key);
+		if (b == null) {
+			if (buckets.size() >= sweepAt) {
+				sweep();
+			}
+			b = buckets.computeIfAbsent(key, k -> new TokenBucket(perSecond, burst));
+		}
+		if (b.tryTake(n)) {
+			return true;
+		}
+		rejected.increment();
+		return false;
+	}
+
+	/**
+	 * Drops every full bucket. Only one thread sweeps at a time, and the next sweep waits until there are twice as many left.
+	 */
+	private synchronized void sweep() {
+		if (buckets.size() < sweepAt) {
+			return; //Someone else just did it.
+		}
+		buckets.values().removeIf(TokenBucket::isFull);
+		sweepAt = Math.max(1024, buckets.size() * 2);
+	}
+
+	/**
+	 * @return - How many times tokens have been refused.
+	 */
+	long getRejected() {
+		return rejected.sum();
+	}
+}
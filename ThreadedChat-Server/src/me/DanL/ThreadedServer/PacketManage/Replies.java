@@ -0,0 +1,241 @@
+package me.DanL.ThreadedServer.PacketManage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+import me.DanL.PacketManager.PacketConnection;
+import me.DanL.PacketManager.WireFormat;
+import me.DanL.ThreadedServer.PacketManage.PacketParser.PacketType;
+import me.DanL.ThreadedServer.Primary.MessagePage;
+
+/**
+ * Sends replies in whichever protocol version the connection's using.
+ *
+ * Version 2 replies start with the type byte of the packet they answer (SUBSCRIBE's for pushed messages), followed by:
+ * GET a flag byte (1 if found) and the UUID, GETID and KEY a flag byte and the name or key as length prefixed bytes,
+ * SEND nothing, MESSAGES, SUBSCRIBE and WAIT a varint count and then each message as length prefixed raw bytes,
+ * and FETCH the cursor as length prefixed bytes, a varint of how many messages are left, then the messages as for MESSAGES.
+ * A BATCH gets a varint count, then the reply to each of its operations (as above) as length prefixed bytes.
+ * @author daniel
+ *
+ */
+class Replies {
+
+	private Replies() {
+	}
+
+	/**
+	 * Answers a GET.
+	 * @param id - Who has the name, or null if nobody does.
+	 */
+	static void user(PacketConnection s, int version, UUID id) throws IOException {
+		if (version < 2) {
+			s.send("USER " + id); //Unknown names come back as "USER null", same as GETID.
+			return;
+		}
+		sendOptional(s, PacketType.GET, id);
+	}
+
+	/**
+	 * Answers a GROUP.
+	 * @param id - The new group, or null if it couldn't be made.
+	 */
+	static void group(PacketConnection s, int version, UUID id) throws IOException {
+		if (version < 2) {
+			s.send("GROUPID " + id);
+			return;
+		}
+		sendOptional(s, PacketType.GROUP, id);
+	}
+
+	private static void sendOptional(PacketConnection s, PacketType type, UUID id) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(2 + (id == null ? 0 : WireFormat.UUID_LEN));
+		b.put((byte) type.code).put((byte) (id == null ? 0 : 1));
+		if (id != null) {
+			WireFormat.putUUID(b, id);
+		}
+		s.send(b.array());
+	}
+
+	/**
+	 * Answers a GETID.
+	 * @param name - Their name, or null if there's no such user.
+	 */
+	static void userName(PacketConnection s, int version, String name) throws IOException {
+		if (version < 2) {
+			s.send("USER " + name);
+			return;
+		}
+		sendOptional(s, PacketType.GETID, name);
+	}
+
+	/**
+	 * Answers a KEY.
+	 * @param key - Their public key as saved to a string, or null if they don't have one.
+	 */
+	static void publicKey(PacketConnection s, int version, String key) throws IOException {
+		if (version < 2) {
+			s.send("PKEY " + key);
+			return;
+		}
+		sendOptional(s, PacketType.KEY, key);
+	}
+
+	private static void sendOptional(PacketConnection s, PacketType type, String value) throws IOException {
+		byte[] data = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocate(2 + WireFormat.bytesLen(data));
+		b.put((byte) type.code).put((byte) (value == null ? 0 : 1));
+		WireFormat.putBytes(b, data);
+		s.send(b.array());
+	}
+
+	/**
+	 * Answers a SEND.
+	 */
+	static void sent(PacketConnection s, int version) throws IOException {
+		if (version < 2) {
+			s.send("SENT");
+			return;
+		}
+		s.send(new byte[] {(byte) PacketType.SEND.code});
+	}
+
+	/**
+	 * Turns a packet away because its sender's over a rate limit, instead of its usual answer. Version 2 replies never otherwise
+	 * start with a 0.
+	 */
+	static void busy(PacketConnection s, int version) throws IOException {
+		if (version < 2) {
+			s.send("BUSY");
+			return;
+		}
+		s.send(new byte[] {0});
+	}
+
+	/**
+	 * Answers a GSEND.
+	 * @param sent - If it was sent. It isn't if there's no such group, or the sender isn't in it.
+	 */
+	static void groupSent(PacketConnection s, int version, boolean sent) throws IOException {
+		if (version < 2) {
+			s.send(sent ? "SENT" : "NOGROUP");
+			return;
+		}
+		s.send(new byte[] {(byte) PacketType.GSEND.code, (byte) (sent ? 1 : 0)});
+	}
+
+	/**
+	 * Sends some messages, as the answer to a MESSAGES, SUBSCRIBE or WAIT or as a push.
+	 * @param s - The connection.
+	 * @param version - The protocol version it's using.
+	 * @param type - What they're in answer to.
+	 * @param msgs - The messages, base64 encoded as they're stored.
+	 * @param streamId - The stream to send them on.
+	 */
+	static void messages(PacketConnection s, int version, PacketType type, List<String> msgs, int streamId) throws IOException {
+		if (version < 2) {
+			s.send(formatMessages(msgs), streamId);
+			return;
+		}
+		List<byte[]> raw = decode(msgs);
+		ByteBuffer b = ByteBuffer.allocate(1 + messagesLen(raw));
+		b.put((byte) type.code);
+		putMessages(b, raw);
+		s.send(b.array(), streamId);
+	}
+
+	/**
+	 * Answers a FETCH.
+	 */
+	static void page(PacketConnection s, int version, MessagePage page) throws IOException {
+		if (version < 2) {
+			StringBuilder sendStr = new StringBuilder("PAGE ").append(page.getCursor()).append(' ').append(page.getRemaining()).append('\n');
+			appendMessages(sendStr, page.getMessages());
+			s.send(sendStr.toString());
+			return;
+		}
+		byte[] cursor = page.getCursor().getBytes(StandardCharsets.US_ASCII);
+		List<byte[]> raw = decode(page.getMessages());
+		ByteBuffer b = ByteBuffer.allocate(1 + WireFormat.bytesLen(cursor) + WireFormat.varintLen(page.getRemaining()) + messagesLen(raw));
+		b.put((byte) PacketType.FETCH.code);
+		WireFormat.putBytes(b, cursor);
+		WireFormat.putVarint(b, page.getRemaining());
+		putMessages(b, raw);
+		s.send(b.array());
+	}
+
+	/**
+	 * Answers a BATCH.
+	 * @param replies - The reply to each operation, in order.
+	 */
+	static void batch(PacketConnection s, List<byte[]> replies) throws IOException {
+		int len = 1 + WireFormat.varintLen(replies.size());
+		for (byte[] reply: replies) {
+			len += WireFormat.bytesLen(reply);
+		}
+		ByteBuffer b = ByteBuffer.allocate(len);
+		b.put((byte) PacketType.BATCH.code);
+		WireFormat.putVarint(b, replies.size());
+		for (byte[] reply: replies) {
+			WireFormat.putBytes(b, reply);
+		}
+		s.send(b.array());
+	}
+
+	/**
+	 * Messages are kept base64 encoded, since that's how version 1 sends them. Version 2 sends the bytes they stand for.
+	 * Anything that isn't valid base64 (which no client could make sense of either) is left out.
+	 */
+	private static List<byte[]> decode(List<String> msgs) {
+		List<byte[]> raw = new ArrayList<byte[]>(msgs.size());
+		for (String msg: msgs) {
+			try {
+				raw.add(Base64.getDecoder().decode(msg));
+			}
+			catch (IllegalArgumentException e) {
+				//Skip it.
+			}
+		}
+		return raw;
+	}
+
+	private static int messagesLen(List<byte[]> raw) {
+		int len = WireFormat.varintLen(raw.size());
+		for (byte[] msg: raw) {
+			len += WireFormat.bytesLen(msg);
+		}
+		return len;
+	}
+
+	private static void putMessages(ByteBuffer b, List<byte[]> raw) {
+		WireFormat.putVarint(b, raw.size());
+		for (byte[] msg: raw) {
+			WireFormat.putBytes(b, msg);
+		}
+	}
+
+	/**
+	 * Formats messages the way a version 1 MESSAGES reply carries them.
+	 * @param msgs - The messages.
+	 * @return - Each message as MSG &lt;message&gt;; one after another, or LENGTH 0 if there aren't any.
+	 */
+	static String formatMessages(List<String> msgs) {
+		if (msgs.isEmpty()) {
+			return "LENGTH 0\n";
+		}
+		StringBuilder sendStr = new StringBuilder();
+		appendMessages(sendStr, msgs);
+		return sendStr.toString();
+	}
+
+	private static void appendMessages(StringBuilder sendStr, List<String> msgs) {
+		for (String msg: msgs) {
+			sendStr.append("MSG ").append(msg).append(';');
+		}
+	}
+}
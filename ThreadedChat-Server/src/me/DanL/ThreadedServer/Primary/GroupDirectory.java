@@ -0,0 +1,124 @@
+package me.DanL.ThreadedServer.Primary;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.DanL.ThreadedServer.Logging.Log;
+
+/**
+ * Every group conversation and who's in it. Membership is fixed when a group's made: to change it, make a new group.
+ *
+ * Groups are appended to the groups file as they're made, one per line: the group's UUID, then its members separated by
+ * semicolons, creator first. Lines that won't parse (e.g. one cut short by a crash) are skipped when it's loaded.
+ * @author daniel
+ *
+ */
+class GroupDirectory {
+
+	/**
+	 * Each group's members, sorted so a fan-out always locks their mailboxes in the same order.
+	 */
+	private final ConcurrentHashMap<UUID, List<UUID>> groups = new ConcurrentHashMap<UUID, List<UUID>>();
+
+	private final File file;
+
+	/**
+	 * Appended to as groups are made. Guarded by this.
+	 */
+	private FileOutputStream appender = null;
+
+	GroupDirectory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads every group from the groups file, if there is one.
+	 */
+	synchronized void load() {
+		Scanner fileReader;
+		try {
+			fileReader = new Scanner(file, "UTF-8");
+		} catch (FileNotFoundException e) {
+			return; //No groups yet.
+		}
+		while (fileReader.hasNextLine()) {
+			String[] parts = fileReader.nextLine().trim().split(",");
+			try {
+				if (parts.length == 2) {
+					List<UUID> members = new ArrayList<UUID>();
+					for (String member: parts[1].split(";")) {
+						members.add(UUID.fromString(member));
+					}
+					groups.put(UUID.fromString(parts[0]), sorted(members));
+					continue;
+				}
+			}
+			catch (IllegalArgumentException e) {
+				//Falls through to the warning.
+			}
+			Log.warn("Skipping a broken line", "file", file);
+		}
+		fileReader.close();
+	}
+
+	/**
+	 * Makes a group, saving it to disk before anyone can send to it.
+	 * @param members - Who's in it, creator first. Duplicates are ignored.
+	 * @return - The new group's UUID.
+	 * @throws IOException - If it couldn't be saved, in which case there's no group.
+	 */
+	synchronized UUID create(List<UUID> members) throws IOException {
+		UUID id = UUID.randomUUID();
+		StringBuilder line = new StringBuilder(id.toString()).append(',');
+		for (int i = 0; i < members.size(); i++) {
+			line.append(i == 0 ? "" : ";").append(members.get(i));
+		}
+		line.append('\n');
+		if (appender == null) {
+			appender = new FileOutputStream(file, true);
+		}
+		try {
+			appender.write(line.toString().getBytes(StandardCharsets.UTF_8));
+			appender.getFD().sync();
+		}
+		catch (IOException e) {
+			try {
+				appender.close();
+			}
+			catch (IOException e1) {
+				//Nothing left to lose.
+			}
+			appender = null; //Start again with a fresh stream next time.
+			throw e;
+		}
+		groups.put(id, sorted(members));
+		return id;
+	}
+
+	/**
+	 * @return - The group's members, sorted by UUID, or null if there's no such group.
+	 */
+	List<UUID> getMembers(UUID group) {
+		return groups.get(group);
+	}
+
+	private static List<UUID> sorted(List<UUID> members) {
+		List<UUID> s = new ArrayList<UUID>(members.size());
+		for (UUID m: members) {
+			if (!s.contains(m)) {
+				s.add(m);
+			}
+		}
+		Collections.sort(s);
+		return Collections.unmodifiableList(s);
+	}
+}
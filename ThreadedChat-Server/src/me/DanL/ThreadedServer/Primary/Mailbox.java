@@ -0,0 +1,395 @@
+package me.DanL.ThreadedServer.Primary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One user's pending messages, along with whoever's waiting on them.
+ * Each mailbox has its own lock, held only long enough to queue or take messages, so users never wait on each other.
+ * Changes are logged while the lock is held, so the log has each user's changes in the order they happened. Logging never
+ * waits on the disk; if it's fallen behind, new messages wait for it before the lock's taken (see {@link MessageLog#awaitRoom()}).
+ * Taking messages out is never held up, since the records are tiny and it frees memory rather than using it.
+ *
+ * Messages for a listener are offered to it with the lock released, since offering means writing to a socket, and closing a
+ * socket can call back into the mailbox (to unsubscribe). They stay pending until the listener's taken them, and only one
+ * thread offers at a time, so they still go out in order.
+ *
+ * Messages can also be fetched a page at a time with a cursor (see {@link #fetch(String, int, int)}), in which case they're
+ * only taken out once the client hands the cursor back to say it has them.
+ * @author daniel
+ *
+ */
+class Mailbox {
+
+	/**
+	 * How many messages are pending across every mailbox, and how many characters they add up to (a group message counts once
+	 * for each member holding it). Kept up to date as they change, for the metrics.
+	 */
+	static final LongAdder PENDING = new LongAdder(), PENDING_CHARS = new LongAdder();
+
+	private final UUID owner;
+
+	/**
+	 * Where changes are logged, or null if they aren't being saved.
+	 */
+	private final MessageLog log;
+
+	/**
+	 * Held only long enough to queue or take messages. A lock rather than a monitor so a fan-out can take a group's worth
+	 * in a loop.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Guarded by lock. Oldest first.
+	 */
+	private final ArrayDeque<String> pending = new ArrayDeque<String>();
+
+	/**
+	 * Guarded by lock.
+	 */
+	private MessageListener listener = null;
+
+	/**
+	 * Guarded by lock. If the listener hasn't been offered anything yet, so it should be even if there's nothing pending.
+	 */
+	private boolean greet = false;
+
+	/**
+	 * Guarded by lock. If a thread is offering messages to the listener. Whoever sets it carries on until there's nothing left.
+	 */
+	private boolean pushing = false;
+
+	/**
+	 * Picked fresh every time the mailbox is made, so a cursor from before a restart can't acknowledge messages it never saw.
+	 */
+	private final long epoch = ThreadLocalRandom.current().nextLong();
+
+	/**
+	 * Guarded by lock. How many messages have ever been taken out, which makes it the position of the oldest pending one.
+	 */
+	private long taken = 0;
+
+	/**
+	 * @param owner - Whose mailbox this is.
+	 * @param log - Where to log changes to, or null to not save them.
+	 */
+	Mailbox(UUID owner, MessageLog log) {
+		this.owner = owner;
+		this.log = log;
+	}
+
+	/**
+	 * Keeps a message, and hands it to the listener if there is one.
+	 * @param msg - The message.
+	 * @return - Completed once it's been saved, or straight away if nothing is.
+	 */
+	CompletableFuture<Void> add(String msg) {
+		CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+		if (log != null) {
+			log.awaitRoom();
+		}
+		boolean push;
+		lock.lock();
+		try {
+			keep(msg);
+			if (log != null) {
+				saved = log.enqueue(owner, msg);
+			}
+			push = claimPush();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (push) {
+			push();
+		}
+		return saved;
+	}
+
+	/**
+	 * Keeps a message, without logging it. The lock must be held.
+	 */
+	private void keep(String msg) {
+		pending.add(msg);
+		PENDING.increment();
+		PENDING_CHARS.add(msg.length());
+	}
+
+	/**
+	 * Checks if there's something for the listener and nobody's already offering it. The lock must be held.
+	 * @return - True if the caller should call {@link #push()} once it's let go of the lock.
+	 */
+	private boolean claimPush() {
+		if (pushing || listener == null || (pending.isEmpty() && !greet)) {
+			return false;
+		}
+		pushing = true;
+		return true;
+	}
+
+	/**
+	 * Offers pending messages to the listener until there are none left (or no listener). Only called after {@link #claimPush()}
+	 * said to, and never with the lock held. Messages are only taken out once the listener's taken them: if it turns them down
+	 * it's dropped, and they stay for whoever asks next.
+	 */
+	private void push() {
+		while (true) {
+			MessageListener l;
+			List<String> batch;
+			long start;
+			lock.lock();
+			try {
+				l = listener;
+				if (l == null || (pending.isEmpty() && !greet)) {
+					pushing = false;
+					return;
+				}
+				batch = new ArrayList<String>(pending);
+				start = taken;
+				greet = false;
+			}
+			finally {
+				lock.unlock();
+			}
+			boolean took = l.offer(batch);
+			lock.lock();
+			try {
+				if (!took) {
+					if (listener == l) {
+						listener = null;
+					}
+					continue; //Unless someone new has subscribed meanwhile, that's the end of it.
+				}
+				//Anything fetched or drained while the offer was going out has already been taken.
+				long done = Math.min(start + batch.size() - taken, pending.size());
+				if (done > 0) {
+					takeOldest((int) done);
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Takes out the oldest messages, and logs it. The lock must be held.
+	 */
+	private void takeOldest(int n) {
+		for (int i = 0; i < n; i++) {
+			PENDING_CHARS.add(-pending.poll().length());
+		}
+		PENDING.add(-n);
+		taken += n;
+		if (log != null) {
+			log.drain(owner, n);
+		}
+	}
+
+	/**
+	 * Adds one message to several mailboxes at once, for a group. Every mailbox gets the same string, so it's only in memory once
+	 * however many members are holding it, and it's freed once the last of them has taken it.
+	 * Every mailbox is locked (one after another, in order) while it's added, and it's logged as one record (the message, then
+	 * every member) before any are unlocked, so the log has it in the right place for everyone. That's only in-memory work, since
+	 * logging never waits (any waiting for the disk's been done by then), so even a big group's locks are only held briefly.
+	 * Members with listeners are offered it afterwards.
+	 * @param boxes - The mailboxes, sorted by owner so two fan-outs can't each be holding a lock the other wants.
+	 * @param msg - The message.
+	 * @param log - Where to log it, or null to not save it.
+	 * @param group - Which group it was sent to, for the log.
+	 * @return - Completed once it's been saved, or straight away if nothing is.
+	 */
+	static CompletableFuture<Void> fanOut(List<Mailbox> boxes, String msg, MessageLog log, UUID group) {
+		if (log != null) {
+			log.awaitRoom();
+		}
+		CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+		List<Mailbox> toPush = new ArrayList<Mailbox>();
+		int locked = 0;
+		try {
+			for (Mailbox box: boxes) {
+				box.lock.lock();
+				locked++;
+				box.keep(msg);
+			}
+			if (log != null && !boxes.isEmpty()) {
+				List<UUID> members = new ArrayList<UUID>(boxes.size());
+				for (Mailbox box: boxes) {
+					members.add(box.owner);
+				}
+				saved = log.fanOut(group, members, msg);
+			}
+			for (Mailbox box: boxes) {
+				if (box.claimPush()) {
+					toPush.add(box);
+				}
+			}
+		}
+		finally {
+			for (int i = locked - 1; i >= 0; i--) {
+				boxes.get(i).lock.unlock();
+			}
+		}
+		for (Mailbox box: toPush) {
+			box.push();
+		}
+		return saved;
+	}
+
+	/**
+	 * Puts messages loaded from disk back, without offering them to anyone.
+	 * @param msgs - The messages, oldest first.
+	 */
+	void load(List<String> msgs) {
+		lock.lock();
+		try {
+			pending.addAll(msgs);
+			counted(msgs, 1);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes every pending message.
+	 * @return - The messages, oldest first, or null if there weren't any.
+	 */
+	List<String> drain() {
+		lock.lock();
+		try {
+			if (pending.isEmpty()) {
+				return null;
+			}
+			List<String> msgs = new ArrayList<String>(pending);
+			pending.clear();
+			counted(msgs, -1);
+			taken += msgs.size();
+			if (log != null) {
+				log.drain(owner, msgs.size());
+			}
+			return msgs;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes out everything the cursor says the client already has, then returns (without taking) the next page.
+	 * @param cursor - From the last page fetched, or anything else (e.g. "0") to acknowledge nothing.
+	 * @param max - The most messages to return.
+	 * @param maxChars - The most characters of messages to return, though there's always at least one message if any are waiting.
+	 * @return - The page.
+	 */
+	MessagePage fetch(String cursor, int max, int maxChars) {
+		lock.lock();
+		try {
+			long acked = Math.min(Math.max(0, position(cursor) - taken), pending.size());
+			if (acked > 0) {
+				takeOldest((int) acked);
+			}
+			List<String> page = new ArrayList<String>(Math.min(max, pending.size()));
+			int chars = 0;
+			for (String msg: pending) {
+				if (page.size() >= max || (!page.isEmpty() && chars + msg.length() > maxChars)) {
+					break;
+				}
+				page.add(msg);
+				chars += msg.length();
+			}
+			return new MessagePage(page, Long.toHexString(epoch) + "." + (taken + page.size()), pending.size() - page.size());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return - How far into the mailbox a cursor points, or -1 if it's not one of ours.
+	 */
+	private long position(String cursor) {
+		int dot = cursor.indexOf('.');
+		try {
+			if (dot < 0 || Long.parseUnsignedLong(cursor.substring(0, dot), 16) != epoch) {
+				return -1;
+			}
+			return Long.parseLong(cursor.substring(dot + 1));
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Offers everything pending to a listener (even if that's nothing), and if it takes them, keeps it for the messages that follow.
+	 * The offer may be made on this thread or, if another thread's already offering, on that one.
+	 * @param l - The new listener. Replaces any older one.
+	 */
+	void subscribe(MessageListener l) {
+		boolean push;
+		lock.lock();
+		try {
+			listener = l;
+			greet = true;
+			push = claimPush();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (push) {
+			push();
+		}
+	}
+
+	/**
+	 * Adds messages to the totals across every mailbox, or takes them off.
+	 * @param sign - 1 to add them, -1 to take them off.
+	 */
+	private static void counted(Iterable<String> msgs, int sign) {
+		long n = 0;
+		long chars = 0;
+		for (String msg: msgs) {
+			n++;
+			chars += msg.length();
+		}
+		PENDING.add(sign * n);
+		PENDING_CHARS.add(sign * chars);
+	}
+
+	/**
+	 * Drops a listener, if it's still the current one.
+	 * @param l - The listener.
+	 */
+	void unsubscribe(MessageListener l) {
+		lock.lock();
+		try {
+			if (listener == l) {
+				listener = null;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return - A copy of the pending messages, oldest first.
+	 */
+	List<String> snapshot() {
+		lock.lock();
+		try {
+			return new ArrayList<String>(pending);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
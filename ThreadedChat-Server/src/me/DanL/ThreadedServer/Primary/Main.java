@@ -4,6 +4,11 @@ import java.io.File;
 import java.io.IOException;
 
 import me.DanL.PacketManager.Connection;
+import me.DanL.PacketManager.DispatchExecutors;
+import me.DanL.PacketManager.DispatchExecutors.RejectPolicy;
+import me.DanL.PacketManager.PacketServer;
+import me.DanL.ThreadedServer.Logging.Log;
+import me.DanL.ThreadedServer.Metrics.Metrics;
 import me.DanL.ThreadedServer.PacketManage.MasterPacketHandler;
 import me.DanL.ThreadedServer.UserManagement.Authenticator;
 
@@ -14,17 +19,26 @@ public class Main {
 		File keyStorageDirectory = new File("crypt/keys");
 		Server.setAuthProvider(new Authenticator(keyStorageDirectory,new File("users.csv")));
 		Server.setMsgSaveFile(new File("msgs.csv"));
-		Server.debugOutput("Listening for packets on port 4444.");
 		Server.loadPendingMsgs();
-		final int packetMaxLen = 65535; //Turns out it allocates a buffer this size, so we need some limit.
-		while (true) {
-			try {
-				Connection.onRecv(4444, packetMaxLen, mph, true); //Disabling threading as a workaround: not recommended.
-			}
-			catch (Exception e) {
-				e.printStackTrace();
-			}
+		Server.loadGroups(new File("groups.csv"));
+		final int packetMaxLen = 65535; //The longest frame a client can send. Anything longer is refused before any of it is buffered.
+		int reactors = Integer.getInteger("threadedchat.reactors", Runtime.getRuntime().availableProcessors());
+		//Handlers do RSA and disk work, so they get their own threads rather than holding up the reactors.
+		RejectPolicy onFull = RejectPolicy.valueOf(System.getProperty("threadedchat.dispatch.reject", "DROP"));
+		int queueDepth = Integer.getInteger("threadedchat.dispatch.queue", 1024);
+		if (Boolean.getBoolean("threadedchat.dispatch.virtual")) {
+			Connection.setDispatchExecutor(DispatchExecutors.virtualThreads(queueDepth, onFull));
 		}
+		else {
+			int handlers = Integer.getInteger("threadedchat.dispatch.threads", Runtime.getRuntime().availableProcessors() * 2);
+			Connection.setDispatchExecutor(DispatchExecutors.platformPool(handlers, queueDepth, onFull));
+		}
+		Metrics.gauge("dispatch_backlog", "", "Packet handlers running or waiting for a thread.", () -> DispatchExecutors.backlog(Connection.getDispatchExecutor()));
+		Metrics.counter("log_dropped_total", "", "Log lines dropped because the log couldn't keep up.", Log::getDropped);
+		Metrics.start();
+		PacketServer listener = new PacketServer(4444, packetMaxLen, mph, reactors);
+		listener.start(); //Reactor threads keep the program alive from here on.
+		Log.info("Listening for packets", "port", 4444, "reactors", reactors);
 	}
 
 }
@@ -0,0 +1,21 @@
+package me.DanL.ThreadedServer.Primary;
+
+import java.util.List;
+
+/**
+ * Something waiting on a user's messages, so they can be sent on as they arrive instead of piling up until the user asks.
+ * See {@link Server#subscribe(java.util.UUID, MessageListener)}.
+ * @author daniel
+ *
+ */
+public interface MessageListener {
+
+	/**
+	 * Offers some messages to the listener. Called with the mailbox unlocked, but never from two threads at once for the same
+	 * mailbox, so offers arrive in order. Still shouldn't block, since whoever sent the message is waiting on it.
+	 * @param msgs - The messages, oldest first. Empty when subscribing to an empty mailbox.
+	 * @return - True if the messages were sent on. False if this listener is finished with, in which case it's dropped
+	 * and the messages stay in the mailbox.
+	 */
+	boolean offer(List<String> msgs);
+}
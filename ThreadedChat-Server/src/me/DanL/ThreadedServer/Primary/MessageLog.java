@@ -0,0 +1,620 @@
+package me.DanL.ThreadedServer.Primary;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import me.DanL.ThreadedServer.Logging.Log;
+import me.DanL.ThreadedServer.Metrics.LatencyHistogram;
+import me.DanL.ThreadedServer.Metrics.Metrics;
+
+/**
+ * An append-only log of changes to the mailboxes, so saving a message costs about as much as the message rather than
+ * rewriting every pending message.
+ *
+ * Records are buffered in memory and written out by a committer thread, which syncs them to disk in batches at most
+ * commitMillis after they were added (group commit). Logging something gives back a future that's completed once its batch
+ * has been synced, so nothing's reported as saved until it is. Logging itself never waits, since it's done with mailboxes locked,
+ * but if the disk falls behind (or starts failing) anyone about to log a new message waits in {@link #awaitRoom()} until the
+ * buffer's below maxBufferBytes. The log is split into numbered segment files next to msgs.csv
+ * (msgs.csv.log.1, msgs.csv.log.2...), moving to a new one once the current one is big enough. Once enough segments
+ * have filled up, or every checkpointSeconds if anything's been logged, they're compacted in the background: replayed on top
+ * of the snapshot (msgs.csv.snap, see {@link MessageSnapshot}), which is rewritten, and then deleted. That keeps the log,
+ * and so the replay on startup, short.
+ *
+ * The snapshot says which segment it's up to date with, so segments it covers are skipped on startup even if a crash stopped
+ * them being deleted. Without a binary snapshot the old text msgs.csv is loaded instead; its first line can say the same
+ * thing (#wal &lt;segment&gt;), and if it doesn't it covers none. It's deleted once the first binary snapshot is written.
+ * @author daniel
+ *
+ */
+class MessageLog {
+
+	private static final byte ENQUEUE = 1;
+
+	private static final byte DRAIN = 2;
+
+	private static final byte FAN_OUT = 3;
+
+	private static final int MAGIC = 0x54434D4C; //"TCML"
+
+	private static final String COVERS_PREFIX = "#wal ";
+
+	/**
+	 * msgs.csv, the text snapshot older versions kept. Everything else is named after it.
+	 */
+	private final File legacySnapshot;
+
+	private final File snapshot;
+
+	private final long commitMillis;
+
+	private final long segmentBytes;
+
+	private final int compactAfter;
+
+	private final long maxBufferBytes;
+
+	private final Object bufferLock = new Object();
+
+	/**
+	 * Records not yet handed to the committer. Guarded by bufferLock.
+	 */
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	/**
+	 * Completed once the records in buffer are on disk. Guarded by bufferLock.
+	 */
+	private CompletableFuture<Void> bufferSaved = new CompletableFuture<Void>();
+
+	/**
+	 * The committer's spare buffer, swapped with buffer each commit. Guarded by writeLock.
+	 */
+	private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+
+	private final Object writeLock = new Object();
+
+	/**
+	 * Guarded by writeLock.
+	 */
+	private FileChannel segment;
+
+	/**
+	 * Guarded by writeLock.
+	 */
+	private long segmentSeq;
+
+	/**
+	 * The oldest segment that hasn't been compacted yet. Guarded by writeLock.
+	 */
+	private long oldestSeq;
+
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+	/**
+	 * How long each commit's write and sync took.
+	 */
+	private final LatencyHistogram commitTime = new LatencyHistogram();
+
+	private final LatencyHistogram compactTime = new LatencyHistogram();
+
+	private final LongAdder committedBytes = new LongAdder();
+
+	/**
+	 * How many times a new message had to wait for the buffer to have room.
+	 */
+	private final LongAdder stalls = new LongAdder();
+
+	private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Server-wal-compactor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private MessageLog(File snapshotFile, long commitMillis, long segmentBytes, int compactAfter, long maxBufferBytes) {
+		legacySnapshot = snapshotFile;
+		snapshot = new File(snapshotFile.getPath() + ".snap");
+		this.commitMillis = commitMillis;
+		this.segmentBytes = segmentBytes;
+		this.compactAfter = compactAfter;
+		this.maxBufferBytes = maxBufferBytes;
+	}
+
+	/**
+	 * Loads the snapshot and everything logged since, then starts a fresh segment to log to.
+	 * The snapshot's sections and the segments are read in parallel, then the segments are applied in order.
+	 * Settings come from threadedchat.wal.commitMillis (default 10), threadedchat.wal.segmentBytes (default 16MB),
+	 * threadedchat.wal.compactSegments (how many full segments to let build up before compacting, default 4),
+	 * threadedchat.wal.maxBufferBytes (how much can wait for a commit before new messages wait too, default 64MB)
+	 * and threadedchat.wal.checkpointSeconds (how often to compact whatever's been logged, default 300, 0 for never).
+	 * @param snapshotFile - msgs.csv. The binary snapshot and the segments live alongside it.
+	 * @param into - Filled with every user's pending messages, oldest first.
+	 * @return - The log, ready for records.
+	 * @throws IOException - If the snapshot or a segment couldn't be read, or the new segment couldn't be made.
+	 */
+	static MessageLog open(File snapshotFile, Map<UUID, ArrayDeque<String>> into) throws IOException {
+		MessageLog log = new MessageLog(snapshotFile, Long.getLong("threadedchat.wal.commitMillis", 10),
+				Long.getLong("threadedchat.wal.segmentBytes", 16 * 1024 * 1024), Integer.getInteger("threadedchat.wal.compactSegments", 4),
+				Long.getLong("threadedchat.wal.maxBufferBytes", 64 * 1024 * 1024));
+		ExecutorService loaders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		long covered;
+		long last;
+		try {
+			covered = log.loadSnapshot(into, loaders);
+			List<Long> segs = log.segmentsAfter(covered);
+			List<CompletableFuture<List<ByteBuffer>>> parsed = new ArrayList<CompletableFuture<List<ByteBuffer>>>();
+			for (long seq: segs) {
+				File seg = log.segmentFile(seq);
+				parsed.add(CompletableFuture.supplyAsync(() -> parseUnchecked(seg), loaders));
+			}
+			for (CompletableFuture<List<ByteBuffer>> records: parsed) {
+				apply(records.join(), into);
+			}
+			last = segs.isEmpty() ? covered : segs.get(segs.size() - 1);
+		}
+		catch (CompletionException e) {
+			throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+		}
+		finally {
+			loaders.shutdown();
+		}
+		log.deleteSegmentsUpTo(covered); //Left behind by a crash part way through compacting.
+		synchronized (log.writeLock) {
+			log.oldestSeq = covered + 1;
+			log.openSegment(last + 1); //Never append to an old segment, its tail might be torn.
+		}
+		Thread committer = new Thread(log::commitLoop, "Server-wal-committer");
+		committer.setDaemon(true);
+		committer.start();
+		Metrics.latency("wal_commit_seconds", "", "Time to write and sync each batch of log records.", log.commitTime);
+		Metrics.counter("wal_committed_bytes_total", "", "Bytes of log records written and synced.", log.committedBytes::sum);
+		Metrics.gauge("wal_buffered_bytes", "", "Bytes of log records waiting for the next commit.", log::bufferedBytes);
+		Metrics.counter("wal_stalls_total", "", "Times a new message waited for the log's buffer to have room.", log.stalls::sum);
+		Metrics.latency("wal_compaction_seconds", "", "Time to fold log segments into the snapshot.", log.compactTime);
+		long checkpointSeconds = Long.getLong("threadedchat.wal.checkpointSeconds", 300);
+		if (checkpointSeconds > 0) {
+			log.compactor.scheduleWithFixedDelay(log::checkpoint, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+		}
+		return log;
+	}
+
+	/**
+	 * Logs a message being queued for a user.
+	 * @param who - Whose mailbox.
+	 * @param msg - The message.
+	 * @return - Completed once it's on disk.
+	 */
+	CompletableFuture<Void> enqueue(UUID who, String msg) {
+		byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer rec = ByteBuffer.allocate(17 + body.length);
+		rec.put(ENQUEUE).putLong(who.getMostSignificantBits()).putLong(who.getLeastSignificantBits()).put(body);
+		return append(rec.array());
+	}
+
+	/**
+	 * Logs a group message being queued for several users at once. The message is only written once.
+	 * @param group - The group it was sent to.
+	 * @param to - Whose mailboxes it was queued in.
+	 * @param msg - The message.
+	 * @return - Completed once it's on disk.
+	 */
+	CompletableFuture<Void> fanOut(UUID group, List<UUID> to, String msg) {
+		byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer rec = ByteBuffer.allocate(21 + 16 * to.size() + body.length);
+		rec.put(FAN_OUT).putLong(group.getMostSignificantBits()).putLong(group.getLeastSignificantBits()).putInt(to.size());
+		for (UUID who: to) {
+			rec.putLong(who.getMostSignificantBits()).putLong(who.getLeastSignificantBits());
+		}
+		rec.put(body);
+		return append(rec.array());
+	}
+
+	/**
+	 * Logs the oldest messages in a user's mailbox being taken out.
+	 * @param who - Whose mailbox.
+	 * @param count - How many were taken.
+	 * @return - Completed once it's on disk.
+	 */
+	CompletableFuture<Void> drain(UUID who, int count) {
+		ByteBuffer rec = ByteBuffer.allocate(21);
+		rec.put(DRAIN).putLong(who.getMostSignificantBits()).putLong(who.getLeastSignificantBits()).putInt(count);
+		return append(rec.array());
+	}
+
+	/**
+	 * Writes and syncs everything logged so far, without waiting for the committer.
+	 * @throws IOException - If the write failed.
+	 */
+	void flush() throws IOException {
+		commit();
+	}
+
+	private long bufferedBytes() {
+		synchronized (bufferLock) {
+			return buffer.size();
+		}
+	}
+
+	/**
+	 * Waits until the buffer's below maxBufferBytes, so a slow disk slows down whoever's sending rather than letting the buffer
+	 * grow without limit. Called before locking any mailbox, since nothing that holds one should wait on the disk.
+	 * The buffer can still go over by whatever's logged by threads that got past here at the same time.
+	 */
+	void awaitRoom() {
+		synchronized (bufferLock) {
+			if (buffer.size() < maxBufferBytes) {
+				return;
+			}
+			stalls.increment();
+			while (buffer.size() >= maxBufferBytes) {
+				try {
+					bufferLock.wait(); //Woken each time the committer takes a batch.
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt(); //Nothing's been logged yet, so give up waiting and let the caller see it.
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a record to the buffer for the next commit. Never waits, since callers are holding mailbox locks.
+	 * @return - Completed once the record's on disk.
+	 */
+	private CompletableFuture<Void> append(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		synchronized (bufferLock) {
+			if (buffer.size() == 0) {
+				bufferLock.notifyAll(); //The committer might be waiting for something to do.
+			}
+			DataOutputStream out = new DataOutputStream(buffer);
+			try {
+				out.writeInt(record.length);
+				out.writeInt((int) crc.getValue());
+				out.write(record);
+			} catch (IOException e) {
+				throw new IllegalStateException(e); //Can't happen writing to memory.
+			}
+			return bufferSaved;
+		}
+	}
+
+	private void commitLoop() {
+		while (true) {
+			try {
+				synchronized (bufferLock) {
+					while (buffer.size() == 0) {
+						bufferLock.wait();
+					}
+				}
+				if (commitMillis > 0) {
+					Thread.sleep(commitMillis); //Let some more records join this batch.
+				}
+				commit();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (IOException e) {
+				//Records stay in the buffer for the next try, but say something since they aren't safe yet.
+				Log.error("Couldn't commit the message log, retrying", e);
+				try {
+					Thread.sleep(1000); //Disk trouble won't clear up in 10ms.
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes and syncs the buffered records, then completes their future. If that fails they go back in the buffer, ahead of
+	 * anything logged since, and their future's completed along with the next batch's.
+	 */
+	private void commit() throws IOException {
+		CompletableFuture<Void> saved;
+		synchronized (writeLock) {
+			long before = segment.size();
+			ByteArrayOutputStream batch;
+			synchronized (bufferLock) {
+				if (buffer.size() == 0) {
+					return;
+				}
+				batch = buffer;
+				buffer = spare;
+				saved = bufferSaved;
+				bufferSaved = new CompletableFuture<Void>();
+				bufferLock.notifyAll(); //There's room again for anything waiting in awaitRoom().
+			}
+			long start = System.nanoTime();
+			try {
+				ByteBuffer data = ByteBuffer.wrap(batch.toByteArray());
+				while (data.hasRemaining()) {
+					segment.write(data);
+				}
+				segment.force(false);
+				commitTime.record(System.nanoTime() - start);
+				committedBytes.add(batch.size());
+			}
+			catch (IOException e) {
+				try {
+					segment.truncate(before); //Don't leave half the batch there to be replayed twice once it's retried.
+				} catch (IOException e1) {
+					Log.error("Couldn't cut a failed batch off the message log", e1);
+				}
+				synchronized (bufferLock) {
+					//Put the batch back in front of anything logged since, and try again next time.
+					batch.write(buffer.toByteArray());
+					buffer.reset();
+					spare = buffer;
+					buffer = batch;
+					bufferSaved.thenRun(() -> saved.complete(null)); //They'll go out together now.
+				}
+				throw e;
+			}
+			batch.reset();
+			spare = batch;
+		}
+		saved.complete(null); //Outside the lock, since it sends replies.
+		synchronized (writeLock) {
+			if (segment.size() >= segmentBytes) {
+				segment.close();
+				openSegment(segmentSeq + 1);
+				maybeCompact();
+			}
+		}
+	}
+
+	/**
+	 * Starts a compaction if enough full segments have built up and there isn't one going already.
+	 */
+	private void maybeCompact() {
+		synchronized (writeLock) {
+			if (segmentSeq - oldestSeq >= compactAfter && compacting.compareAndSet(false, true)) {
+				long upTo = segmentSeq - 1;
+				compactor.execute(() -> compact(upTo));
+			}
+		}
+	}
+
+	/**
+	 * Moves on to a new segment if anything's been logged, and compacts everything before it, so the log never holds more
+	 * than checkpointSeconds worth of changes no matter how slowly it fills. Runs on the compactor thread.
+	 */
+	private void checkpoint() {
+		long upTo;
+		try {
+			commit(); //Not under writeLock, since finishing a batch sends replies.
+			synchronized (writeLock) {
+				if (segment.size() > 4) { //More than just the header.
+					segment.close();
+					openSegment(segmentSeq + 1);
+				}
+				if (segmentSeq <= oldestSeq || !compacting.compareAndSet(false, true)) {
+					return; //Nothing to fold in, or it's being done already.
+				}
+				upTo = segmentSeq - 1;
+			}
+		}
+		catch (IOException e) {
+			Log.error("Couldn't checkpoint the message log", e); //Try again next time.
+			return;
+		}
+		compact(upTo);
+	}
+
+	/**
+	 * Folds every full segment up to and including upTo into the snapshot, then deletes them.
+	 * Only reads files nobody's writing to any more, so logging carries on as normal meanwhile.
+	 */
+	private void compact(long upTo) {
+		long start = System.nanoTime();
+		try {
+			Map<UUID, ArrayDeque<String>> state = new HashMap<UUID, ArrayDeque<String>>();
+			long covered = loadSnapshot(state, Runnable::run); //There's no rush here, so don't take cores off the server.
+			for (long seq: segmentsAfter(covered)) {
+				if (seq > upTo) {
+					break;
+				}
+				apply(parse(segmentFile(seq)), state);
+			}
+			MessageSnapshot.write(snapshot, state, upTo);
+			if (legacySnapshot.exists() && !legacySnapshot.delete()) {
+				Log.warn("Couldn't delete the old snapshot, it's been replaced", "file", legacySnapshot, "by", snapshot);
+			}
+			deleteSegmentsUpTo(upTo);
+			synchronized (writeLock) {
+				oldestSeq = upTo + 1;
+			}
+			compactTime.record(System.nanoTime() - start);
+		}
+		catch (IOException e) {
+			Log.error("Couldn't compact the message log", e); //The segments are all still there, so it'll be tried again after the next one fills.
+		}
+		finally {
+			compacting.set(false);
+		}
+		maybeCompact(); //More may have filled up while we were busy.
+	}
+
+	private void openSegment(long seq) throws IOException {
+		segmentSeq = seq;
+		segment = FileChannel.open(segmentFile(seq).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+		header.flip();
+		segment.write(header);
+	}
+
+	private File segmentFile(long seq) {
+		return new File(legacySnapshot.getPath() + ".log." + seq);
+	}
+
+	/**
+	 * @return - The last segment the snapshot covers, or 0 if none.
+	 */
+	private long loadSnapshot(Map<UUID, ArrayDeque<String>> into, Executor loaders) throws IOException {
+		if (snapshot.exists()) {
+			return MessageSnapshot.read(snapshot, into, loaders);
+		}
+		return MessageSnapshot.readLegacy(legacySnapshot, into, COVERS_PREFIX);
+	}
+
+	/**
+	 * @return - The sequence numbers of segments on disk newer than after, in order.
+	 */
+	private List<Long> segmentsAfter(long after) {
+		List<Long> found = new ArrayList<Long>();
+		File dir = legacySnapshot.getAbsoluteFile().getParentFile();
+		String prefix = legacySnapshot.getName() + ".log.";
+		String[] names = dir.list();
+		if (names == null) {
+			return found;
+		}
+		for (String name: names) {
+			if (!name.startsWith(prefix)) {
+				continue;
+			}
+			try {
+				long seq = Long.parseLong(name.substring(prefix.length()));
+				if (seq > after) {
+					found.add(seq);
+				}
+			}
+			catch (NumberFormatException e) {
+				//Something else that happens to share the name.
+			}
+		}
+		Collections.sort(found);
+		return found;
+	}
+
+	private void deleteSegmentsUpTo(long upTo) {
+		for (long seq = upTo; seq > 0 && segmentFile(seq).delete(); seq--) {
+			//Segments only ever go in order, so stop at the first one that isn't there.
+		}
+	}
+
+	/**
+	 * Reads every intact record in a segment. A record with a bad checksum is skipped, but one with a nonsense length
+	 * (e.g. torn by a crash mid write) ends the segment, since there's no telling where the next one starts.
+	 * @return - The records, in order, each starting at its type byte.
+	 */
+	private static List<ByteBuffer> parse(File seg) throws IOException {
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		int bad = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(seg), 65536));
+		try {
+			if (in.readInt() != MAGIC) {
+				Log.warn("Skipping a file that isn't a message log", "file", seg);
+				return records;
+			}
+			CRC32 crc = new CRC32();
+			while (true) {
+				int len = in.readInt();
+				int expected = in.readInt();
+				if (len < 17 || len > 64 * 1024 * 1024) {
+					throw new EOFException("Bad record length " + len);
+				}
+				byte[] rec = new byte[len];
+				in.readFully(rec);
+				crc.reset();
+				crc.update(rec);
+				if ((int) crc.getValue() != expected) {
+					bad++;
+					continue;
+				}
+				records.add(ByteBuffer.wrap(rec));
+			}
+		}
+		catch (EOFException e) {
+			//End of the segment, or the end of what made it to disk.
+		}
+		finally {
+			in.close();
+		}
+		if (bad > 0) {
+			Log.warn("Skipped damaged log records", "file", seg, "records", bad);
+		}
+		return records;
+	}
+
+	private static List<ByteBuffer> parseUnchecked(File seg) {
+		try {
+			return parse(seg);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void apply(List<ByteBuffer> records, Map<UUID, ArrayDeque<String>> state) {
+		for (ByteBuffer rec: records) {
+			try {
+				apply(rec, state);
+			}
+			catch (RuntimeException e) {
+				Log.warn("Skipped a log record that couldn't be applied", "error", e);
+			}
+		}
+	}
+
+	private static void apply(ByteBuffer rec, Map<UUID, ArrayDeque<String>> state) {
+		byte type = rec.get();
+		UUID who = new UUID(rec.getLong(), rec.getLong());
+		if (type == ENQUEUE) {
+			String msg = new String(rec.array(), rec.position(), rec.remaining(), StandardCharsets.UTF_8);
+			state.computeIfAbsent(who, k -> new ArrayDeque<String>()).add(msg);
+		}
+		else if (type == FAN_OUT) {
+			int n = rec.getInt();
+			if (n < 0 || n > rec.remaining() / 16) {
+				throw new IllegalArgumentException("Bad member count " + n);
+			}
+			UUID[] to = new UUID[n];
+			for (int i = 0; i < n; i++) {
+				to[i] = new UUID(rec.getLong(), rec.getLong());
+			}
+			String msg = new String(rec.array(), rec.position(), rec.remaining(), StandardCharsets.UTF_8);
+			for (UUID member: to) {
+				state.computeIfAbsent(member, k -> new ArrayDeque<String>()).add(msg); //Shared, same as it was before the restart.
+			}
+		}
+		else if (type == DRAIN) {
+			ArrayDeque<String> box = state.get(who);
+			for (int i = rec.getInt(); box != null && i > 0 && !box.isEmpty(); i--) {
+				box.poll();
+			}
+			if (box != null && box.isEmpty()) {
+				state.remove(who);
+			}
+		}
+	}
+}
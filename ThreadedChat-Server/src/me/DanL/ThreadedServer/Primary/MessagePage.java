@@ -0,0 +1,45 @@
+package me.DanL.ThreadedServer.Primary;
+
+import java.util.List;
+
+/**
+ * One page of a user's pending messages, as fetched by {@link Server#fetchMsgs(java.util.UUID, String, int, int)}.
+ * The messages are still in the mailbox: they only go once the cursor is handed back on the next fetch.
+ * @author daniel
+ *
+ */
+public class MessagePage {
+
+	private final List<String> messages;
+
+	private final String cursor;
+
+	private final int remaining;
+
+	MessagePage(List<String> messages, String cursor, int remaining) {
+		this.messages = messages;
+		this.cursor = cursor;
+		this.remaining = remaining;
+	}
+
+	/**
+	 * @return - The messages, oldest first. Empty if there aren't any.
+	 */
+	public List<String> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return - The cursor to send next time, which acknowledges everything up to the end of this page.
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * @return - How many messages are still waiting after this page.
+	 */
+	public int getRemaining() {
+		return remaining;
+	}
+}
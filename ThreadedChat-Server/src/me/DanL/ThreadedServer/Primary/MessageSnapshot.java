@@ -0,0 +1,277 @@
+package me.DanL.ThreadedServer.Primary;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import me.DanL.ThreadedServer.Logging.Log;
+
+/**
+ * Reads and writes the binary snapshot of every pending message.
+ *
+ * The file is a header (magic, version, and the last log segment it covers) followed by sections of a few MB each.
+ * Each section is a length, a record count and then records, one per user: a length, a CRC, the user's UUID and their messages.
+ * Sections hold different users, so they're loaded in parallel. A record that fails its CRC only loses that one user's
+ * messages, and a broken section only loses that section.
+ *
+ * A group message is written once per member holding it, but on loading identical messages are turned back into one shared
+ * string, so a restart doesn't multiply the memory group messages take by the size of the group.
+ * @author daniel
+ *
+ */
+class MessageSnapshot {
+
+	private static final int MAGIC = 0x54434D53; //"TCMS"
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_LEN = 16;
+
+	/**
+	 * Roughly how big each section is. Small enough that a big snapshot splits over every core when loading.
+	 */
+	private static final int SECTION_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * Loads a binary snapshot.
+	 * @param f - The snapshot. Must exist.
+	 * @param into - Filled with every user's pending messages, oldest first.
+	 * @param loaders - Runs the section loads. Sections run in parallel if this has more than one thread.
+	 * @return - The last log segment the snapshot covers.
+	 * @throws IOException - If the file couldn't be read or isn't a snapshot.
+	 */
+	static long read(File f, Map<UUID, ArrayDeque<String>> into, Executor loaders) throws IOException {
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+			while (header.hasRemaining() && ch.read(header) >= 0) {
+				//Keep reading.
+			}
+			header.flip();
+			if (header.remaining() < HEADER_LEN || header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException(f + " isn't a message snapshot.");
+			}
+			long covers = header.getLong();
+			//Find the sections first (just a read of each length), then parse them all at once.
+			List<CompletableFuture<Map<UUID, ArrayDeque<String>>>> sections = new ArrayList<CompletableFuture<Map<UUID, ArrayDeque<String>>>>();
+			ConcurrentHashMap<String, String> shared = new ConcurrentHashMap<String, String>(); //Only kept for the load.
+			long pos = HEADER_LEN;
+			ByteBuffer lenBuf = ByteBuffer.allocate(4);
+			while (pos + 4 <= ch.size()) {
+				lenBuf.clear();
+				ch.read(lenBuf, pos);
+				int len = lenBuf.getInt(0);
+				if (len <= 0 || pos + 4 + len > ch.size()) {
+					Log.warn("Snapshot is cut short, loading what's before it", "file", f, "at", pos);
+					break;
+				}
+				MappedByteBuffer section = ch.map(FileChannel.MapMode.READ_ONLY, pos + 4, len);
+				sections.add(CompletableFuture.supplyAsync(() -> readSection(section, shared), loaders));
+				pos += 4 + len;
+			}
+			for (CompletableFuture<Map<UUID, ArrayDeque<String>>> s: sections) {
+				into.putAll(s.join()); //Each user is only in one section, so nothing gets overwritten.
+			}
+			return covers;
+		}
+		catch (CompletionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param shared - Every message loaded so far, by itself, so a message that's in several mailboxes (a group message, usually)
+	 * is only in memory once. Members of a group can be in different sections, so it's shared between them.
+	 */
+	private static Map<UUID, ArrayDeque<String>> readSection(ByteBuffer section, ConcurrentHashMap<String, String> shared) {
+		Map<UUID, ArrayDeque<String>> users = new HashMap<UUID, ArrayDeque<String>>();
+		int records = section.getInt();
+		int bad = 0;
+		CRC32 crc = new CRC32();
+		for (int r = 0; r < records && section.remaining() >= 8; r++) {
+			int len = section.getInt();
+			int expected = section.getInt();
+			if (len < 20 || len > section.remaining()) {
+				bad += records - r; //Can't find the next record, so the rest of the section is gone.
+				break;
+			}
+			ByteBuffer rec = section.slice();
+			rec.limit(len);
+			section.position(section.position() + len);
+			crc.reset();
+			crc.update(rec.duplicate());
+			if ((int) crc.getValue() != expected) {
+				bad++;
+				continue;
+			}
+			try {
+				UUID who = new UUID(rec.getLong(), rec.getLong());
+				int count = rec.getInt();
+				ArrayDeque<String> msgs = new ArrayDeque<String>(count);
+				for (int i = 0; i < count; i++) {
+					byte[] msg = new byte[rec.getInt()];
+					rec.get(msg);
+					msgs.add(share(new String(msg, StandardCharsets.UTF_8), shared));
+				}
+				users.put(who, msgs);
+			}
+			catch (RuntimeException e) {
+				bad++; //Passed the CRC but still nonsense, e.g. written by something else.
+			}
+		}
+		if (bad > 0) {
+			Log.warn("Skipped damaged mailboxes in the snapshot", "mailboxes", bad);
+		}
+		return users;
+	}
+
+	/**
+	 * @return - The copy of msg that's already been loaded, or msg if it's the first.
+	 */
+	private static String share(String msg, Map<String, String> shared) {
+		String first = shared.putIfAbsent(msg, msg);
+		return first == null ? msg : first;
+	}
+
+	/**
+	 * Writes a snapshot, replacing any old one in one go once it's safely on disk.
+	 * @param f - Where to write it.
+	 * @param state - Every user's pending messages.
+	 * @param covers - The last log segment this snapshot includes.
+	 * @throws IOException - If it couldn't be written. The old snapshot is left alone.
+	 */
+	static void write(File f, Map<UUID, ArrayDeque<String>> state, long covers) throws IOException {
+		File temp = new File(f.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(covers);
+			ByteArrayOutputStream section = new ByteArrayOutputStream();
+			ByteArrayOutputStream rec = new ByteArrayOutputStream();
+			DataOutputStream recOut = new DataOutputStream(rec);
+			CRC32 crc = new CRC32();
+			int records = 0;
+			for (Entry<UUID, ArrayDeque<String>> e: state.entrySet()) {
+				if (e.getValue().isEmpty()) {
+					continue;
+				}
+				rec.reset();
+				recOut.writeLong(e.getKey().getMostSignificantBits());
+				recOut.writeLong(e.getKey().getLeastSignificantBits());
+				recOut.writeInt(e.getValue().size());
+				for (String msg: e.getValue()) {
+					byte[] b = msg.getBytes(StandardCharsets.UTF_8);
+					recOut.writeInt(b.length);
+					recOut.write(b);
+				}
+				crc.reset();
+				byte[] recBytes = rec.toByteArray();
+				crc.update(recBytes);
+				DataOutputStream secOut = new DataOutputStream(section);
+				secOut.writeInt(recBytes.length);
+				secOut.writeInt((int) crc.getValue());
+				secOut.write(recBytes);
+				records++;
+				if (section.size() >= SECTION_BYTES) {
+					writeSection(out, section, records);
+					records = 0;
+				}
+			}
+			if (records > 0) {
+				writeSection(out, section, records);
+			}
+			out.flush();
+			fos.getFD().sync(); //Has to be on disk before the log segments it replaces are deleted.
+		}
+		finally {
+			fos.close();
+		}
+		//Swap the new file in whole, so a crash part way through can't leave a half written one.
+		Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeSection(DataOutputStream out, ByteArrayOutputStream section, int records) throws IOException {
+		out.writeInt(section.size() + 4);
+		out.writeInt(records);
+		section.writeTo(out);
+		section.reset();
+	}
+
+	/**
+	 * Loads the text msgs.csv that older versions kept, a line per user of their UUID and then their messages.
+	 * A line that won't parse is skipped rather than stopping the load.
+	 * @param f - The file. Nothing happens if it doesn't exist.
+	 * @param into - Filled with every user's pending messages, oldest first.
+	 * @param coversPrefix - Starts the line saying which log segment the file covers, if there is one.
+	 * @return - The last log segment the file covers, or 0 if it doesn't say.
+	 * @throws IOException - If the file couldn't be read.
+	 */
+	static long readLegacy(File f, Map<UUID, ArrayDeque<String>> into, String coversPrefix) throws IOException {
+		if (!f.exists()) {
+			return 0; //Nothing to load.
+		}
+		long covered = 0;
+		int bad = 0;
+		Map<String, String> shared = new HashMap<String, String>();
+		Scanner fileReader = new Scanner(f);
+		try {
+			while (fileReader.hasNextLine()) {
+				String line = fileReader.nextLine().trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					if (line.startsWith(coversPrefix)) {
+						covered = Long.parseLong(line.substring(coversPrefix.length()));
+						continue;
+					}
+					//A UUID followed by that user's messages.
+					String[] parts = line.split(",");
+					UUID uid = UUID.fromString(parts[0]);
+					ArrayDeque<String> pending = into.computeIfAbsent(uid, k -> new ArrayDeque<String>());
+					for (int i = 1; i<parts.length; i++) {
+						pending.add(share(parts[i], shared));
+					}
+				}
+				catch (IllegalArgumentException e) {
+					bad++;
+				}
+			}
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		finally {
+			fileReader.close();
+		}
+		if (bad > 0) {
+			Log.warn("Skipped unreadable lines", "file", f, "lines", bad);
+		}
+		return covered;
+	}
+}
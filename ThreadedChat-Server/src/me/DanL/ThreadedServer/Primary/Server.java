@@ -1,16 +1,19 @@
 package me.DanL.ThreadedServer.Primary;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Scanner;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
+import me.DanL.ThreadedServer.Logging.Log;
+import me.DanL.ThreadedServer.Metrics.Metrics;
 import me.DanL.ThreadedServer.UserManagement.Authenticator;
 
 public class Server {
@@ -18,10 +21,25 @@ public class Server {
 	
 	private static File msgSaveFile;
 
-	//We were getting some exceedingly odd issues with messages being lost to the aether despite being supposedly received, so this may help.
-	private static ConcurrentHashMap<UUID, List<String>> userMsgs = new ConcurrentHashMap<UUID, List<String>>();
+	/**
+	 * Each user's pending messages. Every mailbox has its own lock, so users don't hold each other up.
+	 */
+	private static ConcurrentHashMap<UUID, Mailbox> mailboxes = new ConcurrentHashMap<UUID, Mailbox>();
 	
-	private static boolean printLogs = true;
+	/**
+	 * Where changes to the mailboxes are saved. Null until they've been loaded.
+	 */
+	private static volatile MessageLog log = null;
+	
+	/**
+	 * Group conversations. Null until they've been loaded.
+	 */
+	private static volatile GroupDirectory groups = null;
+
+	/**
+	 * The most members a group can have, creator included.
+	 */
+	public static final int MAX_GROUP_MEMBERS = 1024;
 	
 	/**
 	 * @return the authProvider
@@ -38,95 +56,147 @@ public class Server {
 	}
 
 	/**
-	 * @param printLogs the printLogs to set
-	 */
-	public static void setPrintLogs(boolean printLogs) {
-		Server.printLogs = printLogs;
-	}
-	
-	/**
-	 * Prints debug logs if they are enabled.
-	 * @param out
+	 * Loads the pending messages for users from disk, and starts logging changes to them.
+	 * @throws IOException - If the saved messages couldn't be read.
 	 */
-	public static void debugOutput(String out) {
-		if (printLogs) {
-			System.out.println(out);
+	public static void loadPendingMsgs() throws IOException {
+		Map<UUID, ArrayDeque<String>> saved = new HashMap<UUID, ArrayDeque<String>>();
+		log = MessageLog.open(msgSaveFile, saved);
+		for (Entry<UUID, ArrayDeque<String>> e: saved.entrySet()) {
+			mailbox(e.getKey()).load(new ArrayList<String>(e.getValue()));
 		}
-	}
-	
-	/**
-	 * Loads the pending messages for users from disk.
-	 * @throws FileNotFoundException 
-	 */
-	public static void loadPendingMsgs() throws FileNotFoundException {
-		if (!msgSaveFile.exists()) {
-			return; //Nothing to load.
-		}
-		Scanner fileReader = new Scanner(msgSaveFile);
-		while (fileReader.hasNextLine()) {
-			//Assuming a name,UUID pair
-			String[] parts = fileReader.nextLine().trim().split(",");
-			UUID uid = UUID.fromString(parts[0]); //Should always be valid.
-			ArrayList<String> pending = new ArrayList<String>();
-			for (int i = 1; i<parts.length; i++) {
-				pending.add(parts[i]);
-			}
-			userMsgs.put(uid,pending);
-		}
-		fileReader.close();
+		Metrics.gauge("mailboxes", "", "Mailboxes in memory.", () -> mailboxes.size());
+		Metrics.gauge("pending_messages", "", "Messages waiting to be collected, counting a group message once per member.", Mailbox.PENDING::sum);
+		Metrics.gauge("pending_bytes", "", "Size of the messages waiting to be collected, base64 encoded.", Mailbox.PENDING_CHARS::sum);
 	}
 
 	/**
-	 * Saves pending messages to disk.
+	 * Makes sure every change to the pending messages so far is on disk. Normally they get there within a few milliseconds anyway.
 	 * @throws IOException
 	 */
 	public static void savePendingMsgs() throws IOException {
-		FileOutputStream fos = new FileOutputStream(msgSaveFile);
-		for (Entry<UUID, List<String>> e: userMsgs.entrySet()) {
-			String toWrite = e.getKey() + "," + String.join(",", e.getValue().toArray(new String[1])) + "\n";
-			fos.write(toWrite.getBytes());
+		if (log != null) {
+			log.flush();
 		}
-		fos.close();
+	}
+	
+	private static Mailbox mailbox(UUID who) {
+		return mailboxes.computeIfAbsent(who, k -> new Mailbox(k, log));
 	}
 	
 	/**
 	 * Adds a pending message for a given user.
 	 * @param toWho - Who was the message sent to?
 	 * @param msg - What's the message. This better be base64 encoded else we will have issues.
+	 * @return - Completed once it's on disk, so it'll survive a crash. Don't tell the sender it's sent before then.
 	 */
-	public static void addPendingMsg(UUID toWho, String msg) {
-		synchronized(userMsgs) {
-			//System.out.println("Started adding message...");
-			List<String> msgList = userMsgs.getOrDefault(toWho, new ArrayList<String>());
-			msgList.add(msg);
-			userMsgs.put(toWho, msgList);
-			try {
-				savePendingMsgs();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			//System.out.println("Ended adding messages...");
-		} //Lock needed for whole operation to prevent weird things from happening.
+	public static CompletableFuture<Void> addPendingMsg(UUID toWho, String msg) {
+		return mailbox(toWho).add(msg);
 	}
 	
 	/**
 	 * Gets and wipes the messages to a person.
 	 * @param toWho - Who's messages are we getting?
-	 * @return - The user's messages they need to be sent.
+	 * @return - The user's messages they need to be sent, or null if there aren't any.
 	 */
 	public static List<String> getAndClearMsgs(UUID toWho){
-		synchronized(userMsgs) {
-			//System.out.println("Started getting messages...");
-			List<String> removed = userMsgs.remove(toWho);
-			try {
-				savePendingMsgs();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		Mailbox box = mailboxes.get(toWho);
+		return box == null ? null : box.drain();
+	}
+
+	/**
+	 * Gets a page of a person's messages, leaving them in place until the next fetch acknowledges them.
+	 * Anything taken some other way in between (e.g. by {@link #getAndClearMsgs(UUID)}) is gone regardless.
+	 * @param toWho - Who's messages are we getting?
+	 * @param cursor - The cursor from the last page, acknowledging everything on it, or "0" to start.
+	 * @param max - The most messages on the page.
+	 * @param maxChars - Roughly the most characters of messages on the page. Always at least one message if there are any.
+	 * @return - The page.
+	 */
+	public static MessagePage fetchMsgs(UUID toWho, String cursor, int max, int maxChars) {
+		Mailbox box = mailboxes.get(toWho);
+		return box == null ? new MessagePage(List.of(), cursor, 0) : box.fetch(cursor, max, maxChars);
+	}
+
+	/**
+	 * Has a user's messages sent to a listener as they arrive, rather than kept until asked for.
+	 * Anything already in the mailbox is offered to the listener straight away (an empty list if there's nothing).
+	 * A user only has one listener at a time, so this replaces any older one.
+	 * @param who - Whose messages.
+	 * @param listener - Where they go.
+	 */
+	public static void subscribe(UUID who, MessageListener listener) {
+		mailbox(who).subscribe(listener);
+	}
+	
+	/**
+	 * Stops sending a user's messages to a listener. Does nothing if it's already been replaced.
+	 * @param who - Whose messages.
+	 * @param listener - The listener given to {@link #subscribe(UUID, MessageListener)}.
+	 */
+	public static void unsubscribe(UUID who, MessageListener listener) {
+		Mailbox box = mailboxes.get(who);
+		if (box != null) {
+			box.unsubscribe(listener);
+		}
+	}
+
+	/**
+	 * Loads every group conversation, and saves new ones to the same file.
+	 * @param groupSaveFile - Where groups are kept. Made when the first group is.
+	 */
+	public static void loadGroups(File groupSaveFile) {
+		GroupDirectory g = new GroupDirectory(groupSaveFile);
+		g.load();
+		groups = g;
+	}
+
+	/**
+	 * Makes a group conversation. Who's in it can't be changed afterwards.
+	 * @param creator - Who's making it. Always a member.
+	 * @param members - Everyone else in it. The creator and duplicates are ignored.
+	 * @return - The new group, or null if it has too many members or couldn't be saved.
+	 */
+	public static UUID createGroup(UUID creator, List<UUID> members) {
+		List<UUID> all = new ArrayList<UUID>(members.size() + 1);
+		all.add(creator);
+		for (UUID m: members) {
+			if (!all.contains(m)) {
+				all.add(m);
+			}
+		}
+		if (groups == null || all.size() > MAX_GROUP_MEMBERS) {
+			return null;
+		}
+		try {
+			return groups.create(all);
+		}
+		catch (IOException e) {
+			Log.error("Couldn't save a new group", e, "creator", creator);
+			return null;
+		}
+	}
+
+	/**
+	 * Sends a message to everyone in a group but the sender. It's only stored once, with every member's mailbox pointing at it.
+	 * @param from - Who sent it. Must be in the group.
+	 * @param group - The group.
+	 * @param msg - What's the message. Base64 encoded, same as {@link #addPendingMsg(UUID, String)}.
+	 * @return - Completed once it's on disk, same as {@link #addPendingMsg(UUID, String)}, or null if it wasn't sent because the
+	 * group doesn't exist or the sender isn't in it.
+	 */
+	public static CompletableFuture<Void> addGroupMsg(UUID from, UUID group, String msg) {
+		List<UUID> members = groups == null ? null : groups.getMembers(group);
+		if (members == null || !members.contains(from)) {
+			return null;
+		}
+		List<Mailbox> boxes = new ArrayList<Mailbox>(members.size() - 1);
+		for (UUID m: members) { //Already sorted, which fan-outs rely on.
+			if (!m.equals(from)) {
+				boxes.add(mailbox(m));
 			}
-			//System.out.println("Ended getting messages...");
-			return removed;
 		}
+		return Mailbox.fanOut(boxes, msg, log, group);
 	}
 
 	/**
@@ -2,109 +2,137 @@ package me.DanL.ThreadedServer.UserManagement;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
-import java.util.Scanner;
-import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 
+import javax.crypto.Mac;
+
 import me.DanL.E2EChat.CryptoUtils.BinaryUtils;
+import me.DanL.E2EChat.CryptoUtils.CryptoEngines;
 import me.DanL.E2EChat.CryptoUtils.HMACUtils;
 import me.DanL.E2EChat.CryptoUtils.HMACUtils.InvalidMACException;
 import me.DanL.E2EChat.CryptoUtils.RSAKey;
-import me.DanL.E2EChat.CryptoUtils.RSAKey.MalformedKeyFileException;
-import me.DanL.ThreadedServer.Primary.Server;
+import me.DanL.ThreadedServer.Logging.Log;
+import me.DanL.ThreadedServer.Metrics.Metrics;
 
 public class Authenticator {
 	
-	private HashMap<UUID,byte[]> sessionSecrets = new HashMap<UUID,byte[]>();
-	private HashMap<UUID,Integer> userLastPacketNum = new HashMap<UUID,Integer>();
-	private HashMap<String,UUID> uidLookup = new HashMap<String,UUID>();
+	/**
+	 * Each user's current session. Replaced wholesale on a new HELLO, so a packet is always checked against one session's
+	 * key and packet numbers, never a mix of an old and new one.
+	 */
+	private ConcurrentHashMap<UUID,SessionKey> sessions = new ConcurrentHashMap<UUID,SessionKey>();
+	private HashMap<UUID,ClientSession> liveSessions = new HashMap<UUID,ClientSession>();
+	
+	private final KeyCache keyCache = new KeyCache(Long.getLong("threadedchat.keyCacheBytes", 16 * 1024 * 1024),
+			Integer.getInteger("threadedchat.keyCacheMisses", 4096));
 	
 	private File storageDir;
 	
-	private File userInfoFile;
+	private UserDirectory users;
+	
+	private PackedKeyStore keyStore;
+	
+	/**
+	 * Why packets have failed authentication, counted for the metrics.
+	 */
+	private final LongAdder noSession = new LongAdder(), replayed = new LongAdder(), badMac = new LongAdder();
 	
 	
-	public Authenticator(File keyStorageDir, File userInfoLoadFrom) {
+	/**
+	 * @param keyStorageDir - Where keys used to be kept, one file per user. The key store goes next to it, as &lt;dir&gt;.pack,
+	 * and any keys still in the directory are moved into it.
+	 * @param userInfoLoadFrom - The users file.
+	 * @throws IOException - If the key store couldn't be opened or the old keys couldn't be moved into it.
+	 */
+	public Authenticator(File keyStorageDir, File userInfoLoadFrom) throws IOException {
 		storageDir = keyStorageDir;
 		storageDir.mkdirs();
-		userInfoFile = userInfoLoadFrom;
+		keyStore = PackedKeyStore.open(new File(storageDir.getPath() + ".pack"));
+		int imported = keyStore.importDirectory(storageDir);
+		if (imported > 0) {
+			Log.info("Moved public keys into the key store", "keys", imported);
+		}
+		users = new UserDirectory(userInfoLoadFrom);
 		try {
 			loadUsers();
 		} catch (FileNotFoundException e) {
 			//Silently ignore
 		}
+		String help = "Packets that failed authentication.";
+		Metrics.counter("auth_failures_total", "reason=\"no_session\"", help, noSession::sum);
+		Metrics.counter("auth_failures_total", "reason=\"replay\"", help, replayed::sum);
+		Metrics.counter("auth_failures_total", "reason=\"bad_mac\"", help, badMac::sum);
 	}
 	
 	/**
-	 * Loads the uidLookup table from disk.
+	 * Loads the users file from disk.
 	 * @throws FileNotFoundException 
 	 */
 	public void loadUsers() throws FileNotFoundException {
-		Scanner fileReader = new Scanner(userInfoFile);
-		while (fileReader.hasNextLine()) {
-			//Assuming a name,UUID pair
-			String[] parts = fileReader.nextLine().trim().split(",");
-			String name = parts[0];
-			UUID uid = UUID.fromString(parts[1]); //Should always be valid.
-			uidLookup.put(name, uid);
-		}
-		fileReader.close();
+		users.load();
 	}
 
 	/**
-	 * Saves the users file to disk.
+	 * Rewrites the users file from scratch, dropping any superseded lines. Registering doesn't need this, since it appends.
 	 * @throws IOException
 	 */
 	public void saveUsers() throws IOException {
-		FileOutputStream fos = new FileOutputStream(userInfoFile);
-		for (Entry<String, UUID> e: uidLookup.entrySet()) {
-			String toWrite = e.getKey() + "," + e.getValue().toString() + "\n";
-			fos.write(toWrite.getBytes());
-		}
-		fos.close();
+		users.save();
 	}
 	
-	public synchronized boolean packetAuthed(String payload, UUID user, int packetNum, byte[] authGiven) {
-		int lastPacket = userLastPacketNum.getOrDefault(user, 0);
-		if (packetNum <= lastPacket) {
-			Server.debugOutput("Packet number is lower than or equal to a previous packet number, assuming replay attack and rejecting.");
-			return false;
+	public boolean packetAuthed(String payload, UUID user, int packetNum, byte[] authGiven) {
+		byte[] b = payload.getBytes();
+		return packetAuthed(b, 0, b.length, user, packetNum, authGiven);
+	}
+	
+	/**
+	 * Checks a packet's signature and packet number, with the payload still in the packet's bytes.
+	 * @param packet - The bytes the payload is in.
+	 * @param payloadOff - Where the payload starts.
+	 * @param payloadLen - How long the payload is.
+	 * @param user - Who the packet says it's from.
+	 * @param packetNum - The packet's number, which can't have been used before in this session. Numbers can arrive out of order,
+	 * as long as they're no more than {@link ReplayWindow#WINDOW} behind the highest one so far.
+	 * @param authGiven - The packet's HMAC.
+	 * @return - If the packet's genuine. If so its number is remembered, so it can't be replayed.
+	 */
+	public boolean packetAuthed(byte[] packet, int payloadOff, int payloadLen, UUID user, int packetNum, byte[] authGiven) {
+		SessionKey ses = sessions.get(user);
+		if (ses == null) {
+			noSession.increment();
+			Log.debug("User hasn't initialised a session, rejecting", "user", user);
+			return false; //Null key will fail and a hardcoded default key would allow auth bypass.
 		}
-		byte[] toSign = new byte[36]; //4 bytes for the packet number + 32 for the hash.
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.putInt(packetNum);
-		byte[] packetNumAsBytes = bb.array();
-		for (byte i = 0;i<4;i++) {
-			toSign[i] = packetNumAsBytes[i];
+		if (!ses.seen.mightAccept(packetNum)) {
+			replayed.increment();
+			Log.debug("Packet number already used (or too old to tell), assuming replay attack and rejecting", "user", user, "num", packetNum);
+			return false;
 		}
+		MessageDigest md = CryptoEngines.sha256();
+		md.update(packet, payloadOff, payloadLen);
+		byte[] toSign = ByteBuffer.allocate(36).putInt(packetNum).put(md.digest()).array(); //4 bytes for the packet number + 32 for the hash.
 		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			byte[] sha = md.digest(payload.getBytes());
-			for (byte i = 0;i<32;i++) {
-				toSign[i+4] = sha[i];
+			synchronized (ses) { //Only contended if the same user has several packets in at once.
+				HMACUtils.verifyHmac(ses.mac, toSign, authGiven);
 			}
-		} catch (NoSuchAlgorithmException e) {
-			//?????
-			e.printStackTrace();
-		}
-		if (!sessionSecrets.containsKey(user)) {
-			Server.debugOutput("User hasn't initialised a session, rejecting.");
-			return false; //Null key will fail and a hardcoded default key would allow auth bypass.
-		}
-		try {
-			HMACUtils.verifyHmac(toSign, sessionSecrets.get(user), authGiven);
 		} catch (InvalidMACException e) {
-			Server.debugOutput("Packet MAC invalid, rejecting.");
+			badMac.increment();
+			Log.debug("Packet MAC invalid, rejecting", "user", user);
+			return false;
+		}
+		//Only now use the number up, so a forged packet can't burn numbers. If two packets race, only one can have each number.
+		if (!ses.seen.accept(packetNum)) {
+			replayed.increment();
+			Log.debug("Packet number already used, assuming replay attack and rejecting", "user", user, "num", packetNum);
 			return false;
 		}
-		userLastPacketNum.put(user, packetNum); //Increment instantly so that the signature changes with each packet
 		return true;
 	}
 	
@@ -114,19 +142,20 @@ public class Authenticator {
 	 * @return - The user's public key, or null if they do not have one.
 	 */
 	public RSAKey getUserPubKey(UUID who) {
-		String xmlFileName = who.toString() + "-pub.xmlkey";
-		File kFile = new File(storageDir.getPath() + File.separator + xmlFileName);
-		try {
-			RSAKey userKey = new RSAKey(kFile);
-			return userKey;
-		} catch (FileNotFoundException e) {
-			// No key on file.
-			return null;
-		} catch (MalformedKeyFileException e) {
-			// The key file we have for them is malformed, remove it and return null.
-			kFile.delete();
-			return null;
-		}
+		return keyCache.get(who, this::loadUserPubKey).key;
+	}
+	
+	/**
+	 * Get a user's saved public key, ready to send.
+	 * @param who - The UUID of the user we're getting the key for.
+	 * @return - The user's public key as KEY replies carry it, or null if they do not have one.
+	 */
+	public String getUserPubKeyString(UUID who) {
+		return keyCache.get(who, this::loadUserPubKey).wire;
+	}
+	
+	private RSAKey loadUserPubKey(UUID who) {
+		return keyStore.get(who); //Null if there's no key, or the one we have is broken (so they can register again).
 	}
 	
 	/**
@@ -136,9 +165,8 @@ public class Authenticator {
 	 * @throws IOException - If something went wrong.
 	 */
 	public void saveUserPubKey(UUID who, RSAKey key) throws IOException {
-		String xmlFileName = who.toString() + "-pub.xmlkey";
-		File kFile = new File(storageDir.getPath() + File.separator + xmlFileName);
-		key.savePublic(kFile);
+		keyStore.put(who, key);
+		keyCache.put(who, key);
 	}
 	
 	/**
@@ -146,13 +174,12 @@ public class Authenticator {
 	 * @param uid - The user's UID. Should never change.
 	 * @param pubKey - The user's public key. Once set, cannot be changed.
 	 * @param name - The user's name. I may add a way to change this.
-	 * @throws IOException - If saving the user's public key fails.
+	 * @throws IOException - If saving the user's public key or their registration fails.
 	 */
 	public void addUser(UUID uid, RSAKey pubKey, String name) throws IOException {
 		name = name.replaceAll("\\W", ""); //Removes all non word characters from the name.
-		uidLookup.put(name, uid);
 		saveUserPubKey(uid, pubKey);
-		saveUsers();
+		users.add(name, uid);
 	}
 	
 	/**
@@ -162,27 +189,70 @@ public class Authenticator {
 	 */
 	public byte[] resetUserSessionKey(UUID who) {
 		byte[] newKey = BinaryUtils.getSalt(32); //New session token.
-		sessionSecrets.put(who, newKey);
-		userLastPacketNum.put(who, 0); //Resets the user's packet counter.
+		sessions.put(who, new SessionKey(newKey)); //Packet counter starts again from 0 too.
 		return newKey;
 	}
 	
+	/**
+	 * Records that a connection now belongs to a user, after they've been sent their challenge.
+	 * Any other connection they had open is closed, since resetting the session key has made it useless anyway.
+	 * @param who - The user.
+	 * @param ses - The session on their new connection.
+	 */
+	public void bindSession(UUID who, ClientSession ses) {
+		ClientSession old;
+		synchronized (liveSessions) {
+			ses.setUser(who);
+			old = liveSessions.put(who, ses);
+		}
+		if (old != null && old != ses) {
+			old.getConnection().close();
+		}
+	}
+	
+	/**
+	 * Forgets about a session once its connection has closed.
+	 * @param ses - The session that's ended.
+	 */
+	public void unbindSession(ClientSession ses) {
+		UUID who = ses.getUser();
+		if (who == null) {
+			return;
+		}
+		synchronized (liveSessions) {
+			liveSessions.remove(who, ses); //Only if a newer connection hasn't already replaced it.
+		}
+	}
+	
 	/**
 	 * Look up a UUID and return a name.
 	 * @param who - The UUID to look up.
 	 * @return The user's UUID, or null if they couldn't be found.
 	 */
 	public String getName(UUID who) {
-		for (Entry<String, UUID> e: uidLookup.entrySet()) {
-			if (e.getValue().equals(who)) {
-				return e.getKey();
-			}
-		}
-		return "null";
+		String name = users.getName(who);
+		return name == null ? "null" : name;
 	}
 	
 	public UUID getUid(String who) {
-		return uidLookup.get(who);
+		return users.getUid(who);
+	}
+	
+	/**
+	 * A user's session key, and which packet numbers they've already signed with it.
+	 */
+	private static class SessionKey {
+		
+		/**
+		 * Keyed with the session key, so checking a packet doesn't set the key up again. Guarded by this.
+		 */
+		final Mac mac;
+		
+		final ReplayWindow seen = new ReplayWindow();
+		
+		SessionKey(byte[] secret) {
+			this.mac = HMACUtils.keyedMac(secret);
+		}
 	}
 	
 	
@@ -0,0 +1,144 @@
+package me.DanL.ThreadedServer.UserManagement;
+
+import java.util.UUID;
+
+import me.DanL.PacketManager.PacketConnection;
+import me.DanL.ThreadedServer.Primary.MessageListener;
+
+/**
+ * Everything the relay knows about one client connection. Attached to the connection on HELLO and kept there for as
+ * long as the client keeps the connection open, so one connection can carry any number of authenticated packets.
+ * @author daniel
+ *
+ */
+public class ClientSession {
+
+	private final PacketConnection conn;
+
+	/**
+	 * Who this connection belongs to. Null until they've been sent a challenge.
+	 */
+	private volatile UUID user = null;
+
+	/**
+	 * Who is part way through registering on this connection, if anyone.
+	 */
+	private UUID registering = null;
+
+	private String registeringName = null;
+
+	/**
+	 * Whatever this connection last set up to wait on the user's messages (a SUBSCRIBE or WAIT), so it can be dropped on close.
+	 */
+	private volatile MessageListener listener = null;
+
+	/**
+	 * The protocol version the client asked for in its HELLO. Only touched on the connection's own thread.
+	 */
+	private int requestedVersion = 1;
+
+	/**
+	 * The protocol version packets on this connection are in. 1 until the challenge has been sent.
+	 */
+	private volatile int protocolVersion = 1;
+
+	public ClientSession(PacketConnection connection) {
+		conn = connection;
+	}
+
+	/**
+	 * @return - The connection this session is on.
+	 */
+	public PacketConnection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * @return - The user this connection has been bound to, or null if it hasn't finished a HELLO yet.
+	 */
+	public UUID getUser() {
+		return user;
+	}
+
+	void setUser(UUID who) {
+		user = who;
+	}
+
+	/**
+	 * Test if a packet claiming to be from a user is allowed on this connection.
+	 * @param sender - Who the packet says it's from.
+	 * @return - True if the connection isn't bound yet or is bound to that user.
+	 */
+	public boolean mayActAs(UUID sender) {
+		UUID bound = user;
+		return bound == null || bound.equals(sender);
+	}
+
+	/**
+	 * Starts a registration: we've sent NEW and now need a PERSON then a CRYPT.
+	 * @param who - The UUID from the HELLO.
+	 */
+	public void beginRegistration(UUID who) {
+		registering = who;
+		registeringName = null;
+	}
+
+	/**
+	 * @return - Who is registering on this connection, or null if nobody is.
+	 */
+	public UUID getRegistering() {
+		return registering;
+	}
+
+	/**
+	 * @return - The name given in the PERSON packet, or null if it hasn't arrived yet.
+	 */
+	public String getRegisteringName() {
+		return registeringName;
+	}
+
+	public void setRegisteringName(String name) {
+		registeringName = name;
+	}
+
+	public MessageListener getListener() {
+		return listener;
+	}
+
+	public void setListener(MessageListener l) {
+		listener = l;
+	}
+
+	/**
+	 * Forgets about any registration in progress.
+	 */
+	public void endRegistration() {
+		registering = null;
+		registeringName = null;
+	}
+
+	/**
+	 * @return - The protocol version the client asked for in its HELLO, 1 if it didn't say.
+	 */
+	public int getRequestedVersion() {
+		return requestedVersion;
+	}
+
+	public void setRequestedVersion(int version) {
+		requestedVersion = version;
+	}
+
+	/**
+	 * @return - The protocol version packets on this connection are in.
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	/**
+	 * @param version - The protocol version packets on this connection are in from now on.
+	 */
+	public void setProtocolVersion(int version) {
+		protocolVersion = version;
+	}
+}
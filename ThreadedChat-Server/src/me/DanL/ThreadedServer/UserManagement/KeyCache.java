@@ -0,0 +1,170 @@
+package me.DanL.ThreadedServer.UserManagement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+import me.DanL.E2EChat.CryptoUtils.RSAKey;
+
+/**
+ * Keeps users' parsed public keys in memory, along with the form KEY sends them in, so HELLO and KEY don't have to go to disk.
+ * Users without a key are remembered too, so nobody can make us go to disk over and over by asking for made up users.
+ *
+ * The cache is split into stripes by UUID, each with its own lock, so lookups for different users hardly ever wait on each other
+ * (a hit still has to lock, since it moves the key to the back of the queue). Within a stripe, least recently used keys are thrown
+ * out once its share of the size limit is used up. Users without a key are kept apart, in a small map of their own per stripe that
+ * throws out the oldest once it's full, so asking for lots of made up users can only push out other made up users.
+ * Keys never change once registered, so the only thing that can make an entry wrong is a user registering, which goes through {@link #put(UUID, RSAKey)}.
+ * @author daniel
+ *
+ */
+class KeyCache {
+
+	/**
+	 * Roughly what an entry costs on top of the key's text: the map entry, the UUID, the parsed key and so on.
+	 */
+	private static final int ENTRY_OVERHEAD = 512;
+
+	private static final Entry MISSING = new Entry(null, null);
+
+	/**
+	 * How many stripes. Always a power of 2.
+	 */
+	private static final int STRIPES = 16;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	/**
+	 * @param maxBytes - Roughly how much memory the cached keys can use.
+	 * @param maxMisses - Roughly how many users without a key to remember.
+	 */
+	KeyCache(long maxBytes, int maxMisses) {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(maxBytes / STRIPES, Math.max(1, maxMisses / STRIPES));
+		}
+	}
+
+	/**
+	 * Gets a user's key, loading it if it isn't cached.
+	 * @param who - The user.
+	 * @param loader - Loads their key from disk, returning null if they don't have one. Called without holding any locks.
+	 * @return - Their key and its wire form, or an entry with both null if they haven't got one.
+	 */
+	Entry get(UUID who, Function<UUID, RSAKey> loader) {
+		Stripe s = stripe(who);
+		long putsBefore;
+		synchronized (s) {
+			Entry e = s.entries.get(who);
+			if (e == null) {
+				e = s.misses.get(who);
+			}
+			if (e != null) {
+				return e;
+			}
+			putsBefore = s.puts;
+		}
+		RSAKey key = loader.apply(who);
+		Entry e = key == null ? MISSING : new Entry(key, key.savePublicToString().replace(" ", "").replace("\n", ""));
+		synchronized (s) {
+			if (s.puts == putsBefore) { //Otherwise someone may have registered while we were reading, and we could cache a stale miss.
+				s.add(who, e);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Records a newly saved key.
+	 */
+	void put(UUID who, RSAKey key) {
+		Entry e = new Entry(key, key.savePublicToString().replace(" ", "").replace("\n", ""));
+		Stripe s = stripe(who);
+		synchronized (s) {
+			s.puts++;
+			s.add(who, e);
+		}
+	}
+
+	private Stripe stripe(UUID who) {
+		return stripes[who.hashCode() & (STRIPES - 1)];
+	}
+
+	/**
+	 * The users whose UUIDs hash to one stripe. Everything in it is guarded by the stripe itself.
+	 */
+	private static class Stripe {
+
+		private final long maxBytes;
+
+		private long bytes = 0;
+
+		/**
+		 * Bumped on every {@link KeyCache#put(UUID, RSAKey)}, so a load that raced with one knows not to cache what it found.
+		 */
+		private long puts = 0;
+
+		/**
+		 * Users with keys, in access order, so the first entry is the least recently used.
+		 */
+		private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<UUID, Entry>(16, 0.75f, true);
+
+		/**
+		 * Users without a key, oldest first.
+		 */
+		private final LinkedHashMap<UUID, Entry> misses;
+
+		private Stripe(long maxBytes, int maxMisses) {
+			this.maxBytes = maxBytes;
+			misses = new LinkedHashMap<UUID, Entry>() {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+					return size() > maxMisses;
+				}
+			};
+		}
+
+		private void add(UUID who, Entry e) {
+			if (e == MISSING) {
+				misses.put(who, e);
+				return;
+			}
+			misses.remove(who);
+			Entry old = entries.put(who, e);
+			if (old != null) {
+				bytes -= old.size();
+			}
+			bytes += e.size();
+			while (bytes > maxBytes && entries.size() > 1) {
+				Map.Entry<UUID, Entry> eldest = entries.entrySet().iterator().next();
+				bytes -= eldest.getValue().size();
+				entries.remove(eldest.getKey());
+			}
+		}
+	}
+
+	/**
+	 * A cached key. Both fields are null for a user with no key.
+	 */
+	static class Entry {
+
+		final RSAKey key;
+
+		/**
+		 * The key as KEY replies carry it: {@link RSAKey#savePublicToString()} without any whitespace.
+		 */
+		final String wire;
+
+		Entry(RSAKey key, String wire) {
+			this.key = key;
+			this.wire = wire;
+		}
+
+		long size() {
+			return ENTRY_OVERHEAD + (wire == null ? 0 : wire.length() * 3L); //The string plus about as much again for the parsed key.
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package me.DanL.ThreadedServer.UserManagement;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import me.DanL.E2EChat.CryptoUtils.RSAKey;
+import me.DanL.E2EChat.CryptoUtils.RSAKey.MalformedKeyFileException;
+import me.DanL.ThreadedServer.Logging.Log;
+
+/**
+ * Every user's public key in one append-only file, so there's one file to back up rather than one per user.
+ *
+ * The file is a header (magic and version) followed by records: a length, a CRC, the user's UUID, then the key's modulus and
+ * exponent as a length and big-endian bytes each. A later record for the same user replaces an earlier one.
+ * The file's memory-mapped and indexed by UUID when it's opened, so looking a key up is just a read from memory. Keys added
+ * since are read from the file until there are as many bytes of them as are mapped, then the whole file's mapped again, so
+ * registering costs the same however many users there are.
+ * A record that fails its CRC is ignored, and a record cut short by a crash is cut off so appending can carry on after it.
+ * @author daniel
+ *
+ */
+class PackedKeyStore {
+
+	private static final int MAGIC = 0x54434B53; //"TCKS"
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_LEN = 8;
+
+	/**
+	 * The length and CRC in front of each record.
+	 */
+	private static final int RECORD_HEADER_LEN = 8;
+
+	/**
+	 * The UUID and both lengths, which every record has.
+	 */
+	private static final int MIN_RECORD_LEN = 16 + 4 + 4;
+
+	/**
+	 * Legacy key files are named after the user they're for, with this on the end.
+	 */
+	private static final String LEGACY_SUFFIX = "-pub.xmlkey";
+
+	private final FileChannel ch;
+
+	/**
+	 * Where each user's latest record starts.
+	 */
+	private final ConcurrentHashMap<UUID, Integer> index = new ConcurrentHashMap<UUID, Integer>();
+
+	/**
+	 * The file as it was when last mapped. Records past its end are read from the channel instead. Only ever read with absolute
+	 * gets, so it can be shared between threads.
+	 */
+	private volatile MappedByteBuffer map;
+
+	/**
+	 * Where the next record goes. Guarded by this.
+	 */
+	private long end;
+
+	private PackedKeyStore(FileChannel ch) {
+		this.ch = ch;
+	}
+
+	/**
+	 * Opens a key store, making it if it doesn't exist yet.
+	 * @param f - The file.
+	 * @return - The store, with every key in it indexed.
+	 * @throws IOException - If the file couldn't be opened, or isn't a key store.
+	 */
+	static PackedKeyStore open(File f) throws IOException {
+		FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			PackedKeyStore store = new PackedKeyStore(ch);
+			store.load(f);
+			return store;
+		}
+		catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+	}
+
+	private void load(File f) throws IOException {
+		if (ch.size() == 0) {
+			writeFully(ByteBuffer.allocate(HEADER_LEN).putInt(MAGIC).putInt(VERSION).flip(), 0);
+			ch.force(true);
+		}
+		if (ch.size() > Integer.MAX_VALUE) {
+			throw new IOException(f + " is too big to map.");
+		}
+		MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		if (m.capacity() < HEADER_LEN || m.getInt(0) != MAGIC || m.getInt(4) != VERSION) {
+			throw new IOException(f + " isn't a key store.");
+		}
+		int pos = HEADER_LEN;
+		CRC32 crc = new CRC32();
+		while (pos + RECORD_HEADER_LEN <= m.capacity()) {
+			int len = m.getInt(pos);
+			if (len < MIN_RECORD_LEN || len > m.capacity() - pos - RECORD_HEADER_LEN) {
+				break; //Cut short, so everything from here on is lost anyway.
+			}
+			crc.reset();
+			crc.update(m.slice(pos + RECORD_HEADER_LEN, len));
+			if ((int) crc.getValue() == m.getInt(pos + 4)) {
+				index.put(new UUID(m.getLong(pos + RECORD_HEADER_LEN), m.getLong(pos + RECORD_HEADER_LEN + 8)), pos);
+			}
+			else {
+				Log.warn("Skipping a damaged key", "file", f, "at", pos);
+			}
+			pos += RECORD_HEADER_LEN + len;
+		}
+		if (pos != m.capacity()) {
+			Log.warn("Dropping a partly written key from the end of the key store", "file", f, "bytes", m.capacity() - pos);
+			ch.truncate(pos);
+			m = ch.map(FileChannel.MapMode.READ_ONLY, 0, pos);
+		}
+		end = pos;
+		map = m;
+	}
+
+	/**
+	 * @param who - The user.
+	 * @return - Their key, or null if they haven't got one (or it's broken).
+	 */
+	RSAKey get(UUID who) {
+		Integer off = index.get(who);
+		if (off == null) {
+			return null;
+		}
+		MappedByteBuffer m = map;
+		if (off < m.capacity()) {
+			return parse(m, off); //Only ever mapped up to the end of a record, so it's all there.
+		}
+		try {
+			ByteBuffer len = ByteBuffer.allocate(4);
+			readFully(len, off);
+			ByteBuffer rec = ByteBuffer.allocate(RECORD_HEADER_LEN + len.getInt(0));
+			readFully(rec, off);
+			return parse(rec, 0);
+		}
+		catch (IOException e) {
+			Log.error("Couldn't read a key", e, "user", who);
+			return null;
+		}
+	}
+
+	/**
+	 * @param b - Holds the record.
+	 * @param off - Where the record starts.
+	 * @return - The key, or null if it's broken.
+	 */
+	private static RSAKey parse(ByteBuffer b, int off) {
+		int pos = off + RECORD_HEADER_LEN + 16;
+		int modLen = b.getInt(pos);
+		byte[] mod = new byte[modLen];
+		b.get(pos + 4, mod);
+		pos += 4 + modLen;
+		byte[] exp = new byte[b.getInt(pos)];
+		b.get(pos + 4, exp);
+		try {
+			return new RSAKey(new BigInteger(mod), new BigInteger(exp));
+		} catch (MalformedKeyFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return - If this user has a key stored.
+	 */
+	boolean contains(UUID who) {
+		return index.containsKey(who);
+	}
+
+	/**
+	 * Saves a user's key, replacing any they had. It's on disk before this returns.
+	 * @throws IOException - If it couldn't be saved, in which case nothing's changed.
+	 */
+	synchronized void put(UUID who, RSAKey key) throws IOException {
+		List<UUID> users = new ArrayList<UUID>(1);
+		List<RSAKey> keys = new ArrayList<RSAKey>(1);
+		users.add(who);
+		keys.add(key);
+		putAll(users, keys);
+	}
+
+	/**
+	 * Saves several keys at once, with one sync for the lot.
+	 */
+	private synchronized void putAll(List<UUID> users, List<RSAKey> keys) throws IOException {
+		long start = end;
+		List<Integer> offsets = new ArrayList<Integer>(users.size());
+		CRC32 crc = new CRC32();
+		try {
+			for (int i = 0; i < users.size(); i++) {
+				byte[] mod = keys.get(i).getModulus().toByteArray();
+				byte[] exp = keys.get(i).getPublicExponent().toByteArray();
+				int len = MIN_RECORD_LEN + mod.length + exp.length;
+				if (end + RECORD_HEADER_LEN + len > Integer.MAX_VALUE) {
+					throw new IOException("Key store is full.");
+				}
+				ByteBuffer rec = ByteBuffer.allocate(RECORD_HEADER_LEN + len);
+				rec.position(RECORD_HEADER_LEN);
+				UUID who = users.get(i);
+				rec.putLong(who.getMostSignificantBits()).putLong(who.getLeastSignificantBits());
+				rec.putInt(mod.length).put(mod).putInt(exp.length).put(exp);
+				crc.reset();
+				crc.update(rec.array(), RECORD_HEADER_LEN, len);
+				rec.putInt(0, len).putInt(4, (int) crc.getValue());
+				rec.flip();
+				writeFully(rec, end);
+				offsets.add((int) end);
+				end += RECORD_HEADER_LEN + len;
+			}
+			ch.force(false);
+			if (end >= 2L * map.capacity()) {
+				map = ch.map(FileChannel.MapMode.READ_ONLY, 0, end); //Only once the file has doubled since the last map, so it's rare however many keys there are.
+			}
+		}
+		catch (IOException e) {
+			end = start;
+			try {
+				ch.truncate(start); //Don't leave half of it behind for the next append to follow.
+			}
+			catch (IOException e2) {
+				//Loading will cut it off if it's broken.
+			}
+			throw e;
+		}
+		for (int i = 0; i < users.size(); i++) {
+			index.put(users.get(i), offsets.get(i));
+		}
+	}
+
+	private void readFully(ByteBuffer b, long at) throws IOException {
+		while (b.hasRemaining()) {
+			int n = ch.read(b, at);
+			if (n < 0) {
+				throw new EOFException("Key store ends part way through a key.");
+			}
+			at += n;
+		}
+	}
+
+	private void writeFully(ByteBuffer b, long at) throws IOException {
+		while (b.hasRemaining()) {
+			at += ch.write(b, at);
+		}
+	}
+
+	/**
+	 * Imports keys left in the old one file per user layout, for any user who isn't in the store already.
+	 * Each file is deleted once its key is safely in the store. Broken files are left alone.
+	 * @param dir - The directory of key files.
+	 * @return - How many keys were imported.
+	 * @throws IOException - If the store couldn't be written to, in which case no files are deleted.
+	 */
+	synchronized int importDirectory(File dir) throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(LEGACY_SUFFIX));
+		if (files == null || files.length == 0) {
+			return 0;
+		}
+		List<UUID> users = new ArrayList<UUID>();
+		List<RSAKey> keys = new ArrayList<RSAKey>();
+		List<File> done = new ArrayList<File>();
+		for (File kFile: files) {
+			String name = kFile.getName();
+			try {
+				UUID who = UUID.fromString(name.substring(0, name.length() - LEGACY_SUFFIX.length()));
+				if (!contains(who)) {
+					keys.add(new RSAKey(kFile));
+					users.add(who);
+				}
+				done.add(kFile);
+			}
+			catch (IllegalArgumentException | FileNotFoundException | MalformedKeyFileException e) {
+				Log.warn("Couldn't import a key, leaving it", "file", kFile);
+			}
+		}
+		putAll(users, keys);
+		for (File kFile: done) {
+			kFile.delete();
+		}
+		return users.size();
+	}
+}
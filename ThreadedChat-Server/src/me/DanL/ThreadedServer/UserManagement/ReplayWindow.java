@@ -0,0 +1,79 @@
+package me.DanL.ThreadedServer.UserManagement;
+
+/**
+ * Which packet numbers a session has already used, so a packet can't be replayed, without them having to arrive in order.
+ *
+ * Works like IPsec's anti-replay window (RFC 6479): a bitmap of the last WINDOW numbers below the highest seen, kept as a ring
+ * of 64 bit words so moving the window along only clears the words it moves past. Anything newer than the highest number is
+ * fine, anything in the window is fine once, and anything older than the window is turned away, since there's no telling if it's
+ * been seen.
+ * @author daniel
+ *
+ */
+class ReplayWindow {
+
+	/**
+	 * How many words are in the ring. Has to be a power of 2.
+	 */
+	private static final int WORDS = 16;
+
+	/**
+	 * How far behind the highest number a packet can be and still get in. One word short of the ring, since the word the highest
+	 * number's in is only partly used.
+	 */
+	static final int WINDOW = (WORDS - 1) * 64;
+
+	/**
+	 * Guarded by this.
+	 */
+	private final long[] bitmap = new long[WORDS];
+
+	/**
+	 * The highest number accepted so far, or 0 if none have been. Guarded by this.
+	 */
+	private int top = 0;
+
+	/**
+	 * Checks a number without using it up, so obviously replayed packets can be turned away before their MAC's checked.
+	 * @return - If a packet with this number could be accepted.
+	 */
+	synchronized boolean mightAccept(int num) {
+		if (num <= 0) {
+			return false; //Numbers start at 1.
+		}
+		if (num > top) {
+			return true;
+		}
+		if (top - num >= WINDOW) {
+			return false; //Too old to tell.
+		}
+		return (bitmap[word(num)] & bit(num)) == 0;
+	}
+
+	/**
+	 * Uses a number up, if it's not been used already.
+	 * @return - If it hadn't been, i.e. the packet isn't a replay.
+	 */
+	synchronized boolean accept(int num) {
+		if (!mightAccept(num)) {
+			return false;
+		}
+		if (num > top) {
+			int moved = Math.min((num >>> 6) - (top >>> 6), WORDS);
+			for (int i = 1; i <= moved; i++) {
+				bitmap[(word(top) + i) & (WORDS - 1)] = 0; //These words are now for numbers nobody's sent yet.
+			}
+			top = num;
+		}
+		bitmap[word(num)] |= bit(num);
+		return true;
+	}
+
+	private static int word(int num) {
+		return (num >>> 6) & (WORDS - 1);
+	}
+
+	private static long bit(int num) {
+		return 1L << (num & 63);
+	}
+}
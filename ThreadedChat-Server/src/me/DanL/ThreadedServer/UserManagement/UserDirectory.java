@@ -0,0 +1,317 @@
+package me.DanL.ThreadedServer.UserManagement;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import me.DanL.ThreadedServer.Logging.Log;
+
+/**
+ * Who's registered: names to UUIDs and back, both looked up in constant time without locking.
+ *
+ * Kept compact rather than as maps of objects: each registration is an entry of two longs (the UUID), an int (where the name
+ * starts) and a short (its length, in UTF-8), with every name in one shared byte array. Two open-addressed hash tables of
+ * entry numbers find entries by name and by UUID. That's roughly 40 bytes a user plus their name, where two ConcurrentHashMaps
+ * cost a few hundred. Only registering changes anything, and it's locked; lookups read whichever {@link Tables} was last
+ * published, and a table slot is always written after the entry it points to, so a lookup never sees half an entry.
+ *
+ * Registrations are appended to the users file (one name,UUID line each) rather than rewriting it, so registering costs the same
+ * however many users there are. Later lines win when it's loaded, same as the registrations did at the time.
+ * @author daniel
+ *
+ */
+class UserDirectory {
+
+	/**
+	 * Everything lookups need. The arrays in one are only ever added to, and never shared with another, so once a new one's
+	 * published anyone still using the old one sees it as it was.
+	 */
+	private static final class Tables {
+
+		/**
+		 * Each entry's UUID.
+		 */
+		final long[] hi, lo;
+
+		/**
+		 * Where each entry's name starts in names, and how long it is. A length of -1 means no name: the user's had it taken.
+		 */
+		final int[] nameAt;
+
+		final short[] nameLen;
+
+		final byte[] names;
+
+		/**
+		 * Entry number + 1 for each name and UUID, or 0 for an empty slot. Twice as long as there can be entries, so at least
+		 * half the slots are always empty.
+		 */
+		final AtomicIntegerArray byName, byUid;
+
+		Tables(int entries, int nameBytes) {
+			hi = new long[entries];
+			lo = new long[entries];
+			nameAt = new int[entries];
+			nameLen = new short[entries];
+			names = new byte[nameBytes];
+			byName = new AtomicIntegerArray(entries * 2);
+			byUid = new AtomicIntegerArray(entries * 2);
+		}
+	}
+
+	private volatile Tables tables = new Tables(1024, 16 * 1024);
+
+	/**
+	 * How many entries and name bytes have been used. Guarded by this.
+	 */
+	private int entries = 0, nameBytes = 0;
+
+	private final File file;
+
+	/**
+	 * Appended to as users register. Guarded by this.
+	 */
+	private FileOutputStream appender = null;
+
+	UserDirectory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads everyone from the users file. Lines that won't parse (e.g. one cut short by a crash) are skipped.
+	 * @throws FileNotFoundException - If there's no users file yet.
+	 */
+	synchronized void load() throws FileNotFoundException {
+		Scanner fileReader = new Scanner(file, "UTF-8");
+		while (fileReader.hasNextLine()) {
+			//Assuming a name,UUID pair
+			String[] parts = fileReader.nextLine().trim().split(",");
+			try {
+				if (parts.length == 2) {
+					record(parts[0], UUID.fromString(parts[1]));
+					continue;
+				}
+			}
+			catch (IllegalArgumentException e) {
+				//Falls through to the warning.
+			}
+			Log.warn("Skipping a broken line", "file", file);
+		}
+		fileReader.close();
+	}
+
+	/**
+	 * Rewrites the users file from scratch, with one line per name, dropping any that have been superseded.
+	 */
+	synchronized void save() throws IOException {
+		closeAppender();
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			Tables t = tables;
+			for (int i = 0; i < t.byName.length(); i++) {
+				int e = t.byName.get(i) - 1;
+				if (e >= 0) {
+					fos.write(line(new String(t.names, t.nameAt[e], t.nameLen[e], StandardCharsets.UTF_8), new UUID(t.hi[e], t.lo[e])));
+				}
+			}
+			fos.getFD().sync();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Couldn't replace " + file);
+		}
+	}
+
+	/**
+	 * Registers someone, saving them to disk before they can be looked up.
+	 * @param name - Their name, already cleaned up.
+	 * @param uid - Their UUID.
+	 * @throws IOException - If they couldn't be saved, in which case they aren't registered.
+	 */
+	synchronized void add(String name, UUID uid) throws IOException {
+		if (appender == null) {
+			appender = new FileOutputStream(file, true);
+		}
+		try {
+			appender.write(line(name, uid));
+			appender.getFD().sync(); //Registrations are rare, and forgetting one would lock the user out.
+		}
+		catch (IOException e) {
+			closeAppender(); //Start again with a fresh stream next time.
+			throw e;
+		}
+		record(name, uid);
+	}
+
+	/**
+	 * Gives a user a name. Only called with this locked.
+	 */
+	private void record(String name, UUID uid) {
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		if (n.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Name too long.");
+		}
+		int e = addEntry(uid.getMostSignificantBits(), uid.getLeastSignificantBits(), n);
+		Tables t = tables; //Only looked at now, since adding might have grown them.
+		int slot = findName(t, n);
+		if (slot >= 0) {
+			int was = t.byName.get(slot) - 1;
+			if (t.hi[was] != t.hi[e] || t.lo[was] != t.lo[e]) {
+				//Whoever had the name before doesn't any more, unless they've been given another since.
+				int theirs = findUid(t, t.hi[was], t.lo[was]);
+				int current = t.byUid.get(theirs) - 1;
+				if (sameName(t, current, n)) {
+					int none = addEntry(t.hi[was], t.lo[was], null);
+					t = tables;
+					setSlot(t.byUid, findUid(t, t.hi[none], t.lo[none]), none);
+				}
+			}
+		}
+		setSlot(t.byName, findName(t, n), e); //Entries are written first, so a lookup that finds the slot finds all of it.
+		setSlot(t.byUid, findUid(t, t.hi[e], t.lo[e]), e);
+	}
+
+	/**
+	 * Adds an entry, growing the tables first if they're full. Only called with this locked.
+	 * @param name - The name, or null for none.
+	 * @return - The entry's number.
+	 */
+	private int addEntry(long hi, long lo, byte[] name) {
+		Tables t = tables;
+		int len = name == null ? 0 : name.length;
+		if (entries == t.hi.length || nameBytes + len > t.names.length) {
+			t = grow(t, entries == t.hi.length ? t.hi.length * 2 : t.hi.length, Math.max(t.names.length, (nameBytes + len) * 2));
+		}
+		int e = entries++;
+		t.hi[e] = hi;
+		t.lo[e] = lo;
+		t.nameAt[e] = nameBytes;
+		t.nameLen[e] = (short) (name == null ? -1 : len);
+		if (name != null) {
+			System.arraycopy(name, 0, t.names, nameBytes, len);
+			nameBytes += len;
+		}
+		return e;
+	}
+
+	/**
+	 * Copies everything into bigger tables and publishes them. Growing by doubling keeps registering constant time on average.
+	 */
+	private Tables grow(Tables old, int newEntries, int newNameBytes) {
+		Tables t = new Tables(newEntries, newNameBytes);
+		System.arraycopy(old.hi, 0, t.hi, 0, entries);
+		System.arraycopy(old.lo, 0, t.lo, 0, entries);
+		System.arraycopy(old.nameAt, 0, t.nameAt, 0, entries);
+		System.arraycopy(old.nameLen, 0, t.nameLen, 0, entries);
+		System.arraycopy(old.names, 0, t.names, 0, nameBytes);
+		for (int i = 0; i < old.byName.length(); i++) {
+			int e = old.byName.get(i) - 1;
+			if (e >= 0) {
+				setSlot(t.byName, findName(t, Arrays.copyOfRange(t.names, t.nameAt[e], t.nameAt[e] + t.nameLen[e])), e);
+			}
+			e = old.byUid.get(i) - 1;
+			if (e >= 0) {
+				setSlot(t.byUid, findUid(t, t.hi[e], t.lo[e]), e);
+			}
+		}
+		tables = t;
+		return t;
+	}
+
+	private static void setSlot(AtomicIntegerArray table, int found, int e) {
+		table.set(found >= 0 ? found : ~found, e + 1);
+	}
+
+	/**
+	 * @return - The slot holding this name, or ~(the empty slot it would go in) if it's not there.
+	 */
+	private static int findName(Tables t, byte[] n) {
+		int mask = t.byName.length() - 1;
+		for (int i = spread(Arrays.hashCode(n)) & mask;; i = (i + 1) & mask) {
+			int e = t.byName.get(i) - 1;
+			if (e < 0) {
+				return ~i;
+			}
+			if (sameName(t, e, n)) {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * @return - The slot holding this UUID, or ~(the empty slot it would go in) if it's not there.
+	 */
+	private static int findUid(Tables t, long hi, long lo) {
+		int mask = t.byUid.length() - 1;
+		for (int i = spread(Long.hashCode(hi * 31 + lo)) & mask;; i = (i + 1) & mask) {
+			int e = t.byUid.get(i) - 1;
+			if (e < 0) {
+				return ~i;
+			}
+			if (t.hi[e] == hi && t.lo[e] == lo) {
+				return i;
+			}
+		}
+	}
+
+	private static boolean sameName(Tables t, int e, byte[] n) {
+		return t.nameLen[e] == n.length && Arrays.equals(t.names, t.nameAt[e], t.nameAt[e] + n.length, n, 0, n.length);
+	}
+
+	/**
+	 * Mixes the bits of a hash, so names and UUIDs that only differ a little don't all land in the same few slots.
+	 */
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	private void closeAppender() {
+		if (appender != null) {
+			try {
+				appender.close();
+			}
+			catch (IOException e) {
+				//Nothing left to lose.
+			}
+			appender = null;
+		}
+	}
+
+	private static byte[] line(String name, UUID uid) {
+		return (name + "," + uid + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return - Who has this name, or null if nobody does.
+	 */
+	UUID getUid(String name) {
+		Tables t = tables;
+		int slot = findName(t, name.getBytes(StandardCharsets.UTF_8));
+		if (slot < 0) {
+			return null;
+		}
+		int e = t.byName.get(slot) - 1;
+		return new UUID(t.hi[e], t.lo[e]);
+	}
+
+	/**
+	 * @return - This user's name, or null if they aren't registered.
+	 */
+	String getName(UUID uid) {
+		Tables t = tables;
+		int slot = findUid(t, uid.getMostSignificantBits(), uid.getLeastSignificantBits());
+		if (slot < 0) {
+			return null;
+		}
+		int e = t.byUid.get(slot) - 1;
+		return t.nameLen[e] < 0 ? null : new String(t.names, t.nameAt[e], t.nameLen[e], StandardCharsets.UTF_8);
+	}
+}